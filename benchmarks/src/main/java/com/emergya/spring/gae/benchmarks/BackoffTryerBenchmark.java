@@ -0,0 +1,55 @@
+package com.emergya.spring.gae.benchmarks;
+
+import static com.emergya.spring.gae.utils.BackoffTryer.tryWithBackoff;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Overhead of wrapping an operation that succeeds at the first attempt in
+ * <c>tryWithBackoff</c>, which every dao operation does.
+ *
+ * @author lroman
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BackoffTryerBenchmark {
+
+    private long value;
+
+    private final Callable<Long> operation = new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+            return value++;
+        }
+    };
+
+    /**
+     * @return the result of the operation, called directly
+     * @throws Exception never
+     */
+    @Benchmark
+    public Long baseline() throws Exception {
+        return operation.call();
+    }
+
+    /**
+     * @return the result of the operation, called through the retrier
+     */
+    @Benchmark
+    public Long withBackoff() {
+        return tryWithBackoff(operation);
+    }
+}
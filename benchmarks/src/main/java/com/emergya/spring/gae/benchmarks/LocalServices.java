@@ -0,0 +1,43 @@
+package com.emergya.spring.gae.benchmarks;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalSearchServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyService;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * In-memory App Engine services for the benchmarks, so they run offline.
+ *
+ * The services are bound to the thread that sets them up, so benchmark states using them must
+ * have thread scope.
+ *
+ * @author lroman
+ */
+final class LocalServices implements Closeable {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setNoStorage(true),
+            new LocalSearchServiceTestConfig(),
+            new LocalMemcacheServiceTestConfig());
+
+    private final Closeable objectifySession;
+
+    /**
+     * Starts the services and an Objectify session.
+     */
+    LocalServices() {
+        helper.setUp();
+        ObjectifyService.register(NarrowEntity.class);
+        ObjectifyService.register(WideEntity.class);
+        objectifySession = ObjectifyService.begin();
+    }
+
+    @Override
+    public void close() throws IOException {
+        objectifySession.close();
+        helper.tearDown();
+    }
+}
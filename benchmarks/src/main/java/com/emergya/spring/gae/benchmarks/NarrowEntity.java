@@ -0,0 +1,61 @@
+package com.emergya.spring.gae.benchmarks;
+
+import com.emergya.spring.gae.data.model.BaseEntity;
+import com.googlecode.objectify.annotation.Entity;
+
+/**
+ * Entity with a handful of properties, as most lookup entities.
+ *
+ * @author lroman
+ */
+@Entity
+public class NarrowEntity extends BaseEntity {
+
+    private static final long serialVersionUID = 1L;
+
+    private String name;
+    private long count;
+    private Status status;
+
+    /**
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param name the name to set
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @param count the count to set
+     */
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    /**
+     * @return the status
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @param status the status to set
+     */
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+}
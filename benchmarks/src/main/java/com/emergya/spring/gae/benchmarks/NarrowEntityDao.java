@@ -0,0 +1,11 @@
+package com.emergya.spring.gae.benchmarks;
+
+import com.emergya.spring.gae.data.dao.DatastoreBaseDao;
+
+/**
+ * Dao of the narrow benchmark entities.
+ *
+ * @author lroman
+ */
+public class NarrowEntityDao extends DatastoreBaseDao<NarrowEntity> {
+}
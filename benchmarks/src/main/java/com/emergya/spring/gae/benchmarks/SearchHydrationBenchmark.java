@@ -0,0 +1,94 @@
+package com.emergya.spring.gae.benchmarks;
+
+import com.googlecode.objectify.ObjectifyService;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a dao search, which finds the ids in the search index and then loads their entities
+ * from the DataStore, against the local service stubs.
+ *
+ * Every search runs in a new Objectify session, as in a new request, so entities are loaded
+ * from the DataStore stub rather than from the session cache. The absolute numbers reflect the
+ * stubs rather than production, but the relative cost of the framework code is meaningful.
+ *
+ * @author lroman
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchHydrationBenchmark {
+
+    private static final int ENTITIES = 500;
+
+    /**
+     * Number of results of each search.
+     */
+    @Param({"10", "100"})
+    private int pageSize;
+
+    private LocalServices services;
+    private NarrowEntityDao dao;
+
+    /**
+     * Saves and indexes the entities to search.
+     */
+    @Setup
+    public void setUp() {
+        services = new LocalServices();
+        dao = new NarrowEntityDao();
+
+        List<NarrowEntity> entities = new ArrayList<>(ENTITIES);
+        for (int i = 0; i < ENTITIES; i++) {
+            NarrowEntity entity = new NarrowEntity();
+            entity.setName("Entity " + i);
+            entity.setCount(i);
+            entity.setStatus(Status.values()[i % Status.values().length]);
+            entities.add(entity);
+        }
+
+        if (!dao.batchSave(entities).isSuccessful()) {
+            throw new IllegalStateException("Couldn't save the benchmark entities.");
+        }
+    }
+
+    /**
+     * Stops the local services.
+     *
+     * @throws IOException if the services can't be stopped
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        services.close();
+    }
+
+    /**
+     * @return the entities found by a search
+     * @throws IOException if the Objectify session can't be closed
+     */
+    @Benchmark
+    public Collection<NarrowEntity> search() throws IOException {
+        try (Closeable session = ObjectifyService.begin()) {
+            return dao.search("status:ACTIVE", 0, pageSize);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.emergya.spring.gae.benchmarks;
+
+/**
+ * Enum property of the benchmark entities.
+ *
+ * @author lroman
+ */
+public enum Status {
+    DRAFT, ACTIVE, ARCHIVED
+}
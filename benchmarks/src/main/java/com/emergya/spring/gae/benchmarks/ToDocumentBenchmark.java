@@ -0,0 +1,118 @@
+package com.emergya.spring.gae.benchmarks;
+
+import com.google.appengine.api.search.Document;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Ref;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of converting entities to search documents, which is paid on every save and reindex.
+ *
+ * @author lroman
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ToDocumentBenchmark {
+
+    /**
+     * Number of elements of each collection property of the wide entity.
+     */
+    @Param({"0", "10", "100"})
+    private int collectionSize;
+
+    private LocalServices services;
+    private NarrowEntity narrow;
+    private WideEntity wide;
+
+    /**
+     * Builds the entities to convert.
+     */
+    @Setup
+    public void setUp() {
+        services = new LocalServices();
+
+        narrow = new NarrowEntity();
+        narrow.setId(1L);
+        narrow.setName("A narrow entity");
+        narrow.setCount(42);
+        narrow.setStatus(Status.ACTIVE);
+
+        List<String> tags = new ArrayList<>();
+        List<Long> relatedIds = new ArrayList<>();
+        for (int i = 0; i < collectionSize; i++) {
+            tags.add("tag" + i);
+            relatedIds.add((long) i);
+        }
+
+        wide = new WideEntity();
+        wide.setId(2L);
+        wide.setTitle("A wide entity");
+        wide.setDescription("An entity with properties of every type supported by the search index mapping");
+        wide.setAuthor("lroman");
+        wide.setCity("Sevilla");
+        wide.setCountry("Spain");
+        wide.setViews(1000);
+        wide.setLikes(10L);
+        wide.setScore(4.5);
+        wide.setPrice(9.99);
+        wide.setRank(3);
+        wide.setStock(7);
+        wide.setCreated(new Date());
+        wide.setUpdated(new Date());
+        wide.setFeatured(true);
+        wide.setPublished(Boolean.TRUE);
+        wide.setStatus(Status.ACTIVE);
+        wide.setPreviousStatus(Status.DRAFT);
+        wide.setTags(tags);
+        wide.setRelatedIds(relatedIds);
+        wide.setOwner(Ref.create(Key.create(NarrowEntity.class, 1L)));
+        wide.setCategory(narrow);
+    }
+
+    /**
+     * Stops the local services.
+     *
+     * @throws IOException if the services can't be stopped
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        services.close();
+    }
+
+    /**
+     * @return the document of an entity with 4 properties
+     */
+    @Benchmark
+    public Document narrowEntity() {
+        return narrow.toDocument();
+    }
+
+    /**
+     * @return the document of an entity with 22 properties, including collections, references
+     * and enums
+     */
+    @Benchmark
+    public Document wideEntity() {
+        return wide.toDocument();
+    }
+}
@@ -0,0 +1,61 @@
+package com.emergya.spring.gae.benchmarks;
+
+import com.emergya.spring.gae.web.dto.ValidationErrorDTO;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.validation.FieldError;
+
+/**
+ * Cost of building the validation error response of a request with many invalid fields.
+ *
+ * @author lroman
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidationErrorBenchmark {
+
+    private static final int FIELDS = 20;
+
+    /**
+     * Number of field errors, spread over {@value #FIELDS} fields.
+     */
+    @Param({"10", "1000", "10000"})
+    private int errorCount;
+
+    private List<FieldError> fieldErrors;
+
+    /**
+     * Builds the field errors.
+     */
+    @Setup
+    public void setUp() {
+        fieldErrors = new ArrayList<>(errorCount);
+        for (int i = 0; i < errorCount; i++) {
+            fieldErrors.add(new FieldError("dto", "field" + (i % FIELDS), "Error " + i));
+        }
+    }
+
+    /**
+     * @return the validation error response
+     */
+    @Benchmark
+    public ValidationErrorDTO build() {
+        return new ValidationErrorDTO(fieldErrors);
+    }
+}
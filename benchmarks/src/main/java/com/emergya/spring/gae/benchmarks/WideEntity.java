@@ -0,0 +1,337 @@
+package com.emergya.spring.gae.benchmarks;
+
+import com.emergya.spring.gae.data.model.BaseEntity;
+import com.googlecode.objectify.Ref;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Ignore;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Entity with many properties of every supported type, including collections, references and
+ * enums.
+ *
+ * @author lroman
+ */
+@Entity
+public class WideEntity extends BaseEntity {
+
+    private static final long serialVersionUID = 1L;
+
+    private String title;
+    private String description;
+    private String author;
+    private String city;
+    private String country;
+    private long views;
+    private Long likes;
+    private double score;
+    private Double price;
+    private int rank;
+    private Integer stock;
+    private Date created;
+    private Date updated;
+    private boolean featured;
+    private Boolean published;
+    private Status status;
+    private Status previousStatus;
+    private List<String> tags;
+    private List<Long> relatedIds;
+    private Ref<NarrowEntity> owner;
+    @Ignore
+    private NarrowEntity category;
+
+    /**
+     * @return the title
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @param title the title to set
+     */
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    /**
+     * @return the description
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @param description the description to set
+     */
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    /**
+     * @return the author
+     */
+    public String getAuthor() {
+        return author;
+    }
+
+    /**
+     * @param author the author to set
+     */
+    public void setAuthor(String author) {
+        this.author = author;
+    }
+
+    /**
+     * @return the city
+     */
+    public String getCity() {
+        return city;
+    }
+
+    /**
+     * @param city the city to set
+     */
+    public void setCity(String city) {
+        this.city = city;
+    }
+
+    /**
+     * @return the country
+     */
+    public String getCountry() {
+        return country;
+    }
+
+    /**
+     * @param country the country to set
+     */
+    public void setCountry(String country) {
+        this.country = country;
+    }
+
+    /**
+     * @return the views
+     */
+    public long getViews() {
+        return views;
+    }
+
+    /**
+     * @param views the views to set
+     */
+    public void setViews(long views) {
+        this.views = views;
+    }
+
+    /**
+     * @return the likes
+     */
+    public Long getLikes() {
+        return likes;
+    }
+
+    /**
+     * @param likes the likes to set
+     */
+    public void setLikes(Long likes) {
+        this.likes = likes;
+    }
+
+    /**
+     * @return the score
+     */
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * @param score the score to set
+     */
+    public void setScore(double score) {
+        this.score = score;
+    }
+
+    /**
+     * @return the price
+     */
+    public Double getPrice() {
+        return price;
+    }
+
+    /**
+     * @param price the price to set
+     */
+    public void setPrice(Double price) {
+        this.price = price;
+    }
+
+    /**
+     * @return the rank
+     */
+    public int getRank() {
+        return rank;
+    }
+
+    /**
+     * @param rank the rank to set
+     */
+    public void setRank(int rank) {
+        this.rank = rank;
+    }
+
+    /**
+     * @return the stock
+     */
+    public Integer getStock() {
+        return stock;
+    }
+
+    /**
+     * @param stock the stock to set
+     */
+    public void setStock(Integer stock) {
+        this.stock = stock;
+    }
+
+    /**
+     * @return the created
+     */
+    public Date getCreated() {
+        return created;
+    }
+
+    /**
+     * @param created the created to set
+     */
+    public void setCreated(Date created) {
+        this.created = created;
+    }
+
+    /**
+     * @return the updated
+     */
+    public Date getUpdated() {
+        return updated;
+    }
+
+    /**
+     * @param updated the updated to set
+     */
+    public void setUpdated(Date updated) {
+        this.updated = updated;
+    }
+
+    /**
+     * @return the featured
+     */
+    public boolean isFeatured() {
+        return featured;
+    }
+
+    /**
+     * @param featured the featured to set
+     */
+    public void setFeatured(boolean featured) {
+        this.featured = featured;
+    }
+
+    /**
+     * @return the published
+     */
+    public Boolean getPublished() {
+        return published;
+    }
+
+    /**
+     * @param published the published to set
+     */
+    public void setPublished(Boolean published) {
+        this.published = published;
+    }
+
+    /**
+     * @return the status
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @param status the status to set
+     */
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    /**
+     * @return the previousStatus
+     */
+    public Status getPreviousStatus() {
+        return previousStatus;
+    }
+
+    /**
+     * @param previousStatus the previousStatus to set
+     */
+    public void setPreviousStatus(Status previousStatus) {
+        this.previousStatus = previousStatus;
+    }
+
+    /**
+     * @return the tags
+     */
+    public List<String> getTags() {
+        return tags;
+    }
+
+    /**
+     * @param tags the tags to set
+     */
+    public void setTags(List<String> tags) {
+        this.tags = tags;
+    }
+
+    /**
+     * @return the relatedIds
+     */
+    public List<Long> getRelatedIds() {
+        return relatedIds;
+    }
+
+    /**
+     * @param relatedIds the relatedIds to set
+     */
+    public void setRelatedIds(List<Long> relatedIds) {
+        this.relatedIds = relatedIds;
+    }
+
+    /**
+     * @return the owner
+     */
+    public Ref<NarrowEntity> getOwner() {
+        return owner;
+    }
+
+    /**
+     * @param owner the owner to set
+     */
+    public void setOwner(Ref<NarrowEntity> owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * @return the category
+     */
+    public NarrowEntity getCategory() {
+        return category;
+    }
+
+    /**
+     * @param category the category to set
+     */
+    public void setCategory(NarrowEntity category) {
+        this.category = category;
+    }
+}
@@ -7,7 +7,10 @@ package com.emergya.spring.gae.data.dao;
 
 import com.emergya.spring.gae.data.model.BaseEntity;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 /**
  *
@@ -18,9 +21,10 @@ public interface BaseDao<E extends BaseEntity> {
     /**
      * Saves a batch of entities.
      *
-     * @param entities the entities to be saved. *
+     * @param entities the entities to be saved.
+     * @return the outcome of the save, reported per chunk of entities.
      */
-    void batchSave(final List<E> entities);
+    BatchSaveResult batchSave(final List<E> entities);
 
     /**
      * Counts the total results available for a given query.
@@ -30,6 +34,14 @@ public interface BaseDao<E extends BaseEntity> {
      */
     long count(String queryString);
 
+    /**
+     * Counts the total results available for a given query without blocking the calling thread.
+     *
+     * @param queryString the query
+     * @return the eventual total result count
+     */
+    CompletableFuture<Long> countAsync(String queryString);
+
     /**
      * Deletes an entity.
      *
@@ -44,6 +56,21 @@ public interface BaseDao<E extends BaseEntity> {
      */
     void delete(long id);
 
+    /**
+     * Deletes an entity by id without blocking the calling thread.
+     *
+     * @param id the id of the entity to be deleted.
+     * @return a future completed when the entity has been deleted.
+     */
+    CompletableFuture<Void> deleteAsync(long id);
+
+    /**
+     * Deletes several entities by id, in batches.
+     *
+     * @param ids the ids of the entities to be deleted.
+     */
+    void deleteAll(Collection<Long> ids);
+
     /**
      * Gets an entity by its id.
      *
@@ -52,13 +79,63 @@ public interface BaseDao<E extends BaseEntity> {
      */
     E getById(long id);
 
+    /**
+     * Gets an entity by its id without blocking the calling thread.
+     *
+     * Independent async calls run concurrently, so a controller needing several of them can
+     * start them all and combine the futures, or return them as Spring MVC async results. Async
+     * calls belong to the request that starts them and must complete before it ends: their
+     * futures fail if they are still pending at the request deadline.
+     *
+     * @param id the id of the entity to be retreived.
+     * @return the eventual entity, or null if it doesn't exist.
+     */
+    CompletableFuture<E> getByIdAsync(long id);
+
+    /**
+     * Gets several entities by id, in a single batch.
+     *
+     * @param ids the ids of the entities to be retrieved.
+     * @return the entities in the order of their ids, skipping the ones that don't exist.
+     */
+    List<E> getByIds(Collection<Long> ids);
+
     /**
      * Returns all entites.
      *
      * @return All entities in a list.
+     * @see #stream()
      */
     List<E> list();
 
+    /**
+     * Streams all the entities, read in chunks so memory stays bounded whatever the number of
+     * entities. Parallel streams split the entities by key ranges, read in parallel.
+     *
+     * @return the entities, in key order.
+     */
+    Stream<E> stream();
+
+    /**
+     * Iterates over all the entities, reading the next chunk while the current one is being
+     * iterated.
+     *
+     * @param chunkSize the number of entities read at a time.
+     * @return the entities, in key order.
+     */
+    Iterator<E> iterate(int chunkSize);
+
+    /**
+     * Processes all the entities one chunk at a time, reading the next chunk while the current
+     * one is being processed.
+     *
+     * @param chunkSize the number of entities of each chunk.
+     * @param handler the processing of the chunks.
+     * @throws RuntimeException if a chunk can't be read or processed, wrapping the error of the
+     * handler if it isn't a RuntimeException.
+     */
+    void forEachChunk(int chunkSize, ChunkHandler<E> handler);
+
     /**
      * Saves an entity (new or updated).
      *
@@ -67,6 +144,14 @@ public interface BaseDao<E extends BaseEntity> {
      */
     Long save(final E entity);
 
+    /**
+     * Saves an entity (new or updated) without blocking the calling thread.
+     *
+     * @param entity the entity to create (if doesn't have id) or update (if has id).
+     * @return the eventual id of the saved entity
+     */
+    CompletableFuture<Long> saveAsync(final E entity);
+
     /**
      * Searchs for an entity given a query string.
      *
@@ -89,4 +174,29 @@ public interface BaseDao<E extends BaseEntity> {
      */
     Collection<E> search(String queryString, int offset, int limit);
 
+    /**
+     * Paginated search for an entity given a query string without blocking the calling thread.
+     *
+     * @param queryString the query string
+     * @param offset the index of the first result to be retrieved
+     * @param limit the number of results to be retrieved (page size)
+     * @return the eventual entities that match the query
+     */
+    CompletableFuture<Collection<E>> searchAsync(String queryString, int offset, int limit);
+
+    /**
+     * Paginated search for an entity given a query string, using cursors instead of offsets.
+     *
+     * Every page costs about the same regardless of its depth, as the search service doesn't
+     * have to rescan the results of previous pages.
+     *
+     * See https://cloud.google.com/appengine/docs/java/search/query_strings
+     *
+     * @param queryString the query string
+     * @param cursor the cursor returned with the previous page, or null to get the first one
+     * @param limit the number of results to be retrieved (page size)
+     * @return the page of entities that match the query, with the cursor to the next one
+     */
+    SearchPage<E> searchPage(String queryString, String cursor, int limit);
+
 }
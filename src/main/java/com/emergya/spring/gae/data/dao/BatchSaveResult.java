@@ -0,0 +1,161 @@
+package com.emergya.spring.gae.data.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a batch save, reported per chunk of entities.
+ *
+ * @author lroman
+ */
+public final class BatchSaveResult {
+
+    private final List<ChunkResult> chunks = new ArrayList<>();
+
+    /**
+     * Adds the outcome of a chunk.
+     *
+     * @param chunk the chunk outcome
+     */
+    void add(ChunkResult chunk) {
+        chunks.add(chunk);
+    }
+
+    /**
+     * @return the outcome of every chunk, in input order
+     */
+    public List<ChunkResult> getChunks() {
+        return Collections.unmodifiableList(chunks);
+    }
+
+    /**
+     * @return whether all the entities were saved and indexed
+     */
+    public boolean isSuccessful() {
+        for (ChunkResult chunk : chunks) {
+            if (!chunk.isSuccessful()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the number of entities saved to the DataStore
+     */
+    public long getSavedCount() {
+        long count = 0;
+        for (ChunkResult chunk : chunks) {
+            if (chunk.isSaved()) {
+                count += chunk.getSize();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the number of entities that couldn't be saved or indexed
+     */
+    public long getFailedCount() {
+        long count = 0;
+        for (ChunkResult chunk : chunks) {
+            if (!chunk.isSuccessful()) {
+                count += chunk.getSize();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Outcome of the save of a chunk of entities.
+     */
+    public static final class ChunkResult {
+
+        private final int firstIndex;
+        private final int size;
+        private boolean saved;
+        private boolean indexed;
+        private Exception error;
+        private long elapsedMillis;
+
+        /**
+         * Constructor.
+         *
+         * @param firstIndex the position of the first entity of the chunk in the input.
+         * @param size the number of entities of the chunk.
+         */
+        ChunkResult(int firstIndex, int size) {
+            this.firstIndex = firstIndex;
+            this.size = size;
+        }
+
+        /**
+         * @return the position of the first entity of the chunk in the input
+         */
+        public int getFirstIndex() {
+            return firstIndex;
+        }
+
+        /**
+         * @return the number of entities of the chunk
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * @return whether the entities were saved to the DataStore
+         */
+        public boolean isSaved() {
+            return saved;
+        }
+
+        /**
+         * @return whether the entities were written to the search index
+         */
+        public boolean isIndexed() {
+            return indexed;
+        }
+
+        /**
+         * @return whether the entities were both saved and indexed
+         */
+        public boolean isSuccessful() {
+            return saved && indexed;
+        }
+
+        /**
+         * @return the error that made the chunk fail, or null if it didn't
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        /**
+         * @return the time elapsed since the chunk was submitted until it was saved and indexed
+         */
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        void setSaved(boolean saved) {
+            this.saved = saved;
+        }
+
+        void setIndexed(boolean indexed) {
+            this.indexed = indexed;
+        }
+
+        void setError(Exception error) {
+            this.error = error;
+        }
+
+        void setElapsedMillis(long elapsedMillis) {
+            this.elapsedMillis = elapsedMillis;
+        }
+    }
+}
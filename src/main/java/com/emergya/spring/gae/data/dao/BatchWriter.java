@@ -0,0 +1,296 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.emergya.spring.gae.data.model.BaseEntity;
+import static com.emergya.spring.gae.utils.BackoffTryer.tryWithBackoff;
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.OperationResult;
+import com.google.appengine.api.search.PutResponse;
+import com.google.appengine.api.search.StatusCode;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves entities in chunks the DataStore and the Search API can handle, pipelining the work so a
+ * chunk is written to the DataStore while the previous one is being indexed.
+ *
+ * Entities are added one by one or in bulk and written whenever a chunk of
+ * {@value #DATASTORE_BATCH_SIZE} entities is complete, so the caller doesn't need to hold the
+ * whole batch in memory. Instances are not thread safe and can't be reused after
+ * {@link #finish()}.
+ *
+ * @author lroman
+ * @param <E> The entity class
+ */
+public final class BatchWriter<E extends BaseEntity> {
+
+    /**
+     * Maximum number of entities the DataStore accepts in a single put.
+     */
+    public static final int DATASTORE_BATCH_SIZE = 500;
+
+    private final DatastoreBaseDao<E> dao;
+    private final BatchSaveResult result = new BatchSaveResult();
+
+    private List<E> buffer = new ArrayList<>(DATASTORE_BATCH_SIZE);
+    private int submitted;
+    private PendingChunk saving;
+    private PendingChunk indexing;
+    private boolean finished;
+
+    /**
+     * Constructor.
+     *
+     * @param dao the dao used to save and index the entities.
+     */
+    BatchWriter(DatastoreBaseDao<E> dao) {
+        this.dao = dao;
+    }
+
+    /**
+     * Adds an entity to be saved.
+     *
+     * @param entity the entity.
+     */
+    public void add(E entity) {
+        if (finished) {
+            throw new IllegalStateException("The batch has been finished already.");
+        }
+
+        buffer.add(entity);
+        if (buffer.size() == DATASTORE_BATCH_SIZE) {
+            submit(buffer);
+            buffer = new ArrayList<>(DATASTORE_BATCH_SIZE);
+        }
+    }
+
+    /**
+     * Adds several entities to be saved.
+     *
+     * @param entities the entities.
+     */
+    public void addAll(Collection<? extends E> entities) {
+        for (E entity : entities) {
+            add(entity);
+        }
+    }
+
+    /**
+     * Writes the entities still pending and waits for all of them to be saved and indexed.
+     *
+     * @return the outcome of every chunk.
+     */
+    public BatchSaveResult finish() {
+        if (!finished) {
+            finished = true;
+            if (!buffer.isEmpty()) {
+                submit(buffer);
+                buffer = null;
+            }
+
+            PendingChunk lastIndexing = advance();
+            if (lastIndexing != null) {
+                lastIndexing.completeIndexing();
+            }
+            if (indexing != null) {
+                indexing.completeIndexing();
+                indexing = null;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the outcome of the chunks submitted so far, which may still be in progress
+     */
+    public BatchSaveResult getResult() {
+        return result;
+    }
+
+    private void submit(List<E> entities) {
+        PendingChunk chunk = new PendingChunk(entities, new BatchSaveResult.ChunkResult(submitted, entities.size()));
+        submitted += entities.size();
+        result.add(chunk.result);
+
+        chunk.startSave();
+
+        PendingChunk previousIndexing = advance();
+        if (previousIndexing != null) {
+            previousIndexing.completeIndexing();
+        }
+
+        saving = chunk;
+    }
+
+    /**
+     * Moves the chunk being saved to the indexing stage.
+     *
+     * @return the chunk that was being indexed before, still to be completed.
+     */
+    private PendingChunk advance() {
+        PendingChunk previousIndexing = indexing;
+        indexing = null;
+
+        if (saving != null) {
+            if (saving.completeSave()) {
+                saving.startIndexing();
+                indexing = saving;
+            }
+            saving = null;
+        }
+
+        return previousIndexing;
+    }
+
+    /**
+     * A chunk moving through the pipeline.
+     */
+    private final class PendingChunk {
+
+        private final List<E> entities;
+        private final BatchSaveResult.ChunkResult result;
+        private final long startNanos = System.nanoTime();
+
+        private Map<Long, List<String>> before;
+        private Result<Map<Key<E>, E>> save;
+        private List<Document> documents;
+        private List<Future<PutResponse>> puts;
+
+        PendingChunk(List<E> entities, BatchSaveResult.ChunkResult result) {
+            this.entities = entities;
+            this.result = result;
+        }
+
+        void startSave() {
+            try {
+                before = dao.countedState(DatastoreBaseDao.idsOf(entities));
+                save = dao.saveEntitiesAsync(entities);
+            } catch (RuntimeException ex) {
+                save = null;
+            }
+        }
+
+        boolean completeSave() {
+            try {
+                if (save != null) {
+                    save.now();
+                    saved();
+                    return true;
+                }
+            } catch (RuntimeException ex) {
+                // retried below
+            }
+
+            try {
+                tryWithBackoff(new Callable<Map<Key<E>, E>>() {
+                    @Override
+                    public Map<Key<E>, E> call() throws Exception {
+                        if (before == null) {
+                            before = dao.countedState(DatastoreBaseDao.idsOf(entities));
+                        }
+                        return dao.saveEntitiesAsync(entities).now();
+                    }
+                });
+                saved();
+                return true;
+            } catch (RuntimeException ex) {
+                fail(ex);
+                return false;
+            }
+        }
+
+        private void saved() {
+            result.setSaved(true);
+            dao.entitiesWritten(DatastoreBaseDao.idsOf(entities));
+            if (before != null) {
+                dao.updateCounters(entities, before);
+            }
+        }
+
+        void startIndexing() {
+            try {
+                documents = dao.documentsToIndex(entities);
+                puts = dao.indexDocumentsAsync(documents);
+            } catch (RuntimeException ex) {
+                puts = null;
+            }
+        }
+
+        void completeIndexing() {
+            try {
+                if (puts != null && awaitPuts()) {
+                    dao.documentsIndexed(documents);
+                } else {
+                    tryWithBackoff(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            if (documents == null) {
+                                documents = dao.documentsToIndex(entities);
+                            }
+                            dao.indexDocuments(documents);
+                            return true;
+                        }
+                    });
+                }
+            } catch (RuntimeException ex) {
+                searchesChanged();
+                fail(ex);
+                return;
+            }
+
+            if (searchesChanged()) {
+                succeed();
+            }
+        }
+
+        /**
+         * Invalidates the cached searches once the chunk is indexed, or failed to be, so they
+         * can't be cached again from the previous documents.
+         */
+        private boolean searchesChanged() {
+            try {
+                dao.entitiesChanged(DatastoreBaseDao.idsOf(entities));
+                return true;
+            } catch (RuntimeException ex) {
+                fail(ex);
+                return false;
+            }
+        }
+
+        private boolean awaitPuts() {
+            boolean ok = true;
+            for (Future<PutResponse> put : puts) {
+                try {
+                    for (OperationResult operation : put.get()) {
+                        ok &= operation.getCode() == StatusCode.OK;
+                    }
+                } catch (ExecutionException ex) {
+                    ok = false;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(ex);
+                }
+            }
+
+            return ok;
+        }
+
+        private void succeed() {
+            result.setIndexed(true);
+            result.setElapsedMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+
+        private void fail(Exception error) {
+            result.setError(error);
+            result.setElapsedMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.emergya.spring.gae.data.dao;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables a read-through entity cache for <c>getById</c> on a DatastoreBaseDao subclass.
+ *
+ * Entities are cached in a bounded in-process tier and, optionally, in a memcache tier shared by
+ * all app instances. Entries are invalidated when the entity is saved or deleted through the
+ * dao; the in-process tier of other app instances may serve the previous state until the entry
+ * expires, so the TTL bounds how stale a read can be.
+ *
+ * Entities are cached serialized and every hit returns a new instance, so they can be modified
+ * and saved as usual. Meant for read-heavy, rarely changing kinds such as configuration and
+ * catalog entities.
+ *
+ * @author lroman
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface CachedEntities {
+
+    /**
+     * @return the maximum number of entities kept by the in-process tier.
+     */
+    int maxSize() default 1000;
+
+    /**
+     * @return the time, in seconds, an entity is cached since it was loaded.
+     */
+    int ttlSeconds() default 300;
+
+    /**
+     * @return whether entities are also cached in memcache.
+     */
+    boolean memcache() default false;
+}
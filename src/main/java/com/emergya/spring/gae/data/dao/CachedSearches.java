@@ -0,0 +1,35 @@
+package com.emergya.spring.gae.data.dao;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables caching the results of <c>search(queryString, offset, limit)</c> and
+ * <c>count(queryString)</c> on a DatastoreBaseDao subclass.
+ *
+ * Only the ids of the found entities are cached, which are then loaded through the usual load
+ * path. Cached results are tagged with a generation counter of the entity kind, kept in memcache,
+ * that every save, delete and batch save bumps once the changed documents are indexed, so results
+ * cached before a write are never served after it. A write fails if the generation can't be
+ * bumped, as results cached by other instances could otherwise be served until they expire.
+ *
+ * @author lroman
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface CachedSearches {
+
+    /**
+     * @return the maximum number of results kept in memory.
+     */
+    int maxSize() default 1000;
+
+    /**
+     * @return the time, in seconds, results are cached.
+     */
+    int ttlSeconds() default 60;
+}
@@ -0,0 +1,22 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.emergya.spring.gae.data.model.BaseEntity;
+import java.util.List;
+
+/**
+ * Processes the entities of a kind one chunk at a time.
+ *
+ * @author lroman
+ * @param <E> The entity class
+ * @see BaseDao#forEachChunk(int, ChunkHandler)
+ */
+public interface ChunkHandler<E extends BaseEntity> {
+
+    /**
+     * Processes a chunk of entities.
+     *
+     * @param chunk the entities of the chunk, in key order.
+     * @throws Exception if the chunk can't be processed, which stops the iteration.
+     */
+    void handle(List<E> chunk) throws Exception;
+}
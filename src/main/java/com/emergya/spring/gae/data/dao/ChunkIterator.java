@@ -0,0 +1,22 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.emergya.spring.gae.data.model.BaseEntity;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Iterator over the entities of a kind one chunk at a time, which can be resumed later from the
+ * last chunk returned.
+ *
+ * @author lroman
+ * @param <E> The entity class
+ * @see DatastoreBaseDao#iterateChunks(String, int)
+ */
+public interface ChunkIterator<E extends BaseEntity> extends Iterator<List<E>> {
+
+    /**
+     * @return the cursor to resume iterating after the last chunk returned, or null if there are
+     * no more entities
+     */
+    String getCursor();
+}
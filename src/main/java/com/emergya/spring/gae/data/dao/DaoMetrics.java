@@ -0,0 +1,210 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.emergya.spring.gae.utils.LatencyHistogram;
+import com.emergya.spring.gae.utils.RetryPolicy;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies, failures and retries of the operations of the daos of an entity class.
+ *
+ * Metrics are kept per app instance, shared by all the dao instances of the class. Recording
+ * only updates striped counters allocated when the metrics are created, so it doesn't allocate
+ * nor contend on the hot path.
+ *
+ * @author lroman
+ */
+public final class DaoMetrics {
+
+    private static final ConcurrentMap<Class<?>, DaoMetrics> METRICS = new ConcurrentHashMap<>();
+
+    private final Map<Operation, OperationMetrics> operations = new EnumMap<>(Operation.class);
+    private final LongAdder hydrationMisses = new LongAdder();
+    private final LongAdder skippedIndexWrites = new LongAdder();
+
+    private DaoMetrics() {
+        for (Operation operation : Operation.values()) {
+            operations.put(operation, new OperationMetrics());
+        }
+    }
+
+    /**
+     * Gets the metrics of an entity class, creating them if needed.
+     *
+     * @param entityClass the entity class.
+     * @return the metrics.
+     */
+    static DaoMetrics forClass(Class<?> entityClass) {
+        DaoMetrics metrics = METRICS.get(entityClass);
+        if (metrics == null) {
+            DaoMetrics created = new DaoMetrics();
+            metrics = METRICS.putIfAbsent(entityClass, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+
+        return metrics;
+    }
+
+    /**
+     * Reports the metrics of every entity class, plus the aggregate of all of them.
+     *
+     * Latencies are reported in milliseconds, as their mean, p50, p99, p999 and max.
+     *
+     * @return the metrics by entity class simple name, with the aggregate under <c>*</c>.
+     */
+    public static Map<String, Object> report() {
+        Map<String, Object> report = new LinkedHashMap<>();
+
+        Map<Operation, LatencyHistogram.Snapshot> allLatencies = new EnumMap<>(Operation.class);
+        Map<Operation, long[]> allCounters = new EnumMap<>(Operation.class);
+        long allHydrationMisses = 0;
+        long allSkippedIndexWrites = 0;
+
+        for (Map.Entry<Class<?>, DaoMetrics> entry : METRICS.entrySet()) {
+            DaoMetrics metrics = entry.getValue();
+
+            Map<String, Object> classReport = new LinkedHashMap<>();
+            for (Map.Entry<Operation, OperationMetrics> operation : metrics.operations.entrySet()) {
+                LatencyHistogram.Snapshot latencies = operation.getValue().latencies.snapshot();
+                long[] counters = operation.getValue().counters();
+                if (latencies.getCount() == 0 && counters[1] == 0) {
+                    continue;
+                }
+
+                classReport.put(operation.getKey().name(), report(latencies, counters));
+
+                LatencyHistogram.Snapshot previous = allLatencies.get(operation.getKey());
+                allLatencies.put(operation.getKey(), previous == null ? latencies : previous.merge(latencies));
+
+                long[] previousCounters = allCounters.get(operation.getKey());
+                if (previousCounters != null) {
+                    for (int i = 0; i < counters.length; i++) {
+                        counters[i] += previousCounters[i];
+                    }
+                }
+                allCounters.put(operation.getKey(), counters);
+            }
+
+            long misses = metrics.hydrationMisses.sum();
+            classReport.put("hydrationMisses", misses);
+            allHydrationMisses += misses;
+
+            long skipped = metrics.skippedIndexWrites.sum();
+            classReport.put("skippedIndexWrites", skipped);
+            allSkippedIndexWrites += skipped;
+
+            report.put(entry.getKey().getSimpleName(), classReport);
+        }
+
+        Map<String, Object> allReport = new LinkedHashMap<>();
+        for (Map.Entry<Operation, LatencyHistogram.Snapshot> operation : allLatencies.entrySet()) {
+            allReport.put(operation.getKey().name(), report(operation.getValue(), allCounters.get(operation.getKey())));
+        }
+        allReport.put("hydrationMisses", allHydrationMisses);
+        allReport.put("skippedIndexWrites", allSkippedIndexWrites);
+        report.put("*", allReport);
+
+        return report;
+    }
+
+    private static Map<String, Object> report(LatencyHistogram.Snapshot latencies, long[] counters) {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("count", latencies.getCount());
+        report.put("failures", counters[0]);
+        report.put("retries", counters[1]);
+        report.put("retryWaitMillis", counters[2]);
+        report.put("meanMillis", latencies.getMeanMillis());
+        report.put("p50Millis", latencies.getPercentileMillis(0.5));
+        report.put("p99Millis", latencies.getPercentileMillis(0.99));
+        report.put("p999Millis", latencies.getPercentileMillis(0.999));
+        report.put("maxMillis", latencies.getMaxMillis());
+        return report;
+    }
+
+    /**
+     * Records the latency of a finished operation, whatever its outcome.
+     *
+     * @param operation the operation.
+     * @param startNanos the start of the operation, from {@link System#nanoTime()}.
+     */
+    void record(Operation operation, long startNanos) {
+        operations.get(operation).latencies.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records a failed operation.
+     *
+     * @param operation the operation.
+     */
+    void recordFailure(Operation operation) {
+        operations.get(operation).failures.increment();
+    }
+
+    /**
+     * Records search hits whose entity couldn't be loaded.
+     *
+     * @param misses the number of missing entities.
+     */
+    void recordHydrationMisses(int misses) {
+        if (misses > 0) {
+            hydrationMisses.add(misses);
+        }
+    }
+
+    /**
+     * Records documents not written to the index because they hadn't changed.
+     *
+     * @param skipped the number of skipped documents.
+     * @see FingerprintedIndexing
+     */
+    void recordSkippedIndexWrites(int skipped) {
+        if (skipped > 0) {
+            skippedIndexWrites.add(skipped);
+        }
+    }
+
+    /**
+     * Gets the retry policy for an operation, which counts its retries.
+     *
+     * @param operation the operation.
+     * @return the policy.
+     */
+    RetryPolicy retryPolicy(Operation operation) {
+        return operations.get(operation).retryPolicy;
+    }
+
+    /**
+     * The measured dao operations.
+     */
+    public enum Operation {
+        GET_BY_ID, GET_BY_IDS, LIST, SAVE, DELETE, DELETE_ALL, BATCH_SAVE, SEARCH, COUNT, INDEX, REINDEX
+    }
+
+    /**
+     * Counters of an operation.
+     */
+    private static final class OperationMetrics implements RetryPolicy.Listener {
+
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder retryWaitMillis = new LongAdder();
+        private final RetryPolicy retryPolicy = RetryPolicy.DEFAULT.withListener(this);
+
+        @Override
+        public void retrying(int attempts, Throwable error, long delayMillis) {
+            retries.increment();
+            retryWaitMillis.add(delayMillis);
+        }
+
+        long[] counters() {
+            return new long[]{failures.sum(), retries.sum(), retryWaitMillis.sum()};
+        }
+    }
+}
@@ -1,31 +1,69 @@
 package com.emergya.spring.gae.data.dao;
 
 import com.emergya.spring.gae.data.model.BaseEntity;
+import com.emergya.spring.gae.data.model.SearchFacet;
+import com.emergya.spring.gae.utils.BackendUnavailableException;
+import com.emergya.spring.gae.utils.BackoffTryer;
+import com.emergya.spring.gae.utils.BackoffTryer.AsyncAttempt;
+import com.emergya.spring.gae.utils.CircuitBreaker;
+import com.emergya.spring.gae.utils.RetryPolicy;
 import static com.emergya.spring.gae.utils.BackoffTryer.tryWithBackoff;
+import static com.emergya.spring.gae.utils.BackoffTryer.tryWithBackoffAsync;
+import com.google.appengine.api.search.Cursor;
 import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.FacetOptions;
+import com.google.appengine.api.search.FacetResult;
+import com.google.appengine.api.search.FacetResultValue;
 import com.google.appengine.api.search.GetRequest;
 import com.google.appengine.api.search.GetResponse;
 import com.google.appengine.api.search.Index;
-import com.google.appengine.api.search.IndexSpec;
+import com.google.appengine.api.search.PutResponse;
 import com.google.appengine.api.search.Query;
 import com.google.appengine.api.search.QueryOptions;
 import com.google.appengine.api.search.Results;
 import com.google.appengine.api.search.ScoredDocument;
-import com.google.appengine.api.search.SearchServiceFactory;
-import com.google.common.base.Function;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.apphosting.api.ApiProxy;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.Work;
 import static com.googlecode.objectify.ObjectifyService.ofy;
-import com.googlecode.objectify.VoidWork;
 import com.googlecode.objectify.cmd.LoadType;
 import java.lang.reflect.ParameterizedType;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Spliterators;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Base class implementing generic CRUD methods for instances of classes
@@ -41,9 +79,28 @@ public abstract class DatastoreBaseDao<E extends BaseEntity> implements BaseDao<
     private static final Map<Class<? extends BaseEntity>, Class<? extends DatastoreBaseDao>> DAOS_BY_ENTITY = new HashMap<>();
     private static final int MAX_SEARCH_LIMIT = 1000;
     private static final int MAX_COUNT_LIMIT = 25000;
+    private static final int DEFAULT_FACET_DEPTH = 1000;
+    private static final int DEFAULT_REINDEX_WORKERS = 4;
+    private static final int DEFAULT_STREAM_CHUNK_SIZE = 500;
+    private static final int MAX_FLUSH_BATCHES = 50;
+    private static final long OUTBOX_CONSISTENCY_MILLIS = 5000;
+    private static final ConcurrentMap<Class<?>, Long> SCHEDULED_FLUSHES = new ConcurrentHashMap<>();
+    private static final long DATASTORE_LATENCY_TARGET_MILLIS = 500;
+    private static final long SEARCH_LATENCY_TARGET_MILLIS = 1000;
 
     private final Class<E> entityClass;
-    private final Index searchIndex;
+    private final String kind;
+    private final SearchIndexVersion indexVersion;
+    private final WriteBehindIndexing writeBehind;
+    private volatile IndexOutbox indexOutbox;
+    private final EntityCache<E> entityCache;
+    private final SearchResultCache searchCache;
+    private final EntityCounters<E> counters;
+    private final DocumentFingerprints fingerprints;
+    private final IndexShards shards;
+    private final CircuitBreaker datastoreBreaker;
+    private final CircuitBreaker searchBreaker;
+    private final DaoMetrics metrics;
 
     /**
      * Constructor.
@@ -52,9 +109,28 @@ public abstract class DatastoreBaseDao<E extends BaseEntity> implements BaseDao<
         entityClass = (Class<E>) ((ParameterizedType) getClass().getGenericSuperclass())
                 .getActualTypeArguments()[0];
         ObjectifyService.factory().register(entityClass);
+        kind = Key.getKind(entityClass);
 
-        IndexSpec indexSpec = IndexSpec.newBuilder().setName(entityClass.getSimpleName()).build();
-        searchIndex = SearchServiceFactory.getSearchService().getIndex(indexSpec);
+        indexVersion = SearchIndexVersion.forIndex(entityClass.getSimpleName());
+        writeBehind = getClass().getAnnotation(WriteBehindIndexing.class);
+
+        CachedEntities cacheConfig = getClass().getAnnotation(CachedEntities.class);
+        entityCache = cacheConfig != null ? EntityCache.forClass(entityClass, cacheConfig) : null;
+
+        CachedSearches searchCacheConfig = getClass().getAnnotation(CachedSearches.class);
+        searchCache = searchCacheConfig != null ? SearchResultCache.forClass(entityClass, searchCacheConfig) : null;
+
+        MaintainedCounters countersConfig = getClass().getAnnotation(MaintainedCounters.class);
+        counters = countersConfig != null ? new EntityCounters<>(entityClass, countersConfig) : null;
+
+        FingerprintedIndexing fingerprintsConfig = getClass().getAnnotation(FingerprintedIndexing.class);
+        fingerprints = fingerprintsConfig != null ? new DocumentFingerprints(fingerprintsConfig) : null;
+
+        shards = new IndexShards(getClass().getAnnotation(ShardedIndex.class));
+
+        datastoreBreaker = CircuitBreaker.forBackend("datastore", entityClass, DATASTORE_LATENCY_TARGET_MILLIS);
+        searchBreaker = CircuitBreaker.forBackend("search", entityClass, SEARCH_LATENCY_TARGET_MILLIS);
+        metrics = DaoMetrics.forClass(entityClass);
 
         DAOS_BY_ENTITY.put(entityClass, this.getClass());
     }
@@ -67,12 +143,67 @@ public abstract class DatastoreBaseDao<E extends BaseEntity> implements BaseDao<
      */
     @Override
     public final E getById(final long id) {
-        return tryWithBackoff(new Callable<E>() {
-            @Override
-            public E call() throws Exception {
-                return getQuery().id(id).now();
+        long start = System.nanoTime();
+        try {
+            long loadStamp = 0;
+            if (entityCache != null) {
+                E cached = entityCache.get(id);
+                if (cached != null) {
+                    return cached;
+                }
+
+                loadStamp = entityCache.startLoad();
             }
-        });
+
+            RpcTrace.recordSingleLoad(kind);
+            E entity = tryWithBackoff(onDatastore(new Callable<E>() {
+                @Override
+                public E call() throws Exception {
+                    return getQuery().id(id).now();
+                }
+            }), metrics.retryPolicy(DaoMetrics.Operation.GET_BY_ID));
+
+            if (entityCache != null && entity != null) {
+                entityCache.put(entity, loadStamp);
+            }
+
+            return entity;
+        } catch (RuntimeException ex) {
+            metrics.recordFailure(DaoMetrics.Operation.GET_BY_ID);
+            throw ex;
+        } finally {
+            metrics.record(DaoMetrics.Operation.GET_BY_ID, start);
+        }
+    }
+
+    /**
+     * Gets several entities by id in a single DataStore batch get, through the entity cache if
+     * enabled.
+     *
+     * @param ids the ids of the entities to be retrieved.
+     * @return the entities in the order of their ids, skipping the ones that don't exist.
+     */
+    @Override
+    public final List<E> getByIds(Collection<Long> ids) {
+        long start = System.nanoTime();
+        try {
+            final List<Long> idList = new ArrayList<>(ids);
+            if (idList.isEmpty()) {
+                return new ArrayList<>();
+            }
+
+            return tryWithBackoff(new Callable<List<E>>() {
+                @Override
+                public List<E> call() throws Exception {
+                    return loadByIds(idList);
+                }
+            }, metrics.retryPolicy(DaoMetrics.Operation.GET_BY_IDS));
+        } catch (RuntimeException ex) {
+            metrics.recordFailure(DaoMetrics.Operation.GET_BY_IDS);
+            throw ex;
+        } finally {
+            metrics.record(DaoMetrics.Operation.GET_BY_IDS, start);
+        }
     }
 
     /**
@@ -92,16 +223,103 @@ public abstract class DatastoreBaseDao<E extends BaseEntity> implements BaseDao<
      */
     @Override
     public final void delete(final long id) {
+        long start = System.nanoTime();
+        try {
+            Map<Long, List<String>> before = countedState(Collections.singletonList(id));
 
-        tryWithBackoff(new Callable<Boolean>() {
-            @Override
-            public Boolean call() {
-                ofy().delete().type(entityClass).id(id);
-                searchIndex.delete(id + "");
-                return true;
+            tryWithBackoff(onDatastore(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    ofy().delete().type(entityClass).id(id).now();
+                    return true;
+                }
+            }), metrics.retryPolicy(DaoMetrics.Operation.DELETE));
+
+            tryWithBackoff(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    if (writeBehind != null) {
+                        enqueueForIndexing(Collections.singletonList(id));
+                    } else {
+                        deleteDocument(id + "");
+                    }
+                    return true;
+                }
+            }, metrics.retryPolicy(DaoMetrics.Operation.INDEX));
+
+            entitiesChanged(Collections.singletonList(id));
+            if (before != null) {
+                updateCounters(null, before);
             }
-        });
+        } catch (RuntimeException ex) {
+            metrics.recordFailure(DaoMetrics.Operation.DELETE);
+            throw ex;
+        } finally {
+            metrics.record(DaoMetrics.Operation.DELETE, start);
+        }
+    }
+
+    /**
+     * Deletes several entities by id.
+     *
+     * The entities are deleted from the DataStore in batches of at most
+     * {@value BatchWriter#DATASTORE_BATCH_SIZE}, and their documents are deleted from every index
+     * version being written in concurrent batches of at most
+     * {@value Reindexer#MAX_DOCUMENTS_PER_PUT}. Ids of entities that don't exist are ignored.
+     *
+     * @param ids the ids of the entities to be deleted.
+     */
+    @Override
+    public final void deleteAll(Collection<Long> ids) {
+        long start = System.nanoTime();
+        try {
+            final List<Long> idList = new ArrayList<>(ids);
+            if (idList.isEmpty()) {
+                return;
+            }
+
+            Map<Long, List<String>> before = countedState(idList);
+
+            for (final List<Long> batch : Lists.partition(idList, BatchWriter.DATASTORE_BATCH_SIZE)) {
+                tryWithBackoff(onDatastore(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        ofy().delete().type(entityClass).ids(batch).now();
+                        return true;
+                    }
+                }), metrics.retryPolicy(DaoMetrics.Operation.DELETE_ALL));
+            }
+
+            final List<String> documentIds = new ArrayList<>(idList.size());
+            for (Long id : idList) {
+                documentIds.add(id.toString());
+            }
+
+            tryWithBackoff(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    if (writeBehind != null) {
+                        enqueueForIndexing(idList);
+                    } else {
+                        documentsRemoved(documentIds);
+                        for (Future<Void> delete : deleteDocumentsAsync(documentIds)) {
+                            delete.get();
+                        }
+                    }
+                    return true;
+                }
+            }, metrics.retryPolicy(DaoMetrics.Operation.INDEX));
 
+            entitiesChanged(idList);
+            if (before != null) {
+                updateCounters(null, before);
+            }
+        } catch (RuntimeException ex) {
+            metrics.recordFailure(DaoMetrics.Operation.DELETE_ALL);
+            throw ex;
+        } finally {
+            metrics.record(DaoMetrics.Operation.DELETE_ALL, start);
+        }
     }
 
     /**
@@ -113,222 +331,2152 @@ public abstract class DatastoreBaseDao<E extends BaseEntity> implements BaseDao<
      */
     @Override
     public final Long save(final E entity) {
-        long id = tryWithBackoff(new Callable<Long>() {
-            @Override
-            public Long call() throws Exception {
-                long id = ofy().save().entity(entity).now().getId();
+        long start = System.nanoTime();
+        try {
+            Map<Long, List<String>> before = countedState(Collections.singletonList(entity.getId()));
 
-                searchIndex.put(entity.toDocument());
-                return id;
-            }
-        });
+            final long id = tryWithBackoff(onDatastore(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return ofy().save().entity(entity).now().getId();
+                }
+            }), metrics.retryPolicy(DaoMetrics.Operation.SAVE));
 
-        entity.setId(id);
-        afterSave(entity);
+            entity.setId(id);
+            tryWithBackoff(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    if (writeBehind != null) {
+                        enqueueForIndexing(Collections.singletonList(id));
+                    } else {
+                        putDocument(entity.toDocument());
+                    }
+                    return true;
+                }
+            }, metrics.retryPolicy(DaoMetrics.Operation.INDEX));
+
+            entitiesChanged(Collections.singletonList(id));
+            if (before != null) {
+                updateCounters(Collections.singletonList(entity), before);
+            }
+            afterSave(entity);
 
-        return id;
+            return id;
+        } catch (RuntimeException ex) {
+            metrics.recordFailure(DaoMetrics.Operation.SAVE);
+            throw ex;
+        } finally {
+            metrics.record(DaoMetrics.Operation.SAVE, start);
+        }
     }
 
     /**
-     * Saves a batch of entities.
+     * Gets an entity by its id without blocking the calling thread.
      *
-     * @param entities the entities to be saved. *
+     * @param id the id of the entity to be retreived.
+     * @return the eventual entity, or null if it doesn't exist.
+     * @see #getById(long)
      */
     @Override
-    public final void batchSave(final List<E> entities) {
-        ofy().transact(new VoidWork() {
+    public final CompletableFuture<E> getByIdAsync(final long id) {
+        long start = System.nanoTime();
+        RpcTrace.recordSingleLoad(kind);
+        return measured(DaoMetrics.Operation.GET_BY_ID, start, attemptAsync(new AsyncAttempt<List<E>>() {
             @Override
-            public void vrun() {
-                ofy().save().entities(entities);
+            public Callable<List<E>> start() throws Exception {
+                return startLoadByIds(ObjectifyService.factory().begin(), Collections.singletonList(id));
             }
-        });
-
-        searchIndex.putAsync(Lists.transform(entities, new Function<E, Document>() {
+        }, DaoMetrics.Operation.GET_BY_ID).thenApply(new Function<List<E>, E>() {
             @Override
-            public Document apply(E f) {
-                return f.toDocument();
+            public E apply(List<E> found) {
+                return found.isEmpty() ? null : found.get(0);
             }
         }));
     }
 
     /**
-     * Returns all entites.
+     * Deletes an entity by id without blocking the calling thread.
      *
-     * @return All entities in a list.
+     * @param id the id of the entity to be deleted.
+     * @return a future completed when the entity has been deleted and unindexed.
+     * @see #delete(long)
      */
     @Override
-    public final List<E> list() {
-        return tryWithBackoff(new Callable<List<E>>() {
-            @Override
-            public List<E> call() throws Exception {
-                return getQuery().list();
-            }
-        });
+    public final CompletableFuture<Void> deleteAsync(final long id) {
+        long start = System.nanoTime();
+        return measured(DaoMetrics.Operation.DELETE, start, countedStateAsync(Collections.singletonList(id))
+                .thenCompose(new Function<Map<Long, List<String>>, CompletionStage<Void>>() {
+                    @Override
+                    public CompletionStage<Void> apply(final Map<Long, List<String>> before) {
+                        return attemptAsync(onDatastore(new AsyncAttempt<Boolean>() {
+                            @Override
+                            public Callable<Boolean> start() {
+                                final Result<Void> deleted = ObjectifyService.factory().begin()
+                                        .delete().type(entityClass).id(id);
+                                return new Callable<Boolean>() {
+                                    @Override
+                                    public Boolean call() {
+                                        deleted.now();
+                                        return true;
+                                    }
+                                };
+                            }
+                        }), DaoMetrics.Operation.DELETE).thenCompose(new Function<Boolean, CompletionStage<Boolean>>() {
+                            @Override
+                            public CompletionStage<Boolean> apply(Boolean deleted) {
+                                if (writeBehind != null) {
+                                    return attemptAsync(new Callable<Boolean>() {
+                                        @Override
+                                        public Boolean call() throws Exception {
+                                            enqueueForIndexing(Collections.singletonList(id));
+                                            return true;
+                                        }
+                                    }, DaoMetrics.Operation.INDEX);
+                                }
+
+                                return attemptAsync(new AsyncAttempt<Boolean>() {
+                                    @Override
+                                    public Callable<Boolean> start() throws Exception {
+                                        return startDocumentsDeletion(Collections.singletonList(id + ""));
+                                    }
+                                }, DaoMetrics.Operation.INDEX);
+                            }
+                        }).thenApply(new Function<Boolean, Void>() {
+                            @Override
+                            public Void apply(Boolean unindexed) {
+                                entitiesChanged(Collections.singletonList(id));
+                                if (before != null) {
+                                    updateCounters(null, before);
+                                }
+                                return null;
+                            }
+                        });
+                    }
+                }));
     }
 
     /**
-     * Searchs for an entity given a query string.
+     * Saves an entity (new or updated) without blocking the calling thread.
      *
-     * See https://cloud.google.com/appengine/docs/java/search/query_strings
+     * The entity's id is set once it has been written to the DataStore, so it must not be
+     * changed until the returned future completes.
      *
-     * @param queryString the query string
-     * @return the entities that match the query
+     * @param entity the entity to create (if doesn't have id) or update (if has id).
+     * @return the eventual id of the saved entity, completed once it has also been indexed.
+     * @see #save(BaseEntity)
      */
     @Override
-    public final Collection<E> search(String queryString) {
-        return this.search(queryString, 0, MAX_SEARCH_LIMIT);
+    public final CompletableFuture<Long> saveAsync(final E entity) {
+        long start = System.nanoTime();
+        return measured(DaoMetrics.Operation.SAVE, start, countedStateAsync(Collections.singletonList(entity.getId()))
+                .thenCompose(new Function<Map<Long, List<String>>, CompletionStage<Long>>() {
+                    @Override
+                    public CompletionStage<Long> apply(final Map<Long, List<String>> before) {
+                        return attemptAsync(onDatastore(new AsyncAttempt<Long>() {
+                            @Override
+                            public Callable<Long> start() {
+                                final Result<Key<E>> saved = ObjectifyService.factory().begin().save().entity(entity);
+                                return new Callable<Long>() {
+                                    @Override
+                                    public Long call() {
+                                        return saved.now().getId();
+                                    }
+                                };
+                            }
+                        }), DaoMetrics.Operation.SAVE).thenCompose(new Function<Long, CompletionStage<Long>>() {
+                            @Override
+                            public CompletionStage<Long> apply(final Long id) {
+                                entity.setId(id);
+                                if (writeBehind != null) {
+                                    return attemptAsync(new Callable<Long>() {
+                                        @Override
+                                        public Long call() throws Exception {
+                                            enqueueForIndexing(Collections.singletonList(id));
+                                            return id;
+                                        }
+                                    }, DaoMetrics.Operation.INDEX);
+                                }
+
+                                return attemptAsync(new AsyncAttempt<Boolean>() {
+                                    @Override
+                                    public Callable<Boolean> start() throws Exception {
+                                        return startDocumentsPut(changedDocuments(Collections.singletonList(entity.toDocument())));
+                                    }
+                                }, DaoMetrics.Operation.INDEX).thenApply(new Function<Boolean, Long>() {
+                                    @Override
+                                    public Long apply(Boolean indexed) {
+                                        return id;
+                                    }
+                                });
+                            }
+                        }).thenApply(new Function<Long, Long>() {
+                            @Override
+                            public Long apply(final Long id) {
+                                entitiesChanged(Collections.singletonList(id));
+                                if (before != null) {
+                                    updateCounters(Collections.singletonList(entity), before);
+                                }
+                                return callInObjectifyContext(new Callable<Long>() {
+                                    @Override
+                                    public Long call() throws Exception {
+                                        afterSave(entity);
+                                        return id;
+                                    }
+                                });
+                            }
+                        });
+                    }
+                }));
     }
 
     /**
-     * Paginated searchs for an entity given a query string.
+     * Saves a batch of entities.
      *
-     * See https://cloud.google.com/appengine/docs/java/search/query_strings
+     * Entities are written in chunks of at most {@value BatchWriter#DATASTORE_BATCH_SIZE}, each
+     * one in a single DataStore put (not in a transaction, as they can't span that many entity
+     * groups), and indexed in puts of at most {@value Reindexer#MAX_DOCUMENTS_PER_PUT} documents
+     * while the next chunk is being saved.
      *
-     * @param queryString the query string
-     * @param offset the index of the first result to be retrieved
-     * @param limit the number of results to be retrieved (page size)
-     * @return the entities that match the query
+     * @param entities the entities to be saved.
+     * @return the outcome of the save, reported per chunk of entities.
      */
     @Override
-    public final Collection<E> search(String queryString, int offset, int limit) {
-        final Query query = Query.newBuilder().setOptions(
-                QueryOptions.newBuilder()
-                .setLimit(limit)
-                .setOffset(offset)
-                .setFieldsToReturn("id"))
-                .build(queryString);
+    public final BatchSaveResult batchSave(final List<E> entities) {
+        long start = System.nanoTime();
+        try {
+            BatchWriter<E> writer = newBatchWriter();
+            writer.addAll(entities);
+            return writer.finish();
+        } catch (RuntimeException ex) {
+            metrics.recordFailure(DaoMetrics.Operation.BATCH_SAVE);
+            throw ex;
+        } finally {
+            metrics.record(DaoMetrics.Operation.BATCH_SAVE, start);
+        }
+    }
 
-        return tryWithBackoff(new Callable<Collection<E>>() {
-            @Override
-            public Collection<E> call() throws Exception {
-                Results<ScoredDocument> searchResults = searchIndex.search(query);
+    /**
+     * Creates a writer to save entities in pipelined chunks without holding them all in memory.
+     *
+     * @return the writer.
+     * @see #batchSave(List)
+     */
+    public final BatchWriter<E> newBatchWriter() {
+        return new BatchWriter<>(this);
+    }
 
-                List<Long> ids = new ArrayList<>();
-                for (ScoredDocument result : searchResults) {
-                    ids.add(Long.valueOf(result.getId()));
-                }
+    /**
+     * Starts saving a chunk of entities to the DataStore.
+     *
+     * @param entities the entities.
+     * @return the pending result of the save, recorded in the request trace once waited for.
+     */
+    Result<Map<Key<E>, E>> saveEntitiesAsync(List<E> entities) {
+        datastoreBreaker.checkAvailable();
+        final RpcTrace.PendingRpc rpc = RpcTrace.startAsync(RpcTrace.Backend.DATASTORE, kind);
+        final Result<Map<Key<E>, E>> save = ofy().save().entities(entities);
+        rpc.track();
 
-                Map<Long, E> entities = getQuery().ids(ids);
-                return entities.values();
+        return new Result<Map<Key<E>, E>>() {
+            @Override
+            public Map<Key<E>, E> now() {
+                try {
+                    return save.now();
+                } finally {
+                    rpc.finished();
+                }
             }
-        });
+        };
     }
 
     /**
-     * Searchs for entities given a AppEngine's query string and query options.
+     * Invalidates the cached copies of some entities right after they are written, before their
+     * documents are indexed; {@link #entitiesChanged(List)} must still be called once they are.
      *
-     * @param queryString the query string to search for
-     * @param options the query options object see
-     * https://cloud.google.com/appengine/docs/java/search/options
-     * @return the search result.
+     * @param ids the ids of the written entities.
      */
-    public final Collection<E> search(String queryString, QueryOptions options) {
-        final Query query = Query.newBuilder().setOptions(options).build(queryString);
+    void entitiesWritten(List<Long> ids) {
+        if (entityCache != null) {
+            entityCache.invalidate(ids);
+        }
+    }
 
-        return tryWithBackoff(new Callable<Collection<E>>() {
+    /**
+     * Keeps the dao's derived state (such as the entity cache) on par after some entities have
+     * been saved or deleted and their documents indexed, so cached searches can't be repopulated
+     * from the previous documents.
+     *
+     * @param ids the ids of the changed entities.
+     * @throws IllegalStateException if the cached searches can't be invalidated.
+     */
+    void entitiesChanged(List<Long> ids) {
+        if (entityCache != null) {
+            entityCache.invalidate(ids);
+        }
+
+        if (searchCache != null && writeBehind == null) {
+            searchCache.bumpGeneration();
+        }
+    }
+
+    /**
+     * Gets the state of some stored entities tracked by the maintained counters, to be taken
+     * before they are changed.
+     *
+     * @param ids the ids of the entities, null for new ones.
+     * @return the counted dimensions by id, or null if the dao doesn't maintain counters.
+     * @see MaintainedCounters
+     */
+    Map<Long, List<String>> countedState(final List<Long> ids) {
+        if (counters == null) {
+            return null;
+        }
+
+        return tryWithBackoff(onDatastore(new Callable<Map<Long, List<String>>>() {
             @Override
-            public Collection<E> call() throws Exception {
+            public Map<Long, List<String>> call() throws Exception {
+                return counters.snapshot(ids);
+            }
+        }), metrics.retryPolicy(DaoMetrics.Operation.SAVE));
+    }
 
-                Results<ScoredDocument> searchResults = searchIndex.search(query);
+    /**
+     * Gets the state of some stored entities tracked by the maintained counters without
+     * blocking the calling thread.
+     *
+     * @param ids the ids of the entities, null for new ones.
+     * @return the eventual counted dimensions by id, or null if the dao doesn't maintain counters.
+     * @see #countedState(List)
+     */
+    private CompletableFuture<Map<Long, List<String>>> countedStateAsync(final List<Long> ids) {
+        if (counters == null) {
+            return CompletableFuture.completedFuture(null);
+        }
 
-                List<Long> ids = new ArrayList<>();
-                for (ScoredDocument result : searchResults) {
-                    ids.add(Long.valueOf(result.getId()));
-                }
+        return attemptAsync(onDatastore(new Callable<Map<Long, List<String>>>() {
+            @Override
+            public Map<Long, List<String>> call() throws Exception {
+                return counters.snapshot(ids);
+            }
+        }), DaoMetrics.Operation.SAVE);
+    }
 
-                Map<Long, E> entities = getQuery().ids(ids);
-                return entities.values();
+    /**
+     * Updates the maintained counters after some entities have been saved or deleted.
+     *
+     * Failures are logged and don't fail the write, which is already done, so the counters drift
+     * until they are fixed with {@link #rebuildCounters()}.
+     *
+     * @param saved the saved entities, or null if they were deleted.
+     * @param before the state of the entities before the change.
+     */
+    void updateCounters(List<E> saved, Map<Long, List<String>> before) {
+        try {
+            if (saved != null) {
+                counters.saved(saved, before);
+            } else {
+                counters.deleted(before);
             }
-        });
+        } catch (RuntimeException ex) {
+            LOG.log(Level.SEVERE, "Couldn't update the counters of " + entityClass.getSimpleName(), ex);
+        }
     }
 
     /**
-     * Counts the total results available for a given query.
+     * Recounts all the entities and replaces the maintained counters, which aren't used by
+     * {@link #count(String)} until this has been run once. Running it periodically repairs the
+     * drift of the counters.
      *
-     * @param queryString the query
-     * @return the total result count
+     * Changes made while counting are not reflected, so it should be run when the entities
+     * aren't being written.
+     *
+     * @return the number of entities counted.
+     * @throws IllegalStateException if the dao doesn't maintain counters.
+     * @see MaintainedCounters
      */
-    @Override
+    public final long rebuildCounters() {
+        if (counters == null) {
+            throw new IllegalStateException(getClass().getSimpleName() + " doesn't maintain counters.");
+        }
 
-    public final long count(String queryString) {
-        final Query query = Query.newBuilder().setOptions(QueryOptions.newBuilder()
-                .setLimit(1)
-                .setFieldsToReturn("id")
-                .setNumberFoundAccuracy(MAX_COUNT_LIMIT))
-                .build(queryString);
+        long count = counters.rebuild();
+        if (searchCache != null) {
+            searchCache.bumpGeneration();
+        }
 
-        return tryWithBackoff(new Callable<Long>() {
-            @Override
-            public Long call() throws Exception {
+        return count;
+    }
+
+    /**
+     * Gets the hit and miss counters of the entity cache, for monitoring.
+     *
+     * @return the counters by name, empty if the dao doesn't cache entities.
+     * @see CachedEntities
+     */
+    public final Map<String, Long> getCacheStats() {
+        if (entityCache == null) {
+            return Collections.emptyMap();
+        }
+
+        return entityCache.getStats();
+    }
+
+    /**
+     * Prepares the indexing of a chunk of saved entities: queues them if the dao uses
+     * write-behind indexing, or builds the documents to be written to the index otherwise.
+     *
+     * @param entities the entities.
+     * @return the documents to be written, without the ones already indexed as they are if the
+     * dao fingerprints its documents; empty if the entities were queued.
+     */
+    List<Document> documentsToIndex(List<E> entities) {
+        if (writeBehind != null) {
+            enqueueForIndexing(idsOf(entities));
+            return Collections.emptyList();
+        }
 
-                Results<ScoredDocument> searchResults = searchIndex.search(query);
-                return searchResults.getNumberFound();
+        return changedDocuments(toDocuments(entities));
+    }
+
+    /**
+     * Starts writing documents to every index version being written.
+     *
+     * @param documents the documents.
+     * @return the pending puts, to be followed by {@link #documentsIndexed(List)} once they
+     * succeed.
+     */
+    List<Future<PutResponse>> indexDocumentsAsync(List<Document> documents) {
+        if (documents.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        return putDocumentsAsync(documents);
+    }
+
+    /**
+     * Writes documents to every index version being written, waiting for every put.
+     *
+     * @param documents the documents.
+     * @see #indexDocumentsAsync(List)
+     */
+    void indexDocuments(List<Document> documents) {
+        if (documents.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        CircuitBreaker.Permit permit = searchBreaker.acquire();
+        try {
+            for (String indexName : getWriteIndexNames(documentIdsOf(documents))) {
+                List<Index> indexes = shards.indexes(indexName);
+                List<List<Document>> documentsByShard = shards.split(documents);
+                for (int shard = 0; shard < indexes.size(); shard++) {
+                    for (List<Document> batch
+                            : Lists.partition(documentsByShard.get(shard), Reindexer.MAX_DOCUMENTS_PER_PUT)) {
+                        indexes.get(shard).put(batch);
+                    }
+                }
             }
-        });
+            permit.release(null);
+        } catch (RuntimeException ex) {
+            permit.release(ex);
+            throw ex;
+        } finally {
+            RpcTrace.record(RpcTrace.Backend.SEARCH, kind, start);
+        }
+
+        documentsIndexed(documents);
     }
 
     /**
-     * Returns a query object to operate on DataStore.
+     * Filters the documents that aren't in the index as they are, if the dao fingerprints its
+     * documents. Documents are never skipped while the index is being rebuilt, as the version
+     * being built may not have them yet.
      *
-     * @return the query object.
+     * @param documents the documents to be written.
+     * @return the documents that must be written.
+     * @see FingerprintedIndexing
      */
-    protected final LoadType<E> getQuery() {
-        return ofy().load().type(entityClass);
+    private List<Document> changedDocuments(List<Document> documents) {
+        if (fingerprints == null || documents.isEmpty()) {
+            return documents;
+        }
+
+        List<String> indexNames = getWriteIndexNames();
+        if (indexNames.size() > 1) {
+            return documents;
+        }
+
+        List<Document> changed = fingerprints.changed(indexNames.get(0), documents);
+        metrics.recordSkippedIndexWrites(documents.size() - changed.size());
+        return changed;
     }
 
     /**
-     * Returns the dao class associated to a given entity.
+     * Records the fingerprints of documents written to the index, if the dao fingerprints its
+     * documents.
      *
-     * @param entityClass the full name of the entity class
-     * @return the dao class.
+     * @param documents the written documents.
      */
-    public static Class<? extends DatastoreBaseDao> getDaoForEntity(Class<? extends BaseEntity> entityClass) {
-        return DAOS_BY_ENTITY.get(entityClass);
+    void documentsIndexed(List<Document> documents) {
+        if (fingerprints != null && !documents.isEmpty()) {
+            fingerprints.written(getSearchIndexName(), documents);
+        }
     }
 
     /**
-     * Extension point to override to execute custom actions after the entity is
-     * saved with save().
+     * Forgets the fingerprints of documents about to be deleted from the index, if the dao
+     * fingerprints its documents.
      *
-     * @param entity the saved entity.
+     * @param documentIds the ids of the documents.
      */
-    protected void afterSave(E entity) {
+    private void documentsRemoved(List<String> documentIds) {
+        if (fingerprints != null && !documentIds.isEmpty()) {
+            fingerprints.removed(getSearchIndexName(), documentIds);
+        }
+    }
 
+    /**
+     * Writes the queued changes of a dao with write-behind indexing to the search index.
+     *
+     * The latest state of every queued entity is read from the DataStore and written in puts of
+     * at most {@value Reindexer#MAX_DOCUMENTS_PER_PUT} documents; entities that don't exist
+     * anymore are deleted from the index. Entities are only removed from the queue once written,
+     * so a flush that fails or is interrupted is picked up by the next one.
+     *
+     * The queue may not show the latest changes yet, so a follow-up flush is scheduled after
+     * every flush, until one of them finds the queue empty.
+     *
+     * @return the number of entities flushed.
+     * @see WriteBehindIndexing
+     */
+    public final int flushIndexOutbox() {
+        return flushIndexOutbox(false);
     }
 
     /**
-     * Reindexes the Search index so its contents are on par with the DataStore.
+     * Writes the queued changes of a dao with write-behind indexing to the search index.
      *
-     * @return the number of entities reindexed
+     * @param followUp whether the flush follows a previous one, so it ends the series of flushes
+     * if it finds the queue empty.
+     * @return the number of entities flushed.
      */
-    public long reindex() {
-        long count = 0;
+    final int flushIndexOutbox(boolean followUp) {
+        long start = System.nanoTime();
+        try {
+            IndexOutbox outbox = getIndexOutbox();
 
-        GetRequest r = GetRequest.newBuilder().setReturningIdsOnly(true).build();
+            Set<Long> flushedIds = new HashSet<>();
+            int flushed = 0;
+            for (int batchNumber = 0; batchNumber < MAX_FLUSH_BATCHES; batchNumber++) {
+                final IndexOutbox.Batch batch = outbox.peek(Reindexer.MAX_DOCUMENTS_PER_PUT);
+                // the queue may still list entries this flush has removed
+                if (flushedIds.containsAll(batch.getIds())) {
+                    if (flushed > 0 || !followUp) {
+                        scheduleFlush(true);
+                    }
+                    return flushed;
+                }
 
-        GetResponse<Document> toDelete;
-        while (true) {
-            toDelete = searchIndex.getRange(r);
+                try {
+                    tryWithBackoff(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            writeIndexedState(batch.getIds());
+                            return true;
+                        }
+                    }, metrics.retryPolicy(DaoMetrics.Operation.INDEX));
+                } catch (RuntimeException ex) {
+                    scheduleFlush(true);
+                    throw ex;
+                }
+                outbox.acknowledge(batch);
 
-            if (toDelete.getResults().isEmpty()) {
-                break;
+                flushedIds.addAll(batch.getIds());
+                flushed += batch.getIds().size();
+                if (searchCache != null) {
+                    searchCache.bumpGeneration();
+                }
             }
 
-            final List<String> ids = new ArrayList<>();
-            for (Document d : toDelete.getResults()) {
-                ids.add(d.getId());
+            scheduleFlush(true);
+            return flushed;
+        } catch (RuntimeException ex) {
+            metrics.recordFailure(DaoMetrics.Operation.INDEX);
+            throw ex;
+        } finally {
+            metrics.record(DaoMetrics.Operation.INDEX, start);
+        }
+    }
+
+    /**
+     * Extension point to override to provide the outbox used by write-behind indexing, e.g. an
+     * {@link InMemoryIndexOutbox} in tests.
+     *
+     * @return the outbox, by default backed by the DataStore.
+     */
+    protected IndexOutbox createIndexOutbox() {
+        return new DatastoreIndexOutbox(indexVersion.getBaseName());
+    }
+
+    private IndexOutbox getIndexOutbox() {
+        if (indexOutbox == null) {
+            indexOutbox = createIndexOutbox();
+        }
+
+        return indexOutbox;
+    }
+
+    private void enqueueForIndexing(List<Long> ids) {
+        getIndexOutbox().enqueue(ids);
+        scheduleFlush(false);
+    }
+
+    /**
+     * Schedules a flush of the index outbox, at most once per flush delay period and app instance
+     * unless it follows up a previous flush. Tasks are named after the period, so other app
+     * instances don't schedule the same flush again, and run after the period ends, so they come
+     * after every change queued in it.
+     */
+    private void scheduleFlush(boolean followUp) {
+        long delayMillis = Math.max(1000, TimeUnit.SECONDS.toMillis(writeBehind.flushDelaySeconds()));
+        long period = System.currentTimeMillis() / delayMillis;
+
+        TaskOptions task = TaskOptions.Builder
+                .withPayload(new FlushIndexOutboxTask(getClass(), followUp))
+                .countdownMillis(followUp ? Math.max(delayMillis, OUTBOX_CONSISTENCY_MILLIS) : delayMillis);
+        if (!followUp) {
+            Long scheduled = SCHEDULED_FLUSHES.put(getClass(), period);
+            if (scheduled != null && scheduled == period) {
+                return;
             }
 
-            searchIndex.delete(ids);
+            task = task.taskName("flush-index-" + indexVersion.getBaseName() + "-" + period);
         }
 
-        List<E> list = this.list();
-        for (E e : list) {
-            searchIndex.put(e.toDocument());
-            count++;
+        try {
+            QueueFactory.getDefaultQueue().add(task);
+        } catch (TaskAlreadyExistsException ex) {
+            LOG.finest("Index outbox flush already scheduled by another instance");
         }
+    }
 
-        return count;
+    /**
+     * Writes the current state of some entities to every index version being written.
+     */
+    private void writeIndexedState(List<Long> ids) throws InterruptedException, ExecutionException {
+        Map<Long, E> entities = ObjectifyService.factory().begin().load().type(entityClass).ids(ids);
+
+        List<Document> documents = new ArrayList<>();
+        List<String> deleted = new ArrayList<>();
+        for (Long id : ids) {
+            E entity = entities.get(id);
+            if (entity == null) {
+                deleted.add(id.toString());
+            } else {
+                documents.add(entity.toDocument());
+            }
+        }
+
+        documents = changedDocuments(documents);
+        documentsRemoved(deleted);
+
+        List<Future<?>> pending = new ArrayList<>();
+        if (!documents.isEmpty()) {
+            pending.addAll(putDocumentsAsync(documents));
+        }
+        if (!deleted.isEmpty()) {
+            pending.addAll(deleteDocumentsAsync(deleted));
+        }
+        for (Future<?> operation : pending) {
+            operation.get();
+        }
+
+        documentsIndexed(documents);
+    }
+
+    /**
+     * Starts putting documents in every index version being written without waiting for the
+     * puts, guarded by the search circuit breaker.
+     *
+     * @param documents the documents.
+     * @return a call waiting for the puts, which records the documents as indexed once they
+     * succeed.
+     */
+    private Callable<Boolean> startDocumentsPut(final List<Document> documents) throws Exception {
+        if (documents.isEmpty()) {
+            return completed(true);
+        }
+
+        return onSearch(new AsyncAttempt<Boolean>() {
+            @Override
+            public Callable<Boolean> start() {
+                final List<Future<PutResponse>> puts = putInWriteIndexesAsync(documents);
+                return new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        for (Future<PutResponse> put : puts) {
+                            await(put);
+                        }
+                        documentsIndexed(documents);
+                        return true;
+                    }
+                };
+            }
+        }).start();
+    }
+
+    /**
+     * Starts deleting documents from every index version being written without waiting for the
+     * deletes, guarded by the search circuit breaker.
+     *
+     * @param documentIds the ids of the documents.
+     * @return a call waiting for the deletes.
+     */
+    private Callable<Boolean> startDocumentsDeletion(final List<String> documentIds) throws Exception {
+        documentsRemoved(documentIds);
+        return onSearch(new AsyncAttempt<Boolean>() {
+            @Override
+            public Callable<Boolean> start() {
+                final List<Future<Void>> deletes = deleteFromWriteIndexesAsync(documentIds);
+                return new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        for (Future<Void> delete : deletes) {
+                            await(delete);
+                        }
+                        return true;
+                    }
+                };
+            }
+        }).start();
+    }
+
+    private List<Future<PutResponse>> putDocumentsAsync(List<Document> documents) {
+        searchBreaker.checkAvailable();
+        RpcTrace.PendingRpc rpc = RpcTrace.startAsync(RpcTrace.Backend.SEARCH, kind);
+
+        List<Future<PutResponse>> puts = new ArrayList<>();
+        for (Future<PutResponse> put : putInWriteIndexesAsync(documents)) {
+            puts.add(rpc.track(put));
+        }
+
+        return puts;
+    }
+
+    private List<Future<PutResponse>> putInWriteIndexesAsync(List<Document> documents) {
+        List<Future<PutResponse>> puts = new ArrayList<>();
+        for (String indexName : getWriteIndexNames(documentIdsOf(documents))) {
+            List<Index> indexes = shards.indexes(indexName);
+            List<List<Document>> documentsByShard = shards.split(documents);
+            for (int shard = 0; shard < indexes.size(); shard++) {
+                for (List<Document> batch
+                        : Lists.partition(documentsByShard.get(shard), Reindexer.MAX_DOCUMENTS_PER_PUT)) {
+                    puts.add(indexes.get(shard).putAsync(batch));
+                }
+            }
+        }
+
+        return puts;
+    }
+
+    private List<Future<Void>> deleteDocumentsAsync(List<String> documentIds) {
+        searchBreaker.checkAvailable();
+        RpcTrace.PendingRpc rpc = RpcTrace.startAsync(RpcTrace.Backend.SEARCH, kind);
+
+        List<Future<Void>> deletes = new ArrayList<>();
+        for (Future<Void> delete : deleteFromWriteIndexesAsync(documentIds)) {
+            deletes.add(rpc.track(delete));
+        }
+
+        return deletes;
+    }
+
+    private List<Future<Void>> deleteFromWriteIndexesAsync(List<String> documentIds) {
+        List<Future<Void>> deletes = new ArrayList<>();
+        for (String indexName : getWriteIndexNames(documentIds)) {
+            List<Index> indexes = shards.indexes(indexName);
+            List<List<String>> idsByShard = shards.splitIds(documentIds);
+            for (int shard = 0; shard < indexes.size(); shard++) {
+                for (List<String> batch : Lists.partition(idsByShard.get(shard), Reindexer.MAX_DOCUMENTS_PER_PUT)) {
+                    deletes.add(indexes.get(shard).deleteAsync(batch));
+                }
+            }
+        }
+
+        return deletes;
+    }
+
+    private List<Document> toDocuments(List<E> entities) {
+        List<Document> documents = new ArrayList<>(entities.size());
+        for (E entity : entities) {
+            documents.add(entity.toDocument());
+        }
+
+        return documents;
+    }
+
+    static List<Long> idsOf(List<? extends BaseEntity> entities) {
+        List<Long> ids = new ArrayList<>(entities.size());
+        for (BaseEntity entity : entities) {
+            ids.add(entity.getId());
+        }
+
+        return ids;
+    }
+
+    /**
+     * Returns all entites.
+     *
+     * The whole kind is loaded in memory in a single query, so kinds that may not fit should be
+     * read with {@link #stream()}, {@link #iterate(int)} or {@link #forEachChunk(int, ChunkHandler)}.
+     *
+     * @return All entities in a list.
+     */
+    @Override
+    public final List<E> list() {
+        long start = System.nanoTime();
+        try {
+            return tryWithBackoff(onDatastore(new Callable<List<E>>() {
+                @Override
+                public List<E> call() throws Exception {
+                    // Objectify returns a lazy list: copying it waits for the RPC inside the guarded call
+                    return new ArrayList<>(getQuery().list());
+                }
+            }), metrics.retryPolicy(DaoMetrics.Operation.LIST));
+        } catch (RuntimeException ex) {
+            metrics.recordFailure(DaoMetrics.Operation.LIST);
+            throw ex;
+        } finally {
+            metrics.record(DaoMetrics.Operation.LIST, start);
+        }
+    }
+
+    /**
+     * Streams all the entities, read in chunks of {@value #DEFAULT_STREAM_CHUNK_SIZE} with
+     * DataStore query cursors. Parallel streams split the kind by key ranges, and the chunks of
+     * every range are read in the App Engine environment of the calling request, so the stream
+     * must be consumed before the request ends.
+     *
+     * @return the entities, in key order.
+     */
+    @Override
+    public final Stream<E> stream() {
+        return StreamSupport.stream(new KeyRangeSpliterator<>(entityClass, DEFAULT_STREAM_CHUNK_SIZE,
+                metrics.retryPolicy(DaoMetrics.Operation.LIST)), false);
+    }
+
+    /**
+     * Iterates over all the entities, read in chunks with DataStore query cursors. The next
+     * chunk is read while the current one is being iterated, so at most two chunks are held in
+     * memory.
+     *
+     * @param chunkSize the number of entities read at a time.
+     * @return the entities, in key order.
+     */
+    @Override
+    public final Iterator<E> iterate(int chunkSize) {
+        return Spliterators.iterator(new KeyRangeSpliterator<>(entityClass, chunkSize,
+                metrics.retryPolicy(DaoMetrics.Operation.LIST)));
+    }
+
+    /**
+     * Processes all the entities one chunk at a time, read with DataStore query cursors. The next
+     * chunk is read while the current one is being processed, so at most two chunks are held in
+     * memory.
+     *
+     * @param chunkSize the number of entities of each chunk.
+     * @param handler the processing of the chunks.
+     */
+    @Override
+    public final void forEachChunk(int chunkSize, ChunkHandler<E> handler) {
+        Iterator<List<E>> chunks = iterateChunks(null, chunkSize);
+        while (chunks.hasNext()) {
+            try {
+                handler.handle(chunks.next());
+            } catch (RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    /**
+     * Iterates over all the entities one chunk at a time, read with DataStore query cursors,
+     * starting after the chunk a previous iteration stopped at. The next chunk is read while the
+     * current one is being processed, so at most two chunks are held in memory.
+     *
+     * Long tasks, like exports, can so be split among several requests: each one iterates until
+     * its deadline nears and passes on the cursor of the iterator to the next one.
+     *
+     * @param cursor the cursor returned by {@link ChunkIterator#getCursor()} of the iteration to
+     * resume, or null to start from the first entity.
+     * @param chunkSize the number of entities of each chunk.
+     * @return the chunks of entities, in key order.
+     * @throws IllegalArgumentException if the cursor is not valid.
+     */
+    public final ChunkIterator<E> iterateChunks(String cursor, int chunkSize) {
+        return new PrefetchingChunkIterator<>(entityClass, cursor, chunkSize,
+                metrics.retryPolicy(DaoMetrics.Operation.LIST), ApiProxy.getCurrentEnvironment());
+    }
+
+    /**
+     * Searchs for an entity given a query string.
+     *
+     * See https://cloud.google.com/appengine/docs/java/search/query_strings
+     *
+     * @param queryString the query string
+     * @return the entities that match the query
+     */
+    @Override
+    public final Collection<E> search(String queryString) {
+        return this.search(queryString, 0, MAX_SEARCH_LIMIT);
+    }
+
+    /**
+     * Paginated searchs for an entity given a query string.
+     *
+     * See https://cloud.google.com/appengine/docs/java/search/query_strings
+     *
+     * @param queryString the query string
+     * @param offset the index of the first result to be retrieved
+     * @param limit the number of results to be retrieved (page size)
+     * @return the entities that match the query
+     */
+    @Override
+    public final Collection<E> search(String queryString, int offset, int limit) {
+        long start = System.nanoTime();
+        try {
+            try {
+                return searchWithCache(queryString, offset, limit);
+            } catch (RuntimeException ex) {
+                if (!isDegradation(ex)) {
+                    throw ex;
+                }
+
+                return searchFallback(queryString, offset, limit, ex);
+            }
+        } catch (RuntimeException ex) {
+            metrics.recordFailure(DaoMetrics.Operation.SEARCH);
+            throw ex;
+        } finally {
+            metrics.record(DaoMetrics.Operation.SEARCH, start);
+        }
+    }
+
+    private Collection<E> searchWithCache(final String queryString, final int offset, final int limit) {
+        return tryWithBackoff(new Callable<Collection<E>>() {
+            @Override
+            public Collection<E> call() throws Exception {
+                return searchOnce(queryString, offset, limit);
+            }
+        }, metrics.retryPolicy(DaoMetrics.Operation.SEARCH));
+    }
+
+    /**
+     * Makes a single attempt of a paginated search, through the search cache if enabled.
+     */
+    private Collection<E> searchOnce(String queryString, int offset, int limit) throws Exception {
+        return startSearchOnce(ofy(), queryString, offset, limit).call();
+    }
+
+    /**
+     * Starts a single attempt of a paginated search without waiting for it. The search cache is
+     * looked up and the search or the load of the cached ids started right away, and the found
+     * entities are loaded once the search returns.
+     *
+     * @return a call waiting for the search and returning the found entities
+     * @see #searchOnce(String, int, int)
+     */
+    private Callable<Collection<E>> startSearchOnce(
+            final Objectify session, String queryString, int offset, int limit) throws Exception {
+        final String cacheKey = searchCache != null ? searchCache.searchKey(queryString, offset, limit) : null;
+        if (cacheKey != null) {
+            long[] cachedIds = (long[]) searchCache.get(cacheKey);
+            if (cachedIds != null) {
+                return startHydration(session, Longs.asList(cachedIds));
+            }
+        }
+
+        Query query = Query.newBuilder().setOptions(
+                QueryOptions.newBuilder()
+                .setLimit(limit)
+                .setOffset(offset)
+                .setFieldsToReturn("id"))
+                .build(queryString);
+
+        final Callable<Results<ScoredDocument>> searching = startSearch(query);
+        return new Callable<Collection<E>>() {
+            @Override
+            public Collection<E> call() throws Exception {
+                List<Long> ids = idsOf(searching.call());
+                if (searchCache != null) {
+                    searchCache.put(cacheKey, Longs.toArray(ids));
+                }
+
+                return startHydration(session, ids).call();
+            }
+        };
+    }
+
+    /**
+     * Searchs for entities given a AppEngine's query string and query options.
+     *
+     * @param queryString the query string to search for
+     * @param options the query options object see
+     * https://cloud.google.com/appengine/docs/java/search/options
+     * @return the search result.
+     */
+    public final Collection<E> search(String queryString, QueryOptions options) {
+        long start = System.nanoTime();
+        try {
+            final Query query = Query.newBuilder().setOptions(options).build(queryString);
+
+            return tryWithBackoff(new Callable<Collection<E>>() {
+                @Override
+                public Collection<E> call() throws Exception {
+                    return hydrate(runSearch(query));
+                }
+            }, metrics.retryPolicy(DaoMetrics.Operation.SEARCH));
+        } catch (RuntimeException ex) {
+            metrics.recordFailure(DaoMetrics.Operation.SEARCH);
+            throw ex;
+        } finally {
+            metrics.record(DaoMetrics.Operation.SEARCH, start);
+        }
+    }
+
+    /**
+     * Paginated search for an entity given a query string, using cursors instead of offsets.
+     *
+     * See https://cloud.google.com/appengine/docs/java/search/query_strings
+     *
+     * @param queryString the query string
+     * @param cursor the cursor returned with the previous page, or null to get the first one
+     * @param limit the number of results to be retrieved (page size)
+     * @return the page of entities that match the query, with the cursor to the next one
+     */
+    @Override
+    public final SearchPage<E> searchPage(String queryString, String cursor, int limit) {
+        long start = System.nanoTime();
+        try {
+            try {
+                return searchPageWithoutFallback(queryString, cursor, limit);
+            } catch (RuntimeException ex) {
+                if (!isDegradation(ex)) {
+                    throw ex;
+                }
+
+                return searchPageFallback(queryString, cursor, limit, ex);
+            }
+        } catch (RuntimeException ex) {
+            metrics.recordFailure(DaoMetrics.Operation.SEARCH);
+            throw ex;
+        } finally {
+            metrics.record(DaoMetrics.Operation.SEARCH, start);
+        }
+    }
+
+    private SearchPage<E> searchPageWithoutFallback(String queryString, String cursor, int limit) {
+        final Query query = Query.newBuilder().setOptions(
+                QueryOptions.newBuilder()
+                .setLimit(limit)
+                .setCursor(toSearchCursor(cursor))
+                .setFieldsToReturn("id"))
+                .build(queryString);
+
+        return tryWithBackoff(new Callable<SearchPage<E>>() {
+            @Override
+            public SearchPage<E> call() throws Exception {
+                Results<ScoredDocument> searchResults = runSearch(query);
+
+                Cursor next = searchResults.getCursor();
+                return new SearchPage<>(
+                        new ArrayList<>(hydrate(searchResults)),
+                        next != null ? next.toWebSafeString() : null,
+                        searchResults.getNumberFound());
+            }
+        }, metrics.retryPolicy(DaoMetrics.Operation.SEARCH));
+    }
+
+    /**
+     * Searchs for entities given a query string, returning only some of their indexed fields.
+     *
+     * The results are built straight from the search index documents, so the DataStore isn't
+     * accessed at all. Useful for listings and autocompletes that only show a few fields.
+     *
+     * @param queryString the query string
+     * @param offset the index of the first result to be retrieved
+     * @param limit the number of results to be retrieved (page size)
+     * @param fieldNames the names of the entity properties to be returned
+     * @return the projected results, in search order
+     */
+    public final List<ProjectedResult> searchProjection(
+            String queryString, int offset, int limit, String... fieldNames) {
+        long start = System.nanoTime();
+        try {
+            final Query query = Query.newBuilder().setOptions(
+                    QueryOptions.newBuilder()
+                    .setLimit(limit)
+                    .setOffset(offset)
+                    .setFieldsToReturn(fieldNames))
+                    .build(queryString);
+
+            return tryWithBackoff(new Callable<List<ProjectedResult>>() {
+                @Override
+                public List<ProjectedResult> call() throws Exception {
+                    return project(runSearch(query));
+                }
+            }, metrics.retryPolicy(DaoMetrics.Operation.SEARCH));
+        } catch (RuntimeException ex) {
+            metrics.recordFailure(DaoMetrics.Operation.SEARCH);
+            throw ex;
+        } finally {
+            metrics.record(DaoMetrics.Operation.SEARCH, start);
+        }
+    }
+
+    /**
+     * Cursor paginated search returning only some of the indexed fields of the entities.
+     *
+     * @param queryString the query string
+     * @param cursor the cursor returned with the previous page, or null to get the first one
+     * @param limit the number of results to be retrieved (page size)
+     * @param fieldNames the names of the entity properties to be returned
+     * @return the page of projected results, with the cursor to the next one
+     * @see #searchProjection(String, int, int, String...)
+     */
+    public final SearchPage<ProjectedResult> searchProjectionPage(
+            String queryString, String cursor, int limit, String... fieldNames) {
+        long start = System.nanoTime();
+        try {
+            final Query query = Query.newBuilder().setOptions(
+                    QueryOptions.newBuilder()
+                    .setLimit(limit)
+                    .setCursor(toSearchCursor(cursor))
+                    .setFieldsToReturn(fieldNames))
+                    .build(queryString);
+
+            return tryWithBackoff(new Callable<SearchPage<ProjectedResult>>() {
+                @Override
+                public SearchPage<ProjectedResult> call() throws Exception {
+                    Results<ScoredDocument> searchResults = runSearch(query);
+
+                    Cursor next = searchResults.getCursor();
+                    return new SearchPage<>(
+                            project(searchResults),
+                            next != null ? next.toWebSafeString() : null,
+                            searchResults.getNumberFound());
+                }
+            }, metrics.retryPolicy(DaoMetrics.Operation.SEARCH));
+        } catch (RuntimeException ex) {
+            metrics.recordFailure(DaoMetrics.Operation.SEARCH);
+            throw ex;
+        } finally {
+            metrics.record(DaoMetrics.Operation.SEARCH, start);
+        }
+    }
+
+    /**
+     * Cursor paginated search that also counts the matches by value of some facets of the
+     * entities. The search service computes the counts over the first 1000 matches rather than
+     * just the page, so with more matches they are a sample: use
+     * {@link #searchFaceted(String, String, int, int, FacetQuery...)} to count deeper.
+     *
+     * @param queryString the query string
+     * @param cursor the cursor returned with the previous page, or null to get the first one
+     * @param limit the number of results to be retrieved (page size)
+     * @param facets the facets to count, declared with <c>@SearchFacet</c> on the entity
+     * @return the page of results, with the cursor to the next one and the facet counts
+     * @throws IllegalArgumentException if a facet isn't declared by the entity, or ranges are
+     * requested for a facet that isn't a number
+     */
+    public final FacetedSearchPage<E> searchFaceted(
+            String queryString, String cursor, int limit, FacetQuery... facets) {
+        return searchFaceted(queryString, cursor, limit, DEFAULT_FACET_DEPTH, facets);
+    }
+
+    /**
+     * Cursor paginated search that also counts the matches by value of some facets of the
+     * entities, over the first <c>facetDepth</c> matches. Deeper counts are more accurate
+     * but make the search slower.
+     *
+     * @param queryString the query string
+     * @param cursor the cursor returned with the previous page, or null to get the first one
+     * @param limit the number of results to be retrieved (page size)
+     * @param facetDepth the number of matches to count the facets over, up to 10000
+     * @param facets the facets to count, declared with <c>@SearchFacet</c> on the entity
+     * @return the page of results, with the cursor to the next one and the facet counts
+     * @throws IllegalArgumentException if a facet isn't declared by the entity, ranges are
+     * requested for a facet that isn't a number, or the depth is out of range
+     */
+    public final FacetedSearchPage<E> searchFaceted(
+            String queryString, String cursor, int limit, int facetDepth, FacetQuery... facets) {
+        long start = System.nanoTime();
+        try {
+            Map<String, SearchFacet.Type> facetTypes = BaseEntity.getSearchFacets(entityClass);
+
+            Query.Builder queryBuilder = Query.newBuilder().setOptions(
+                    QueryOptions.newBuilder()
+                    .setLimit(limit)
+                    .setCursor(toSearchCursor(cursor))
+                    .setFieldsToReturn("id"))
+                    .setFacetOptions(FacetOptions.newBuilder().setDepth(facetDepth));
+            for (FacetQuery facet : facets) {
+                SearchFacet.Type type = facetTypes.get(facet.getName());
+                if (type == null) {
+                    throw new IllegalArgumentException(String.format(
+                            "%s has no facet %s: annotate the property with @SearchFacet.",
+                            entityClass.getSimpleName(), facet.getName()));
+                }
+
+                queryBuilder.addReturnFacet(facet.toFacetRequest(type));
+            }
+            final Query query = queryBuilder.build(queryString);
+
+            return tryWithBackoff(new Callable<FacetedSearchPage<E>>() {
+                @Override
+                public FacetedSearchPage<E> call() throws Exception {
+                    Results<ScoredDocument> searchResults = runSearch(query);
+
+                    Map<String, List<FacetBucket>> facetCounts = new LinkedHashMap<>();
+                    for (FacetResult facet : searchResults.getFacets()) {
+                        List<FacetBucket> buckets = new ArrayList<>();
+                        for (FacetResultValue value : facet.getValues()) {
+                            buckets.add(new FacetBucket(value.getLabel(), value.getCount()));
+                        }
+                        facetCounts.put(facet.getName(), buckets);
+                    }
+
+                    Cursor next = searchResults.getCursor();
+                    return new FacetedSearchPage<>(new SearchPage<>(
+                            new ArrayList<>(hydrate(searchResults)),
+                            next != null ? next.toWebSafeString() : null,
+                            searchResults.getNumberFound()), facetCounts);
+                }
+            }, metrics.retryPolicy(DaoMetrics.Operation.SEARCH));
+        } catch (RuntimeException ex) {
+            metrics.recordFailure(DaoMetrics.Operation.SEARCH);
+            throw ex;
+        } finally {
+            metrics.record(DaoMetrics.Operation.SEARCH, start);
+        }
+    }
+
+    /**
+     * Counts the total results available for a given query.
+     *
+     * If the dao maintains counters, empty queries and equalities on a counted facet are
+     * answered from them, without running a search, and the count is approximate.
+     *
+     * @param queryString the query
+     * @return the total result count
+     * @see MaintainedCounters
+     */
+    @Override
+    public final long count(final String queryString) {
+        long start = System.nanoTime();
+        try {
+            try {
+                return tryWithBackoff(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return countOnce(queryString);
+                    }
+                }, metrics.retryPolicy(DaoMetrics.Operation.COUNT));
+            } catch (RuntimeException ex) {
+                if (!isDegradation(ex)) {
+                    throw ex;
+                }
+
+                return countFallback(queryString, ex);
+            }
+        } catch (RuntimeException ex) {
+            metrics.recordFailure(DaoMetrics.Operation.COUNT);
+            throw ex;
+        } finally {
+            metrics.record(DaoMetrics.Operation.COUNT, start);
+        }
+    }
+
+    /**
+     * Makes a single attempt of a count, from the maintained counters or the search cache if
+     * possible.
+     */
+    private long countOnce(String queryString) throws Exception {
+        return startCountOnce(queryString).call();
+    }
+
+    /**
+     * Starts a single attempt of a count without waiting for it. The maintained counters are read
+     * or the search cache looked up and the search started right away; a count the counters can't
+     * answer is searched once they return.
+     *
+     * @return a call waiting for the count
+     * @see #countOnce(String)
+     */
+    private Callable<Long> startCountOnce(final String queryString) throws Exception {
+        final Callable<Long> maintained = counters != null ? counters.startCount(queryString) : null;
+        if (maintained == null) {
+            return startSearchCount(queryString);
+        }
+
+        return new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                Long count = maintained.call();
+                return count != null ? count : startSearchCount(queryString).call();
+            }
+        };
+    }
+
+    private Callable<Long> startSearchCount(String queryString) throws Exception {
+        final String cacheKey = searchCache != null ? searchCache.countKey(queryString) : null;
+        if (cacheKey != null) {
+            Long cachedCount = (Long) searchCache.get(cacheKey);
+            if (cachedCount != null) {
+                return completed(cachedCount);
+            }
+        }
+
+        Query query = Query.newBuilder().setOptions(QueryOptions.newBuilder()
+                .setLimit(1)
+                .setFieldsToReturn("id")
+                .setNumberFoundAccuracy(MAX_COUNT_LIMIT))
+                .build(queryString);
+
+        final Callable<Results<ScoredDocument>> searching = startSearch(query);
+        return new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                long count = searching.call().getNumberFound();
+                if (searchCache != null) {
+                    searchCache.put(cacheKey, count);
+                }
+
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Paginated search for an entity given a query string without blocking the calling thread.
+     *
+     * @param queryString the query string
+     * @param offset the index of the first result to be retrieved
+     * @param limit the number of results to be retrieved (page size)
+     * @return the eventual entities that match the query
+     * @see #search(String, int, int)
+     */
+    @Override
+    public final CompletableFuture<Collection<E>> searchAsync(final String queryString, final int offset, final int limit) {
+        long start = System.nanoTime();
+        return measured(DaoMetrics.Operation.SEARCH, start, attemptAsync(new AsyncAttempt<Collection<E>>() {
+            @Override
+            public Callable<Collection<E>> start() throws Exception {
+                return startSearchOnce(ObjectifyService.factory().begin(), queryString, offset, limit);
+            }
+        }, DaoMetrics.Operation.SEARCH).handle(new BiFunction<Collection<E>, Throwable, Collection<E>>() {
+            @Override
+            public Collection<E> apply(Collection<E> found, Throwable error) {
+                if (error == null) {
+                    return found;
+                }
+
+                final RuntimeException cause = unwrap(error);
+                if (!isDegradation(cause)) {
+                    throw cause;
+                }
+
+                return callInObjectifyContext(new Callable<Collection<E>>() {
+                    @Override
+                    public Collection<E> call() throws Exception {
+                        return searchFallback(queryString, offset, limit, cause);
+                    }
+                });
+            }
+        }));
+    }
+
+    /**
+     * Counts the total results available for a given query without blocking the calling thread.
+     *
+     * @param queryString the query
+     * @return the eventual total result count
+     * @see #count(String)
+     */
+    @Override
+    public final CompletableFuture<Long> countAsync(final String queryString) {
+        long start = System.nanoTime();
+        return measured(DaoMetrics.Operation.COUNT, start, attemptAsync(new AsyncAttempt<Long>() {
+            @Override
+            public Callable<Long> start() throws Exception {
+                return startCountOnce(queryString);
+            }
+        }, DaoMetrics.Operation.COUNT).handle(new BiFunction<Long, Throwable, Long>() {
+            @Override
+            public Long apply(Long count, Throwable error) {
+                if (error == null) {
+                    return count;
+                }
+
+                final RuntimeException cause = unwrap(error);
+                if (!isDegradation(cause)) {
+                    throw cause;
+                }
+
+                return callInObjectifyContext(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return countFallback(queryString, cause);
+                    }
+                });
+            }
+        }));
+    }
+
+    /**
+     * Extension point to override to answer {@link #search(String, int, int)} when the search
+     * backend is degraded, e.g. with an empty result or stale data, instead of failing.
+     *
+     * @param queryString the query string
+     * @param offset the index of the first result to be retrieved
+     * @param limit the number of results to be retrieved (page size)
+     * @param error the error of the search, either rejected by the circuit breaker or failed
+     * after all retries
+     * @return the fallback result; by default the error is rethrown
+     */
+    protected Collection<E> searchFallback(String queryString, int offset, int limit, RuntimeException error) {
+        throw error;
+    }
+
+    /**
+     * Extension point to override to answer {@link #searchPage(String, String, int)} when the
+     * search backend is degraded, e.g. with an empty page, instead of failing.
+     *
+     * @param queryString the query string
+     * @param cursor the cursor of the requested page
+     * @param limit the number of results to be retrieved (page size)
+     * @param error the error of the search
+     * @return the fallback page; by default the error is rethrown
+     * @see #searchFallback(String, int, int, RuntimeException)
+     */
+    protected SearchPage<E> searchPageFallback(String queryString, String cursor, int limit, RuntimeException error) {
+        throw error;
+    }
+
+    /**
+     * Extension point to override to answer {@link #count(String)} when the search backend is
+     * degraded, e.g. with an estimate, instead of failing.
+     *
+     * @param queryString the query
+     * @param error the error of the search
+     * @return the fallback count; by default the error is rethrown
+     * @see #searchFallback(String, int, int, RuntimeException)
+     */
+    protected long countFallback(String queryString, RuntimeException error) {
+        throw error;
+    }
+
+    /**
+     * Tells whether an operation failed because of a degraded backend rather than because of
+     * the request itself, such as an invalid query.
+     */
+    private static boolean isDegradation(RuntimeException error) {
+        return error instanceof BackendUnavailableException || RetryPolicy.TRANSIENT_ERRORS.test(error);
+    }
+
+    /**
+     * Guards a DataStore call with the circuit breaker and records it in the request trace.
+     *
+     * @param <V> The type the callable returns
+     * @param callable the call
+     * @return the guarded call
+     */
+    private <V> Callable<V> onDatastore(Callable<V> callable) {
+        return traced(RpcTrace.Backend.DATASTORE, datastoreBreaker.protect(callable));
+    }
+
+    /**
+     * Guards a Search call with the circuit breaker and records it in the request trace.
+     *
+     * @param <V> The type the callable returns
+     * @param callable the call
+     * @return the guarded call
+     */
+    private <V> Callable<V> onSearch(Callable<V> callable) {
+        return traced(RpcTrace.Backend.SEARCH, searchBreaker.protect(callable));
+    }
+
+    /**
+     * Guards an asynchronous DataStore call with the circuit breaker and records it in the
+     * request trace once it is waited for. The permit is held from the start of the call until
+     * then.
+     *
+     * @param <V> The type the attempt returns
+     * @param attempt the call
+     * @return the guarded call
+     */
+    private <V> AsyncAttempt<V> onDatastore(AsyncAttempt<V> attempt) {
+        return guarded(RpcTrace.Backend.DATASTORE, datastoreBreaker, attempt);
+    }
+
+    /**
+     * Guards an asynchronous Search call with the circuit breaker and records it in the request
+     * trace.
+     *
+     * @param <V> The type the attempt returns
+     * @param attempt the call
+     * @return the guarded call
+     * @see #onDatastore(AsyncAttempt)
+     */
+    private <V> AsyncAttempt<V> onSearch(AsyncAttempt<V> attempt) {
+        return guarded(RpcTrace.Backend.SEARCH, searchBreaker, attempt);
+    }
+
+    private <V> AsyncAttempt<V> guarded(
+            final RpcTrace.Backend backend, final CircuitBreaker breaker, final AsyncAttempt<V> attempt) {
+        return new AsyncAttempt<V>() {
+            @Override
+            public Callable<V> start() throws Exception {
+                final RpcTrace.PendingRpc rpc = RpcTrace.startAsync(backend, kind);
+                rpc.track();
+                final CircuitBreaker.Permit permit = breaker.acquire();
+                final Callable<V> pending;
+                try {
+                    pending = attempt.start();
+                } catch (Exception ex) {
+                    permit.release(ex);
+                    rpc.finished();
+                    throw ex;
+                }
+
+                return new Callable<V>() {
+                    @Override
+                    public V call() throws Exception {
+                        try {
+                            V result = pending.call();
+                            permit.release(null);
+                            return result;
+                        } catch (Exception ex) {
+                            permit.release(ex);
+                            throw ex;
+                        } finally {
+                            rpc.finished();
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Tries an operation with backoff without blocking the calling thread. Every attempt starts
+     * its RPCs right away, the first one on the calling thread, and {@link BackoffTryer} only
+     * waits for them and for the delays between attempts. Attempts must use their own Objectify
+     * session, as Objectify sessions can't be shared across threads.
+     *
+     * @param <V> The type the attempts return
+     * @param attempt a single attempt of the operation
+     * @param operation the operation, whose retry policy is followed
+     * @return the eventual result of the operation
+     */
+    private <V> CompletableFuture<V> attemptAsync(AsyncAttempt<V> attempt, DaoMetrics.Operation operation) {
+        return tryWithBackoffAsync(attempt, metrics.retryPolicy(operation));
+    }
+
+    /**
+     * Tries a blocking operation with backoff without blocking the calling thread, for the steps
+     * of async operations that have no asynchronous API (such as the outbox of write-behind
+     * indexing). Every attempt runs with its own Objectify session.
+     *
+     * @param <V> The type the callable returns
+     * @param callable a single attempt of the operation
+     * @param operation the operation, whose retry policy is followed
+     * @return the eventual result of the operation
+     * @see #attemptAsync(AsyncAttempt, DaoMetrics.Operation)
+     */
+    private <V> CompletableFuture<V> attemptAsync(final Callable<V> callable, DaoMetrics.Operation operation) {
+        return tryWithBackoffAsync(new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                return callInObjectifyContext(callable);
+            }
+        }, metrics.retryPolicy(operation));
+    }
+
+    /**
+     * Waits for an RPC future, throwing the error of the RPC itself rather than wrapped, as the
+     * blocking App Engine APIs do.
+     */
+    private static <V> Callable<V> awaiting(final Future<V> future) {
+        return new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                return await(future);
+            }
+        };
+    }
+
+    private static <V> V await(Future<V> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    private static <V> Callable<V> completed(final V value) {
+        return new Callable<V>() {
+            @Override
+            public V call() {
+                return value;
+            }
+        };
+    }
+
+    private static <V> V callInObjectifyContext(final Callable<V> callable) {
+        return ObjectifyService.run(new Work<V>() {
+            @Override
+            public V run() {
+                try {
+                    return callable.call();
+                } catch (RuntimeException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records the latency and outcome of an asynchronous operation when it completes.
+     */
+    private <V> CompletableFuture<V> measured(
+            final DaoMetrics.Operation operation, final long start, CompletableFuture<V> future) {
+        return future.whenComplete(new BiConsumer<V, Throwable>() {
+            @Override
+            public void accept(V result, Throwable error) {
+                if (error != null) {
+                    metrics.recordFailure(operation);
+                }
+                metrics.record(operation, start);
+            }
+        });
+    }
+
+    private static RuntimeException unwrap(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+    }
+
+    private <V> Callable<V> traced(final RpcTrace.Backend backend, final Callable<V> callable) {
+        return new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                long start = System.nanoTime();
+                try {
+                    return callable.call();
+                } finally {
+                    RpcTrace.record(backend, kind, start);
+                }
+            }
+        };
+    }
+
+    /**
+     * Runs a search on the active version of the index, guarded by the search circuit breaker.
+     * The search is sent to every shard of sharded indexes and their results merged.
+     *
+     * @param query the query
+     * @return the search results
+     * @throws Exception if the search fails or is rejected by the breaker
+     */
+    private Results<ScoredDocument> runSearch(Query query) throws Exception {
+        return startSearch(query).call();
+    }
+
+    /**
+     * Starts a search on the active version of the index without waiting for its results.
+     *
+     * @param query the query
+     * @return a call waiting for the search results
+     * @throws Exception if the search is rejected by the breaker
+     * @see #runSearch(Query)
+     */
+    private Callable<Results<ScoredDocument>> startSearch(final Query query) throws Exception {
+        return onSearch(new AsyncAttempt<Results<ScoredDocument>>() {
+            @Override
+            public Callable<Results<ScoredDocument>> start() {
+                List<Index> indexes = shards.indexes(getSearchIndexName());
+                if (indexes.size() == 1) {
+                    return awaiting(indexes.get(0).searchAsync(query));
+                }
+
+                return new ShardedSearch(indexes).start(query);
+            }
+        }).start();
+    }
+
+    /**
+     * Loads the entities for the documents found by a search, keeping the search order.
+     *
+     * @param searchResults the search results
+     * @return the found entities
+     */
+    private Collection<E> hydrate(Results<ScoredDocument> searchResults) {
+        return hydrate(idsOf(searchResults));
+    }
+
+    /**
+     * Loads the entities for the ids found by a search, keeping the search order and recording
+     * the hits whose entity no longer exists.
+     *
+     * @param ids the found ids
+     * @return the found entities
+     */
+    private List<E> hydrate(List<Long> ids) {
+        List<E> entities = loadByIds(ids);
+        metrics.recordHydrationMisses(ids.size() - entities.size());
+        return entities;
+    }
+
+    /**
+     * Starts loading the entities for the ids found by a search without waiting for them.
+     *
+     * @param session the Objectify session loading the entities
+     * @param ids the found ids
+     * @return a call waiting for the load and returning the found entities
+     * @see #hydrate(List)
+     */
+    private Callable<Collection<E>> startHydration(Objectify session, final List<Long> ids) throws Exception {
+        final Callable<List<E>> loading = startLoadByIds(session, ids);
+        return new Callable<Collection<E>>() {
+            @Override
+            public Collection<E> call() throws Exception {
+                List<E> entities = loading.call();
+                metrics.recordHydrationMisses(ids.size() - entities.size());
+                return entities;
+            }
+        };
+    }
+
+    private static List<Long> idsOf(Results<ScoredDocument> searchResults) {
+        List<Long> ids = new ArrayList<>();
+        for (ScoredDocument result : searchResults) {
+            ids.add(Long.valueOf(result.getId()));
+        }
+
+        return ids;
+    }
+
+    /**
+     * Loads entities by id, through the entity cache if enabled, keeping the ids order and
+     * skipping the entities that don't exist.
+     *
+     * @param ids the ids
+     * @return the found entities
+     */
+    private List<E> loadByIds(List<Long> ids) {
+        try {
+            return startLoadByIds(ofy(), ids).call();
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Starts loading entities by id without waiting for the DataStore. Cached entities are looked
+     * up right away, if the entity cache is enabled, and the rest are loaded in a single batch.
+     *
+     * @param session the Objectify session loading the entities
+     * @param ids the ids
+     * @return a call waiting for the load and returning the found entities, in the ids order and
+     * skipping the entities that don't exist
+     * @throws Exception if the load can't be started
+     */
+    private Callable<List<E>> startLoadByIds(final Objectify session, final List<Long> ids) throws Exception {
+        Map<Long, E> cachedEntities = Collections.emptyMap();
+        final List<Long> toLoad = new ArrayList<>();
+        long stamp = 0;
+        if (entityCache != null) {
+            cachedEntities = entityCache.getAll(ids);
+            stamp = entityCache.startLoad();
+        }
+        for (Long id : ids) {
+            if (!cachedEntities.containsKey(id)) {
+                toLoad.add(id);
+            }
+        }
+
+        final Callable<Map<Long, E>> loading = toLoad.isEmpty()
+                ? completed(Collections.<Long, E>emptyMap())
+                : onDatastore(new AsyncAttempt<Map<Long, E>>() {
+                    @Override
+                    public Callable<Map<Long, E>> start() {
+                        final Map<Long, E> lazy = session.load().type(entityClass).ids(toLoad);
+                        return new Callable<Map<Long, E>>() {
+                            @Override
+                            public Map<Long, E> call() {
+                                // Objectify returns a lazy map: copying it waits for the RPC while the permit is held
+                                return new HashMap<>(lazy);
+                            }
+                        };
+                    }
+                }).start();
+
+        final Map<Long, E> cached = cachedEntities;
+        final long loadStamp = stamp;
+        return new Callable<List<E>>() {
+            @Override
+            public List<E> call() throws Exception {
+                Map<Long, E> loaded = loading.call();
+
+                List<E> entities = new ArrayList<>(ids.size());
+                for (Long id : ids) {
+                    E entity = cached.get(id);
+                    if (entity == null) {
+                        entity = loaded.get(id);
+                        if (entity != null && entityCache != null) {
+                            entityCache.put(entity, loadStamp);
+                        }
+                    }
+
+                    if (entity != null) {
+                        entities.add(entity);
+                    }
+                }
+
+                return entities;
+            }
+        };
+    }
+
+    /**
+     * Builds lightweight results from the fields of the documents found by a search.
+     *
+     * @param searchResults the search results
+     * @return the projected results, in search order
+     */
+    private static List<ProjectedResult> project(Results<ScoredDocument> searchResults) {
+        List<ProjectedResult> results = new ArrayList<>();
+        for (ScoredDocument result : searchResults) {
+            results.add(ProjectedResult.fromDocument(result));
+        }
+
+        return results;
+    }
+
+    /**
+     * Builds the search cursor for a page token.
+     *
+     * @param cursor the web safe cursor string, or null for the first page
+     * @return the search cursor
+     * @throws IllegalArgumentException if the token is not a valid cursor
+     */
+    private static Cursor toSearchCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return Cursor.newBuilder().build();
+        }
+
+        return Cursor.newBuilder().build(cursor);
+    }
+
+    private String getSearchIndexName() {
+        return getIndexName(indexVersion.current().getActive());
+    }
+
+    /**
+     * Gets the names of the versions of the search index that must be kept up to date: the
+     * active one and, during a shadow rebuild, the one being built. Both come from the same
+     * snapshot of the version pointer, so a write never misses the version being built.
+     *
+     * @return the index names.
+     */
+    private List<String> getWriteIndexNames() {
+        return getWriteIndexNames(Collections.<String>emptyList());
+    }
+
+    /**
+     * Gets the index versions some documents are about to be written to. While a version is being
+     * built the documents are recorded in its rebuild outbox first, so the rebuild can rewrite
+     * them if it read their entities before this write.
+     */
+    private List<String> getWriteIndexNames(Collection<String> documentIds) {
+        SearchIndexVersion.Versions versions = indexVersion.current();
+        String active = getIndexName(versions.getActive());
+
+        Integer building = versions.getBuilding();
+        if (building == null) {
+            return Collections.singletonList(active);
+        }
+
+        if (!documentIds.isEmpty()) {
+            List<Long> ids = new ArrayList<>(documentIds.size());
+            for (String documentId : documentIds) {
+                ids.add(Long.valueOf(documentId));
+            }
+            rebuildOutbox(building).enqueue(ids);
+        }
+
+        return Arrays.asList(active, getIndexName(building));
+    }
+
+    /**
+     * Gets the outbox of the entities written while an index version is being built.
+     */
+    private IndexOutbox rebuildOutbox(int version) {
+        return new DatastoreIndexOutbox(getIndexName(version));
+    }
+
+    private static List<String> documentIdsOf(List<Document> documents) {
+        List<String> ids = new ArrayList<>(documents.size());
+        for (Document document : documents) {
+            ids.add(document.getId());
+        }
+
+        return ids;
+    }
+
+    private String getIndexName(int version) {
+        return SearchIndexVersion.indexName(indexVersion.getBaseName(), version);
+    }
+
+    /**
+     * Puts a document in the shard it belongs to of every index version being written, unless it is already indexed as it
+     * is.
+     */
+    private void putDocument(final Document document) throws Exception {
+        List<Document> changed = changedDocuments(Collections.singletonList(document));
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        onSearch(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                putDocumentInWriteIndexes(document);
+                return true;
+            }
+        }).call();
+        documentsIndexed(changed);
+    }
+
+    private void putDocumentInWriteIndexes(Document document) throws InterruptedException, ExecutionException {
+        List<Index> indexes = new ArrayList<>();
+        for (String indexName : getWriteIndexNames(Collections.singletonList(document.getId()))) {
+            indexes.add(shards.indexFor(indexName, document.getId()));
+        }
+
+        if (indexes.size() == 1) {
+            indexes.get(0).put(document);
+            return;
+        }
+
+        List<Future<PutResponse>> puts = new ArrayList<>();
+        for (Index index : indexes) {
+            puts.add(index.putAsync(document));
+        }
+        for (Future<PutResponse> put : puts) {
+            put.get();
+        }
+    }
+
+    /**
+     * Deletes a document from the shard it belongs to of every index version being written.
+     */
+    private void deleteDocument(final String documentId) throws Exception {
+        documentsRemoved(Collections.singletonList(documentId));
+        onSearch(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                deleteDocumentFromWriteIndexes(documentId);
+                return true;
+            }
+        }).call();
+    }
+
+    private void deleteDocumentFromWriteIndexes(String documentId) throws InterruptedException, ExecutionException {
+        List<Index> indexes = new ArrayList<>();
+        for (String indexName : getWriteIndexNames(Collections.singletonList(documentId))) {
+            indexes.add(shards.indexFor(indexName, documentId));
+        }
+
+        if (indexes.size() == 1) {
+            indexes.get(0).delete(documentId);
+            return;
+        }
+
+        List<Future<Void>> deletes = new ArrayList<>();
+        for (Index index : indexes) {
+            deletes.add(index.deleteAsync(documentId));
+        }
+        for (Future<Void> delete : deletes) {
+            delete.get();
+        }
+    }
+
+    /**
+     * Returns a query object to operate on DataStore.
+     *
+     * @return the query object.
+     */
+    protected final LoadType<E> getQuery() {
+        return ofy().load().type(entityClass);
+    }
+
+    /**
+     * Returns the dao class associated to a given entity.
+     *
+     * @param entityClass the full name of the entity class
+     * @return the dao class.
+     */
+    public static Class<? extends DatastoreBaseDao> getDaoForEntity(Class<? extends BaseEntity> entityClass) {
+        return DAOS_BY_ENTITY.get(entityClass);
+    }
+
+    /**
+     * Extension point to override to execute custom actions after the entity is
+     * saved with save().
+     *
+     * @param entity the saved entity.
+     */
+    protected void afterSave(E entity) {
+
+    }
+
+    /**
+     * Reindexes the Search index so its contents are on par with the DataStore.
+     *
+     * @return the number of entities reindexed
+     */
+    public long reindex() {
+        return reindex(DEFAULT_REINDEX_WORKERS);
+    }
+
+    /**
+     * Reindexes the Search index so its contents are on par with the DataStore.
+     *
+     * Entities are streamed from the DataStore in chunks, so memory usage doesn't depend on the
+     * number of entities, and the key space is split among several workers writing in parallel.
+     *
+     * @param workers the number of workers reindexing in parallel
+     * @return the number of entities reindexed
+     */
+    public long reindex(int workers) {
+        long start = System.nanoTime();
+        try {
+            String searchIndexName = getSearchIndexName();
+            GetRequest r = GetRequest.newBuilder().setReturningIdsOnly(true).build();
+
+            for (Index searchIndex : shards.indexes(searchIndexName)) {
+                GetResponse<Document> toDelete;
+                while (true) {
+                    toDelete = searchIndex.getRange(r);
+
+                    if (toDelete.getResults().isEmpty()) {
+                        break;
+                    }
+
+                    final List<String> ids = new ArrayList<>();
+                    for (Document d : toDelete.getResults()) {
+                        ids.add(d.getId());
+                    }
+
+                    searchIndex.delete(ids);
+                }
+            }
+
+            long count = new Reindexer<>(entityClass, shards, searchIndexName).reindex(workers);
+            indexRebuilt();
+
+            return count;
+        } catch (RuntimeException ex) {
+            metrics.recordFailure(DaoMetrics.Operation.REINDEX);
+            throw ex;
+        } finally {
+            metrics.record(DaoMetrics.Operation.REINDEX, start);
+        }
+    }
+
+    /**
+     * Rebuilds the Search index without downtime.
+     *
+     * A new version of the index is built while searches keep being served by the current one,
+     * and entities saved or deleted meanwhile are written to both and recorded, so they are
+     * written again from their current state once all the entities have been read, in case they
+     * were read before the change. Once built, searches switch to the new version and the
+     * previous one is deleted by a deferred task (which requires the deferred task servlet to be
+     * mapped in the app).
+     *
+     * @param workers the number of workers reindexing in parallel
+     * @return the number of entities reindexed
+     */
+    public long rebuildIndex(int workers) {
+        long start = System.nanoTime();
+        try {
+            int version = indexVersion.startBuilding();
+            try {
+                // Writes never use a snapshot of the version pointer older than this, so once it
+                // elapses every app instance double-writes and records what it writes.
+                Thread.sleep(SearchIndexVersion.REFRESH_MILLIS);
+
+                Reindexer<E> reindexer = new Reindexer<>(entityClass, shards, getIndexName(version));
+                long count = reindexer.reindex(workers);
+
+                // A write landing between the read of its entity and the put of the stale state
+                // is recorded, so rewrite the recorded entities, and again once the recent entries
+                // the outbox query may have missed are visible.
+                IndexOutbox changed = rebuildOutbox(version);
+                reindexer.replay(changed);
+                Thread.sleep(OUTBOX_CONSISTENCY_MILLIS);
+                reindexer.replay(changed);
+
+                int previous = indexVersion.switchToBuilding();
+                dropIndexLater(previous);
+                indexRebuilt();
+
+                return count;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                abortRebuild(version);
+                throw new RuntimeException(ex);
+            } catch (RuntimeException ex) {
+                abortRebuild(version);
+                throw ex;
+            }
+        } catch (RuntimeException ex) {
+            metrics.recordFailure(DaoMetrics.Operation.REINDEX);
+            throw ex;
+        } finally {
+            metrics.record(DaoMetrics.Operation.REINDEX, start);
+        }
+    }
+
+    private void indexRebuilt() {
+        if (searchCache != null) {
+            searchCache.bumpGeneration();
+        }
+    }
+
+    private void abortRebuild(int version) {
+        indexVersion.abortBuilding();
+        dropIndexLater(version);
+    }
+
+    private void dropIndexLater(int version) {
+        for (String indexName : shards.names(getIndexName(version))) {
+            QueueFactory.getDefaultQueue().add(TaskOptions.Builder
+                    .withPayload(new DeleteSearchIndexTask(indexName))
+                    .countdownMillis(2 * SearchIndexVersion.REFRESH_MILLIS));
+        }
     }
 
 }
@@ -0,0 +1,93 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Durable outbox backed by the DataStore.
+ *
+ * Every queued change is stored as an <c>_IndexOutbox</c> entity with an allocated id, so
+ * acknowledging a batch only removes the changes it took and never a newer change of the same
+ * entity; repeated changes are coalesced when they are taken. Entries are root entities to avoid
+ * entity group write limits, so taking them relies on an eventually consistent query that may
+ * only see very recent entries on a later flush.
+ *
+ * @author lroman
+ */
+public final class DatastoreIndexOutbox implements IndexOutbox {
+
+    private static final String KIND = "_IndexOutbox";
+    private static final String INDEX_PROPERTY = "index";
+    private static final String ID_PROPERTY = "entityId";
+    private static final String ENQUEUED_PROPERTY = "enqueuedAt";
+
+    private final String indexName;
+
+    /**
+     * Constructor.
+     *
+     * @param indexName the name of the (unversioned) index the outbox feeds.
+     */
+    public DatastoreIndexOutbox(String indexName) {
+        this.indexName = indexName;
+    }
+
+    @Override
+    public void enqueue(Collection<Long> ids) {
+        List<Entity> entries = new ArrayList<>(ids.size());
+        long now = System.currentTimeMillis();
+        for (Long id : ids) {
+            Entity entry = new Entity(KIND);
+            entry.setProperty(INDEX_PROPERTY, indexName);
+            entry.setUnindexedProperty(ID_PROPERTY, id);
+            entry.setUnindexedProperty(ENQUEUED_PROPERTY, now);
+            entries.add(entry);
+        }
+
+        DatastoreServiceFactory.getDatastoreService().put(entries);
+    }
+
+    @Override
+    public Batch peek(int max) {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+        Query query = new Query(KIND)
+                .setFilter(new Query.FilterPredicate(INDEX_PROPERTY, Query.FilterOperator.EQUAL, indexName));
+
+        List<Key> keys = new ArrayList<>();
+        Set<Long> ids = new LinkedHashSet<>();
+        for (Entity entry : datastore.prepare(query).asIterable(FetchOptions.Builder.withLimit(max))) {
+            keys.add(entry.getKey());
+            ids.add((Long) entry.getProperty(ID_PROPERTY));
+        }
+
+        return new KeyedBatch(new ArrayList<>(ids), keys);
+    }
+
+    @Override
+    public void acknowledge(Batch batch) {
+        DatastoreServiceFactory.getDatastoreService().delete(((KeyedBatch) batch).keys);
+    }
+
+    /**
+     * Batch that remembers the entries it took.
+     */
+    private static final class KeyedBatch extends Batch {
+
+        private final List<Key> keys;
+
+        KeyedBatch(List<Long> ids, List<Key> keys) {
+            super(ids);
+            this.keys = keys;
+        }
+    }
+}
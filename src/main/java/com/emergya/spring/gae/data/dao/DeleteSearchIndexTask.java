@@ -0,0 +1,85 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.GetRequest;
+import com.google.appengine.api.search.GetResponse;
+import com.google.appengine.api.search.Index;
+import com.google.appengine.api.search.IndexSpec;
+import com.google.appengine.api.search.SearchServiceFactory;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Deferred task that deletes all the documents of a search index.
+ *
+ * Used to drop the previous version of an index after a shadow rebuild without delaying the
+ * request that triggered it. Requires the deferred task servlet to be mapped in the app.
+ *
+ * @author lroman
+ */
+final class DeleteSearchIndexTask implements DeferredTask {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MAX_DOCUMENTS_PER_DELETE = 200;
+
+    private final String indexName;
+
+    /**
+     * Constructor.
+     *
+     * @param indexName the name of the index to be deleted.
+     */
+    DeleteSearchIndexTask(String indexName) {
+        this.indexName = indexName;
+    }
+
+    @Override
+    public void run() {
+        Index index = SearchServiceFactory.getSearchService()
+                .getIndex(IndexSpec.newBuilder().setName(indexName).build());
+
+        GetRequest request = GetRequest.newBuilder()
+                .setReturningIdsOnly(true)
+                .setLimit(MAX_DOCUMENTS_PER_DELETE)
+                .build();
+
+        Future<Void> pendingDelete = null;
+        while (true) {
+            GetResponse<Document> toDelete = index.getRange(request);
+            if (toDelete.getResults().isEmpty()) {
+                break;
+            }
+
+            List<String> ids = new ArrayList<>();
+            for (Document d : toDelete.getResults()) {
+                ids.add(d.getId());
+            }
+
+            await(pendingDelete);
+            pendingDelete = index.deleteAsync(ids);
+            request = GetRequest.newBuilder()
+                    .setReturningIdsOnly(true)
+                    .setLimit(MAX_DOCUMENTS_PER_DELETE)
+                    .setStartId(ids.get(ids.size() - 1))
+                    .setIncludeStart(false)
+                    .build();
+        }
+
+        await(pendingDelete);
+    }
+
+    private static void await(Future<Void> delete) {
+        if (delete == null) {
+            return;
+        }
+
+        try {
+            delete.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.Facet;
+import com.google.appengine.api.search.Field;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fingerprints of the documents last written to the search indexes, kept in memcache to skip
+ * writing documents that haven't changed.
+ *
+ * Memcache failures are logged and never fail the index writes: documents are written if their
+ * fingerprint can't be read.
+ *
+ * @author lroman
+ * @see FingerprintedIndexing
+ */
+final class DocumentFingerprints {
+
+    private static final Logger LOG = Logger.getLogger(DocumentFingerprints.class.getName());
+
+    private static final String MEMCACHE_NAMESPACE = "_gae_fw_fingerprints";
+
+    private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService(MEMCACHE_NAMESPACE);
+    private final Expiration expiration;
+
+    /**
+     * Constructor.
+     *
+     * @param config the fingerprinting configuration.
+     */
+    DocumentFingerprints(FingerprintedIndexing config) {
+        this.expiration = Expiration.byDeltaSeconds(config.ttlSeconds());
+    }
+
+    /**
+     * Computes a fingerprint of the content of a document: its locale, fields and facets, in
+     * order. The rank is left out, as it defaults to the document creation time.
+     *
+     * @param document the document.
+     * @return the fingerprint.
+     */
+    static long fingerprint(Document document) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putString(String.valueOf(document.getLocale()), StandardCharsets.UTF_8);
+        for (Field field : document.getFields()) {
+            hasher.putByte((byte) 0).putString(field.toString(), StandardCharsets.UTF_8);
+        }
+        for (Facet facet : document.getFacets()) {
+            hasher.putByte((byte) 1).putString(facet.toString(), StandardCharsets.UTF_8);
+        }
+
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * Filters the documents that differ from the ones last written to an index.
+     *
+     * @param indexName the name of the index.
+     * @param documents the documents to be written.
+     * @return the documents whose fingerprint doesn't match the one last written, in order.
+     */
+    List<Document> changed(String indexName, List<Document> documents) {
+        Map<String, Long> fingerprints = new LinkedHashMap<>();
+        for (Document document : documents) {
+            fingerprints.put(key(indexName, document.getId()), fingerprint(document));
+        }
+
+        Map<String, Object> written;
+        try {
+            written = memcache.getAll(fingerprints.keySet());
+        } catch (RuntimeException ex) {
+            LOG.log(Level.WARNING, "Couldn't read the document fingerprints of " + indexName, ex);
+            return documents;
+        }
+
+        List<Document> changed = new ArrayList<>(documents.size());
+        for (Document document : documents) {
+            String key = key(indexName, document.getId());
+            if (!fingerprints.get(key).equals(written.get(key))) {
+                changed.add(document);
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Records the fingerprints of some documents just written to an index.
+     *
+     * @param indexName the name of the index.
+     * @param documents the written documents.
+     */
+    void written(String indexName, List<Document> documents) {
+        Map<String, Long> fingerprints = new LinkedHashMap<>();
+        for (Document document : documents) {
+            fingerprints.put(key(indexName, document.getId()), fingerprint(document));
+        }
+
+        try {
+            memcache.putAll(fingerprints, expiration);
+        } catch (RuntimeException ex) {
+            LOG.log(Level.WARNING, "Couldn't write the document fingerprints of " + indexName, ex);
+            forget(fingerprints.keySet());
+        }
+    }
+
+    /**
+     * Forgets the fingerprints of some documents, to be called before deleting them from an
+     * index.
+     *
+     * @param indexName the name of the index.
+     * @param documentIds the ids of the documents.
+     */
+    void removed(String indexName, Collection<String> documentIds) {
+        List<String> keys = new ArrayList<>(documentIds.size());
+        for (String documentId : documentIds) {
+            keys.add(key(indexName, documentId));
+        }
+
+        forget(keys);
+    }
+
+    private void forget(Collection<String> keys) {
+        try {
+            memcache.deleteAll(keys);
+        } catch (RuntimeException ex) {
+            LOG.log(Level.SEVERE, "Couldn't delete the document fingerprints " + keys
+                    + ": their documents may not be indexed again until they expire", ex);
+        }
+    }
+
+    private static String key(String indexName, String documentId) {
+        return indexName + ":" + documentId;
+    }
+}
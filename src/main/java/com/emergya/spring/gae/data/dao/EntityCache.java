@@ -0,0 +1,282 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.emergya.spring.gae.data.model.BaseEntity;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Two-tier read-through cache of the entities of a kind, shared by all its dao instances.
+ *
+ * Entities are kept serialized in both tiers and every hit returns a new instance, so callers can
+ * modify what they get without other callers seeing it.
+ *
+ * Loads racing with invalidations never repopulate the cache: in-process entries are only added
+ * if no invalidation happened since the load started, and memcache entries are deleted with an
+ * add lock and only added if not present.
+ *
+ * @author lroman
+ * @param <E> The entity class
+ * @see CachedEntities
+ */
+final class EntityCache<E extends BaseEntity> {
+
+    private static final Logger LOG = Logger.getLogger(EntityCache.class.getName());
+
+    private static final String MEMCACHE_NAMESPACE = "_gae_fw_entities";
+    private static final long MEMCACHE_ADD_LOCK_MILLIS = 2000;
+
+    private static final ConcurrentMap<Class<?>, EntityCache<?>> CACHES = new ConcurrentHashMap<>();
+
+    private final Class<E> entityClass;
+    private final String kind;
+    private final Cache<Long, byte[]> local;
+    private final MemcacheService memcache;
+    private final Expiration expiration;
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder memcacheHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private EntityCache(Class<E> entityClass, CachedEntities config) {
+        this.entityClass = entityClass;
+        this.kind = entityClass.getSimpleName();
+        this.local = CacheBuilder.newBuilder()
+                .maximumSize(config.maxSize())
+                .expireAfterWrite(config.ttlSeconds(), TimeUnit.SECONDS)
+                .build();
+        this.memcache = config.memcache() ? MemcacheServiceFactory.getMemcacheService(MEMCACHE_NAMESPACE) : null;
+        this.expiration = Expiration.byDeltaSeconds(config.ttlSeconds());
+    }
+
+    /**
+     * Gets the cache of an entity kind.
+     *
+     * @param <E> The entity class
+     * @param entityClass the entity class
+     * @param config the cache configuration, taken from the first dao asking for it
+     * @return the cache
+     */
+    static <E extends BaseEntity> EntityCache<E> forClass(Class<E> entityClass, CachedEntities config) {
+        EntityCache<?> cache = CACHES.get(entityClass);
+        if (cache == null) {
+            EntityCache<E> created = new EntityCache<>(entityClass, config);
+            cache = CACHES.putIfAbsent(entityClass, created);
+            if (cache == null) {
+                cache = created;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        EntityCache<E> typed = (EntityCache<E>) cache;
+        return typed;
+    }
+
+    /**
+     * Marks the start of a load, to be passed to {@link #put(BaseEntity, long)}.
+     *
+     * @return the load stamp
+     */
+    long startLoad() {
+        return invalidations.get();
+    }
+
+    /**
+     * Gets a cached entity.
+     *
+     * @param id the entity id
+     * @return a copy of the entity, or null if it isn't cached
+     */
+    E get(long id) {
+        E entity = deserialize(id, local.getIfPresent(id));
+        if (entity != null) {
+            hits.increment();
+            return entity;
+        }
+
+        if (memcache != null) {
+            Object cached = null;
+            try {
+                cached = memcache.get(memcacheKey(id));
+            } catch (RuntimeException ex) {
+                LOG.log(Level.WARNING, "Couldn't read " + kind + " " + id + " from memcache", ex);
+            }
+
+            entity = deserialize(id, cached);
+            if (entity != null) {
+                memcacheHits.increment();
+                local.put(id, (byte[]) cached);
+                return entity;
+            }
+        }
+
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Gets the cached entities among some ids.
+     *
+     * @param ids the entity ids
+     * @return copies of the cached entities by id
+     */
+    Map<Long, E> getAll(Collection<Long> ids) {
+        Map<Long, E> found = new LinkedHashMap<>();
+        List<Long> missing = new ArrayList<>();
+        for (Long id : ids) {
+            E entity = deserialize(id, local.getIfPresent(id));
+            if (entity != null) {
+                hits.increment();
+                found.put(id, entity);
+            } else {
+                missing.add(id);
+            }
+        }
+
+        if (memcache != null && !missing.isEmpty()) {
+            List<String> keys = new ArrayList<>(missing.size());
+            for (Long id : missing) {
+                keys.add(memcacheKey(id));
+            }
+
+            try {
+                Map<String, Object> cached = memcache.getAll(keys);
+                for (Long id : missing) {
+                    Object serialized = cached.get(memcacheKey(id));
+                    E entity = deserialize(id, serialized);
+                    if (entity != null) {
+                        memcacheHits.increment();
+                        local.put(id, (byte[]) serialized);
+                        found.put(id, entity);
+                    }
+                }
+            } catch (RuntimeException ex) {
+                LOG.log(Level.WARNING, "Couldn't read " + kind + " entities from memcache", ex);
+            }
+        }
+
+        misses.add(ids.size() - found.size());
+        return found;
+    }
+
+    /**
+     * Caches a loaded entity, unless it was invalidated while being loaded. The entity is
+     * serialized right away, so later changes to the instance aren't cached.
+     *
+     * @param entity the loaded entity
+     * @param loadStamp the stamp returned by {@link #startLoad()} before loading it
+     */
+    void put(E entity, long loadStamp) {
+        if (invalidations.get() != loadStamp) {
+            return;
+        }
+
+        byte[] serialized = serialize(entity);
+        if (serialized == null) {
+            return;
+        }
+
+        local.put(entity.getId(), serialized);
+
+        if (memcache != null) {
+            try {
+                memcache.put(memcacheKey(entity.getId()), serialized, expiration,
+                        MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+            } catch (RuntimeException ex) {
+                LOG.log(Level.WARNING, "Couldn't write " + kind + " " + entity.getId() + " to memcache", ex);
+            }
+        }
+    }
+
+    /**
+     * Removes entities from both tiers.
+     *
+     * @param ids the ids of the changed or deleted entities
+     */
+    void invalidate(Collection<Long> ids) {
+        invalidations.incrementAndGet();
+        local.invalidateAll(ids);
+        evictions.add(ids.size());
+
+        if (memcache != null) {
+            List<String> keys = new ArrayList<>(ids.size());
+            for (Long id : ids) {
+                keys.add(memcacheKey(id));
+            }
+
+            try {
+                memcache.deleteAll(keys, MEMCACHE_ADD_LOCK_MILLIS);
+            } catch (RuntimeException ex) {
+                LOG.log(Level.WARNING, "Couldn't invalidate " + kind + " entities in memcache", ex);
+            }
+        }
+    }
+
+    /**
+     * @return the hit, miss and invalidation counters, plus the in-process tier size
+     */
+    Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("hits", hits.sum());
+        stats.put("memcacheHits", memcacheHits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("invalidations", evictions.sum());
+        stats.put("size", local.size());
+        return stats;
+    }
+
+    private String memcacheKey(long id) {
+        return kind + ":" + id;
+    }
+
+    private byte[] serialize(E entity) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(entity);
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Couldn't cache " + kind + " " + entity.getId() + ": it can't be serialized", ex);
+            return null;
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserializes a cached entity, taking entries that aren't one (e.g. cached by a previous
+     * version) as misses.
+     */
+    private E deserialize(long id, Object cached) {
+        if (!(cached instanceof byte[])) {
+            return null;
+        }
+
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream((byte[]) cached))) {
+            Object entity = in.readObject();
+            return entityClass.isInstance(entity) ? entityClass.cast(entity) : null;
+        } catch (IOException | ClassNotFoundException ex) {
+            LOG.log(Level.WARNING, "Couldn't read cached " + kind + " " + id, ex);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.emergya.spring.gae.data.model.BaseEntity;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cmd.Query;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads all the entities of a key range in fixed-size chunks using DataStore query cursors.
+ *
+ * Every chunk is loaded with a fresh Objectify session, so already processed entities are not
+ * retained by the session cache and memory stays bounded by the chunk size.
+ *
+ * @author lroman
+ * @param <E> The entity class
+ */
+final class EntityChunkReader<E extends BaseEntity> {
+
+    private final Class<E> entityClass;
+    private final KeyRange<E> range;
+    private final int chunkSize;
+
+    private Cursor cursor;
+    private boolean exhausted;
+
+    /**
+     * Constructor.
+     *
+     * @param entityClass the class of the entities to read.
+     * @param range the key range to read.
+     * @param chunkSize the number of entities of each chunk.
+     */
+    EntityChunkReader(Class<E> entityClass, KeyRange<E> range, int chunkSize) {
+        this(entityClass, range, chunkSize, null);
+    }
+
+    /**
+     * Constructor, to resume reading from a cursor.
+     *
+     * @param entityClass the class of the entities to read.
+     * @param range the key range to read, the same the cursor was read from.
+     * @param chunkSize the number of entities of each chunk.
+     * @param cursor the cursor to resume from, or null to read from the start of the range.
+     */
+    EntityChunkReader(Class<E> entityClass, KeyRange<E> range, int chunkSize, Cursor cursor) {
+        this.entityClass = entityClass;
+        this.range = range;
+        this.chunkSize = chunkSize;
+        this.cursor = cursor;
+    }
+
+    /**
+     * Reads the next chunk.
+     *
+     * @return the entities of the chunk, empty if all the range has been read.
+     */
+    List<E> next() {
+        List<E> chunk = new ArrayList<>(chunkSize);
+        if (exhausted) {
+            return chunk;
+        }
+
+        Query<E> query = range.restrict(ObjectifyService.factory().begin().load().type(entityClass))
+                .chunk(chunkSize)
+                .limit(chunkSize);
+        if (cursor != null) {
+            query = query.startAt(cursor);
+        }
+
+        QueryResultIterator<E> iterator = query.iterator();
+        while (iterator.hasNext()) {
+            chunk.add(iterator.next());
+        }
+
+        if (chunk.size() < chunkSize) {
+            exhausted = true;
+        } else {
+            cursor = iterator.getCursor();
+        }
+
+        return chunk;
+    }
+
+    /**
+     * @return the cursor after the last chunk read, or null if all the range has been read
+     */
+    Cursor getCursor() {
+        return exhausted ? null : cursor;
+    }
+}
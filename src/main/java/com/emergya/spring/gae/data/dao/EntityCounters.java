@@ -0,0 +1,312 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.emergya.spring.gae.data.model.BaseEntity;
+import static com.emergya.spring.gae.utils.BackoffTryer.tryWithBackoff;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.Field;
+import com.googlecode.objectify.ObjectifyService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sharded DataStore counters of the entities of a kind, in total and by facet value.
+ *
+ * Every shard is a <c>_CounterShard</c> entity holding one property per counted dimension.
+ * Updates go to a random shard in a transaction, and reads sum all the shards in a single batch
+ * get. The transaction only covers the shard, not the counted entities, so counts are approximate
+ * until the next {@link #rebuild()}.
+ *
+ * @author lroman
+ * @param <E> The entity class
+ * @see MaintainedCounters
+ */
+final class EntityCounters<E extends BaseEntity> {
+
+    private static final String KIND = "_CounterShard";
+    private static final String TOTAL = "_total";
+    private static final String READY = "_ready";
+    private static final int REBUILD_CHUNK_SIZE = 500;
+
+    private static final Pattern EQUALITY = Pattern.compile("^\\s*(\\w+)\\s*[:=]\\s*(\"?)([^\"\\s()]+)\\2\\s*$");
+
+    private final Class<E> entityClass;
+    private final Set<String> facets;
+    private final List<Key> shardKeys;
+
+    /**
+     * Constructor.
+     *
+     * @param entityClass the class of the counted entities.
+     * @param config the counters configuration.
+     * @throws IllegalStateException if a counted facet isn't indexed as an atom.
+     */
+    EntityCounters(Class<E> entityClass, MaintainedCounters config) {
+        this.entityClass = entityClass;
+        this.facets = new HashSet<>(Arrays.asList(config.facets()));
+
+        Set<String> atomFields = BaseEntity.getAtomFields(entityClass);
+        for (String facet : facets) {
+            if (!atomFields.contains(facet)) {
+                throw new IllegalStateException(String.format(
+                        "%s can't count %s: only fields indexed as atoms can be counted.",
+                        entityClass.getSimpleName(), facet));
+            }
+        }
+
+        List<Key> keys = new ArrayList<>(config.shards());
+        for (int i = 0; i < Math.max(1, config.shards()); i++) {
+            keys.add(KeyFactory.createKey(KIND, entityClass.getSimpleName() + "#" + i));
+        }
+        this.shardKeys = Collections.unmodifiableList(keys);
+    }
+
+    /**
+     * Gets the counted dimensions of some stored entities, before they are changed.
+     *
+     * @param ids the ids of the entities, null ones (new entities) are skipped.
+     * @return the dimensions of each existing entity by id.
+     */
+    Map<Long, List<String>> snapshot(Collection<Long> ids) {
+        List<Long> existing = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            if (id != null) {
+                existing.add(id);
+            }
+        }
+
+        Map<Long, List<String>> dimensions = new HashMap<>();
+        if (existing.isEmpty()) {
+            return dimensions;
+        }
+
+        // A fresh session, as the session cache may hold the very instances being saved.
+        Map<Long, E> stored = ObjectifyService.factory().begin().load().type(entityClass).ids(existing);
+        for (Map.Entry<Long, E> entry : stored.entrySet()) {
+            dimensions.put(entry.getKey(), dimensionsOf(entry.getValue()));
+        }
+
+        return dimensions;
+    }
+
+    /**
+     * Updates the counters after some entities were saved.
+     *
+     * @param saved the saved entities.
+     * @param before the snapshot of the entities taken before saving them.
+     */
+    void saved(List<E> saved, Map<Long, List<String>> before) {
+        Map<String, Long> deltas = new HashMap<>();
+        for (E entity : saved) {
+            List<String> previous = before.get(entity.getId());
+            if (previous == null) {
+                add(deltas, TOTAL, 1);
+            } else {
+                for (String dimension : previous) {
+                    add(deltas, dimension, -1);
+                }
+            }
+
+            for (String dimension : dimensionsOf(entity)) {
+                add(deltas, dimension, 1);
+            }
+        }
+
+        apply(deltas);
+    }
+
+    /**
+     * Updates the counters after some entities were deleted.
+     *
+     * @param before the snapshot of the entities taken before deleting them.
+     */
+    void deleted(Map<Long, List<String>> before) {
+        Map<String, Long> deltas = new HashMap<>();
+        for (List<String> dimensions : before.values()) {
+            add(deltas, TOTAL, -1);
+            for (String dimension : dimensions) {
+                add(deltas, dimension, -1);
+            }
+        }
+
+        apply(deltas);
+    }
+
+    /**
+     * Answers a count query from the counters, if it matches a maintained dimension, starting to
+     * read them without waiting for the DataStore.
+     *
+     * @param queryString the query
+     * @return a call waiting for the counters and returning the count, or null if the counters
+     * aren't ready yet; null if the query doesn't match a maintained dimension
+     */
+    Callable<Long> startCount(String queryString) {
+        final String dimension = dimensionOf(queryString);
+        if (dimension == null) {
+            return null;
+        }
+
+        final Future<Map<Key, Entity>> reading = DatastoreServiceFactory.getAsyncDatastoreService().get(shardKeys);
+        return new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                boolean ready = false;
+                long count = 0;
+                for (Entity shard : reading.get().values()) {
+                    ready |= shard.hasProperty(READY);
+
+                    Long value = (Long) shard.getProperty(dimension);
+                    if (value != null) {
+                        count += value;
+                    }
+                }
+
+                return ready ? count : null;
+            }
+        };
+    }
+
+    /**
+     * Recounts all the entities of the kind and replaces the counters.
+     *
+     * Changes made while counting are not reflected, so it should be run when the kind isn't
+     * being written.
+     *
+     * @return the total number of entities.
+     */
+    long rebuild() {
+        Map<String, Long> totals = new HashMap<>();
+        EntityChunkReader<E> reader = new EntityChunkReader<>(entityClass, new KeyRange<E>(null, null), REBUILD_CHUNK_SIZE);
+        for (List<E> chunk = reader.next(); !chunk.isEmpty(); chunk = reader.next()) {
+            for (E entity : chunk) {
+                add(totals, TOTAL, 1);
+                for (String dimension : dimensionsOf(entity)) {
+                    add(totals, dimension, 1);
+                }
+            }
+        }
+
+        List<Entity> shards = new ArrayList<>(shardKeys.size());
+        for (Key key : shardKeys) {
+            shards.add(new Entity(key));
+        }
+
+        Entity first = shards.get(0);
+        first.setUnindexedProperty(READY, true);
+        for (Map.Entry<String, Long> total : totals.entrySet()) {
+            first.setUnindexedProperty(total.getKey(), total.getValue());
+        }
+
+        DatastoreServiceFactory.getDatastoreService().put(shards);
+
+        Long total = totals.get(TOTAL);
+        return total == null ? 0 : total;
+    }
+
+    private void apply(final Map<String, Long> deltas) {
+        deltas.values().removeAll(Collections.singleton(0L));
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        tryWithBackoff(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                Key key = shardKeys.get(ThreadLocalRandom.current().nextInt(shardKeys.size()));
+
+                DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+                Transaction txn = datastore.beginTransaction();
+                try {
+                    Entity shard;
+                    try {
+                        shard = datastore.get(txn, key);
+                    } catch (EntityNotFoundException ex) {
+                        shard = new Entity(key);
+                    }
+
+                    for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+                        Long value = (Long) shard.getProperty(delta.getKey());
+                        shard.setUnindexedProperty(delta.getKey(), (value == null ? 0 : value) + delta.getValue());
+                    }
+
+                    datastore.put(txn, shard);
+                    txn.commit();
+                    return true;
+                } finally {
+                    if (txn.isActive()) {
+                        txn.rollback();
+                    }
+                }
+            }
+        });
+    }
+
+    private List<String> dimensionsOf(E entity) {
+        List<String> dimensions = new ArrayList<>();
+        if (facets.isEmpty()) {
+            return dimensions;
+        }
+
+        Document document = entity.toDocument();
+        for (String facet : facets) {
+            if (!document.getFieldNames().contains(facet)) {
+                continue;
+            }
+
+            for (Field field : document.getFields(facet)) {
+                String value = valueOf(field);
+                if (value != null) {
+                    dimensions.add(facet + "=" + value);
+                }
+            }
+        }
+
+        return dimensions;
+    }
+
+    private String dimensionOf(String queryString) {
+        if (queryString == null || queryString.trim().isEmpty()) {
+            return TOTAL;
+        }
+
+        // atoms match ignoring case, so dimensions are kept lower case
+        Matcher matcher = EQUALITY.matcher(queryString);
+        if (matcher.matches() && facets.contains(matcher.group(1))) {
+            return matcher.group(1) + "=" + matcher.group(3).toLowerCase(Locale.ROOT);
+        }
+
+        return null;
+    }
+
+    private static String valueOf(Field field) {
+        if (field.getType() == Field.FieldType.ATOM) {
+            return field.getAtom().toLowerCase(Locale.ROOT);
+        }
+
+        return null;
+    }
+
+    private static void add(Map<String, Long> deltas, String dimension, long delta) {
+        Long current = deltas.get(dimension);
+        deltas.put(dimension, (current == null ? 0 : current) + delta);
+    }
+}
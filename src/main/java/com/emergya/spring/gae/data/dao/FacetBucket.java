@@ -0,0 +1,37 @@
+package com.emergya.spring.gae.data.dao;
+
+/**
+ * The number of search matches with a value, or a range of values, of a facet.
+ *
+ * @author lroman
+ */
+public final class FacetBucket {
+
+    private final String label;
+    private final int count;
+
+    /**
+     * Constructor.
+     *
+     * @param label the value, or the range of values as <c>[start,end)</c>.
+     * @param count the number of matches.
+     */
+    public FacetBucket(String label, int count) {
+        this.label = label;
+        this.count = count;
+    }
+
+    /**
+     * @return the value, or the range of values as <c>[start,end)</c>
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @return the number of matches
+     */
+    public int getCount() {
+        return count;
+    }
+}
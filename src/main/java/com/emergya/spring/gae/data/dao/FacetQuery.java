@@ -0,0 +1,110 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.emergya.spring.gae.data.model.SearchFacet;
+import com.google.appengine.api.search.FacetRange;
+import com.google.appengine.api.search.FacetRequest;
+
+/**
+ * A facet to be counted by a faceted search, by value or by ranges of values.
+ *
+ * @author lroman
+ * @see SearchFacet
+ */
+public final class FacetQuery {
+
+    /**
+     * Number of values counted by default, the ones with most matches.
+     */
+    public static final int DEFAULT_VALUE_LIMIT = 10;
+
+    private final String name;
+    private final int valueLimit;
+    private final double[] bounds;
+
+    private FacetQuery(String name, int valueLimit, double[] bounds) {
+        this.name = name;
+        this.valueLimit = valueLimit;
+        this.bounds = bounds;
+    }
+
+    /**
+     * Counts the matches by value of a facet, for the {@value #DEFAULT_VALUE_LIMIT} values with
+     * most matches.
+     *
+     * @param name the name of the facet.
+     * @return the facet query.
+     */
+    public static FacetQuery values(String name) {
+        return values(name, DEFAULT_VALUE_LIMIT);
+    }
+
+    /**
+     * Counts the matches by value of a facet.
+     *
+     * @param name the name of the facet.
+     * @param valueLimit the number of values to count, the ones with most matches, up to 20.
+     * @return the facet query.
+     */
+    public static FacetQuery values(String name, int valueLimit) {
+        return new FacetQuery(name, valueLimit, null);
+    }
+
+    /**
+     * Counts the matches of a number facet by ranges of values: from each bound, included, to the
+     * next one, excluded.
+     *
+     * @param name the name of the facet.
+     * @param bounds the bounds of the ranges, in ascending order.
+     * @return the facet query.
+     * @throws IllegalArgumentException if there are less than two bounds or they aren't ascending.
+     */
+    public static FacetQuery ranges(String name, double... bounds) {
+        if (bounds.length < 2) {
+            throw new IllegalArgumentException("At least two bounds are needed to count ranges of " + name);
+        }
+        for (int i = 1; i < bounds.length; i++) {
+            if (bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("The bounds of the ranges of " + name + " must be ascending");
+            }
+        }
+
+        return new FacetQuery(name, bounds.length - 1, bounds.clone());
+    }
+
+    /**
+     * @return the name of the facet
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return whether matches are counted by ranges of values instead of by value
+     */
+    public boolean isRanges() {
+        return bounds != null;
+    }
+
+    /**
+     * Builds the facet request sent to the search service.
+     *
+     * @param type the type of the facet.
+     * @return the request.
+     * @throws IllegalArgumentException if ranges are counted for an atom facet.
+     */
+    FacetRequest toFacetRequest(SearchFacet.Type type) {
+        FacetRequest.Builder request = FacetRequest.newBuilder().setName(name).setValueLimit(valueLimit);
+        if (bounds == null) {
+            return request.build();
+        }
+
+        if (type != SearchFacet.Type.NUMBER) {
+            throw new IllegalArgumentException("Ranges can only be counted for number facets, and " + name + " isn't");
+        }
+        for (int i = 1; i < bounds.length; i++) {
+            request.addRange(FacetRange.withStartEnd(bounds[i - 1], bounds[i]));
+        }
+
+        return request.build();
+    }
+}
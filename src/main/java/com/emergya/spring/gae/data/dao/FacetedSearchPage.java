@@ -0,0 +1,65 @@
+package com.emergya.spring.gae.data.dao;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A page of search results plus the cursor to retrieve the next one and the match counts of the
+ * requested facets, e.g. to render filters next to the results.
+ *
+ * @author lroman
+ * @param <T> the type of the page items
+ */
+public final class FacetedSearchPage<T> {
+
+    private final SearchPage<T> page;
+    private final Map<String, List<FacetBucket>> facets;
+
+    /**
+     * Constructor.
+     *
+     * @param page the page of results.
+     * @param facets the counts of every facet, by facet name.
+     */
+    public FacetedSearchPage(SearchPage<T> page, Map<String, List<FacetBucket>> facets) {
+        this.page = page;
+        this.facets = Collections.unmodifiableMap(facets);
+    }
+
+    /**
+     * @return the page items
+     */
+    public List<T> getItems() {
+        return page.getItems();
+    }
+
+    /**
+     * @return the token to retrieve the next page, or null if this is the last one
+     */
+    public String getCursor() {
+        return page.getCursor();
+    }
+
+    /**
+     * @return whether there are more pages after this one
+     */
+    public boolean hasMore() {
+        return page.hasMore();
+    }
+
+    /**
+     * @return the (approximate) total number of results matching the query
+     */
+    public long getNumberFound() {
+        return page.getNumberFound();
+    }
+
+    /**
+     * @return the counts of every requested facet by facet name, with values with most matches
+     * first and ranges in the requested order; facets without matches are left out
+     */
+    public Map<String, List<FacetBucket>> getFacets() {
+        return facets;
+    }
+}
@@ -0,0 +1,33 @@
+package com.emergya.spring.gae.data.dao;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables skipping redundant search index writes on a DatastoreBaseDao subclass.
+ *
+ * A fingerprint of every document written to the index is kept in memcache, and documents whose
+ * fingerprint matches the one last written are not written again, so saves that only change
+ * unindexed properties don't use Search quota. A missing fingerprint (e.g. evicted from memcache)
+ * just means the document is written. Fingerprints aren't used while the index is being rebuilt,
+ * and <c>reindex()</c> writes every document regardless of them.
+ *
+ * Concurrent saves of the same entity may leave a fingerprint not matching the indexed document,
+ * so fingerprints expire after {@link #ttlSeconds()} to bound how long such a document can be
+ * left stale.
+ *
+ * @author lroman
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface FingerprintedIndexing {
+
+    /**
+     * @return the time, in seconds, a fingerprint is kept after its document is written.
+     */
+    int ttlSeconds() default 86400;
+}
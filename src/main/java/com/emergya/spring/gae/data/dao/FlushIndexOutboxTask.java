@@ -0,0 +1,41 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Deferred task that flushes the index outbox of a dao with write-behind indexing.
+ *
+ * @author lroman
+ */
+final class FlushIndexOutboxTask implements DeferredTask {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Class<?> daoClass;
+    private final boolean followUp;
+
+    /**
+     * Constructor.
+     *
+     * @param daoClass the class of the dao whose outbox must be flushed.
+     * @param followUp whether the task checks for entries a previous flush couldn't see yet.
+     */
+    FlushIndexOutboxTask(Class<?> daoClass, boolean followUp) {
+        this.daoClass = daoClass;
+        this.followUp = followUp;
+    }
+
+    @Override
+    public void run() {
+        DatastoreBaseDao<?> dao;
+        try {
+            dao = (DatastoreBaseDao<?>) daoClass.getConstructor().newInstance();
+        } catch (NoSuchMethodException | InstantiationException | IllegalAccessException
+                | InvocationTargetException ex) {
+            throw new IllegalStateException("Couldn't create an instance of " + daoClass.getName(), ex);
+        }
+
+        dao.flushIndexOutbox(followUp);
+    }
+}
@@ -0,0 +1,654 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.emergya.spring.gae.data.model.BaseEntity;
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.Field;
+import com.google.common.collect.Lists;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * {@link BaseDao} keeping the entities in memory, to run apps without the App Engine services,
+ * e.g. to load test their controllers on a plain JVM.
+ *
+ * Entities are stored serialized, so like with the DataStore, changes to an entity aren't seen
+ * until it is saved and every load returns a new instance. Saves and loads only touch a
+ * concurrent map, so they scale with the cores of the machine.
+ *
+ * Searches scan the documents built by <c>toDocument()</c> and support a subset of the query
+ * language: terms joined by <c>AND</c> (or just spaces) and <c>OR</c>, grouped with parentheses,
+ * each one a word matched against every field, a <c>field:value</c> or <c>field = value</c>
+ * equality, or a <c>&lt;</c>, <c>&lt;=</c>, <c>&gt;</c>, <c>&gt;=</c> comparison on number and
+ * date fields (dates as yyyy-MM-dd), optionally negated by a leading <c>-</c> or <c>NOT</c>.
+ * Values with spaces must be quoted. Other syntax, like functions or stemming, is rejected with
+ * an <c>IllegalArgumentException</c>. Results are returned newest first, as the Search API does
+ * by default.
+ *
+ * To use it, inject daos by their <c>BaseDao</c> interface and declare an
+ * <c>InMemoryBaseDao</c> bean instead of the <c>DatastoreBaseDao</c> one, e.g. in a load test
+ * Spring profile. Its async methods complete before returning.
+ *
+ * @author lroman
+ * @param <E> The entity class
+ */
+public class InMemoryBaseDao<E extends BaseEntity> implements BaseDao<E> {
+
+    private static final int MAX_SEARCH_LIMIT = 1000;
+
+    private static final Pattern TOKEN = Pattern.compile(
+            "\\s*(?:([()])|(-)(?=\\S)|(?:(\\w+)\\s*(:|=|<=|>=|<|>)\\s*)?(\"[^\"]*\"|[^\\s\"():=<>~][^\\s\"():=<>]*))");
+
+    private static final Condition MATCH_ALL = allOf(Collections.<Condition>emptyList());
+
+    private static final Comparator<StoredEntity> NEWEST_FIRST = new Comparator<StoredEntity>() {
+        @Override
+        public int compare(StoredEntity a, StoredEntity b) {
+            return Long.compare(b.id, a.id);
+        }
+    };
+
+    private final ConcurrentMap<Long, StoredEntity> entities = new ConcurrentHashMap<>();
+    private final AtomicLong lastId = new AtomicLong();
+
+    @Override
+    public BatchSaveResult batchSave(final List<E> entitiesToSave) {
+        BatchSaveResult result = new BatchSaveResult();
+        for (int first = 0; first < entitiesToSave.size(); first += BatchWriter.DATASTORE_BATCH_SIZE) {
+            List<E> chunk = entitiesToSave.subList(
+                    first, Math.min(entitiesToSave.size(), first + BatchWriter.DATASTORE_BATCH_SIZE));
+
+            long start = System.nanoTime();
+            BatchSaveResult.ChunkResult chunkResult = new BatchSaveResult.ChunkResult(first, chunk.size());
+            try {
+                for (E entity : chunk) {
+                    save(entity);
+                }
+                chunkResult.setSaved(true);
+                chunkResult.setIndexed(true);
+            } catch (RuntimeException ex) {
+                chunkResult.setError(ex);
+            }
+            chunkResult.setElapsedMillis((System.nanoTime() - start) / 1000000);
+
+            result.add(chunkResult);
+        }
+
+        return result;
+    }
+
+    @Override
+    public long count(String queryString) {
+        return find(queryString).size();
+    }
+
+    @Override
+    public void delete(E entity) {
+        delete(entity.getId());
+    }
+
+    @Override
+    public void delete(long id) {
+        entities.remove(id);
+    }
+
+    @Override
+    public void deleteAll(Collection<Long> ids) {
+        for (Long id : ids) {
+            entities.remove(id);
+        }
+    }
+
+    @Override
+    public E getById(long id) {
+        StoredEntity stored = entities.get(id);
+        return stored == null ? null : this.<E>deserialize(stored.serialized);
+    }
+
+    @Override
+    public List<E> getByIds(Collection<Long> ids) {
+        List<E> result = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            StoredEntity stored = entities.get(id);
+            if (stored != null) {
+                result.add(this.<E>deserialize(stored.serialized));
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public List<E> list() {
+        List<StoredEntity> all = new ArrayList<>(entities.values());
+        Collections.sort(all, Collections.reverseOrder(NEWEST_FIRST));
+
+        return hydrate(all);
+    }
+
+    @Override
+    public Stream<E> stream() {
+        return list().stream();
+    }
+
+    @Override
+    public Iterator<E> iterate(int chunkSize) {
+        return list().iterator();
+    }
+
+    @Override
+    public void forEachChunk(int chunkSize, ChunkHandler<E> handler) {
+        for (List<E> chunk : Lists.partition(list(), chunkSize)) {
+            try {
+                handler.handle(chunk);
+            } catch (RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    @Override
+    public Long save(final E entity) {
+        if (entity.getId() == null) {
+            entity.setId(lastId.incrementAndGet());
+        } else {
+            long id = entity.getId();
+            long last = lastId.get();
+            while (id > last && !lastId.compareAndSet(last, id)) {
+                last = lastId.get();
+            }
+        }
+
+        entities.put(entity.getId(), new StoredEntity(entity.getId(), serialize(entity), indexedValues(entity)));
+        return entity.getId();
+    }
+
+    @Override
+    public Collection<E> search(String queryString) {
+        return search(queryString, 0, MAX_SEARCH_LIMIT);
+    }
+
+    @Override
+    public Collection<E> search(String queryString, int offset, int limit) {
+        List<StoredEntity> found = find(queryString);
+        return hydrate(found.subList(Math.min(offset, found.size()), Math.min(offset + limit, found.size())));
+    }
+
+    @Override
+    public SearchPage<E> searchPage(String queryString, String cursor, int limit) {
+        int offset = 0;
+        if (cursor != null && !cursor.isEmpty()) {
+            try {
+                offset = Integer.parseInt(cursor);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor, ex);
+            }
+        }
+
+        List<StoredEntity> found = find(queryString);
+        int end = Math.min(offset + limit, found.size());
+
+        return new SearchPage<>(
+                hydrate(found.subList(Math.min(offset, found.size()), end)),
+                end < found.size() ? Integer.toString(end) : null,
+                found.size());
+    }
+
+    @Override
+    public CompletableFuture<Long> countAsync(String queryString) {
+        try {
+            return CompletableFuture.completedFuture(count(queryString));
+        } catch (RuntimeException ex) {
+            return failed(ex);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(long id) {
+        delete(id);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<E> getByIdAsync(long id) {
+        try {
+            return CompletableFuture.completedFuture(getById(id));
+        } catch (RuntimeException ex) {
+            return failed(ex);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Long> saveAsync(E entity) {
+        try {
+            return CompletableFuture.completedFuture(save(entity));
+        } catch (RuntimeException ex) {
+            return failed(ex);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Collection<E>> searchAsync(String queryString, int offset, int limit) {
+        try {
+            return CompletableFuture.completedFuture(search(queryString, offset, limit));
+        } catch (RuntimeException ex) {
+            return failed(ex);
+        }
+    }
+
+    private static <V> CompletableFuture<V> failed(RuntimeException error) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
+    private List<StoredEntity> find(String queryString) {
+        Condition condition = parse(queryString);
+
+        List<StoredEntity> found = new ArrayList<>();
+        for (StoredEntity stored : entities.values()) {
+            if (condition.matches(stored.values)) {
+                found.add(stored);
+            }
+        }
+        Collections.sort(found, NEWEST_FIRST);
+
+        return found;
+    }
+
+    private List<E> hydrate(List<StoredEntity> found) {
+        List<E> result = new ArrayList<>(found.size());
+        for (StoredEntity stored : found) {
+            result.add(this.<E>deserialize(stored.serialized));
+        }
+
+        return result;
+    }
+
+    private static Condition parse(String queryString) {
+        if (queryString == null || queryString.trim().isEmpty()) {
+            return MATCH_ALL;
+        }
+
+        return new QueryParser(queryString).parse();
+    }
+
+    private static Condition not(final Condition condition) {
+        return new Condition() {
+            @Override
+            public boolean matches(Map<String, List<Object>> values) {
+                return !condition.matches(values);
+            }
+        };
+    }
+
+    private static Condition allOf(final List<Condition> conditions) {
+        return new Condition() {
+            @Override
+            public boolean matches(Map<String, List<Object>> values) {
+                for (Condition condition : conditions) {
+                    if (!condition.matches(values)) {
+                        return false;
+                    }
+                }
+
+                return true;
+            }
+        };
+    }
+
+    private static Condition anyOf(final List<Condition> conditions) {
+        return new Condition() {
+            @Override
+            public boolean matches(Map<String, List<Object>> values) {
+                for (Condition condition : conditions) {
+                    if (condition.matches(values)) {
+                        return true;
+                    }
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Extracts the searchable values of the document of an entity: atoms as lower case strings,
+     * texts as their lower case words, numbers as doubles and dates.
+     */
+    private static Map<String, List<Object>> indexedValues(BaseEntity entity) {
+        Map<String, List<Object>> values = new HashMap<>();
+
+        Document document = entity.toDocument();
+        for (Field field : document.getFields()) {
+            Object value;
+            switch (field.getType()) {
+                case ATOM:
+                    value = field.getAtom().toLowerCase(Locale.ROOT);
+                    break;
+                case TEXT:
+                    value = words(field.getText());
+                    break;
+                case HTML:
+                    value = words(field.getHTML());
+                    break;
+                case NUMBER:
+                    value = field.getNumber();
+                    break;
+                case DATE:
+                    value = field.getDate();
+                    break;
+                default:
+                    continue;
+            }
+
+            List<Object> fieldValues = values.get(field.getName());
+            if (fieldValues == null) {
+                fieldValues = new ArrayList<>(1);
+                values.put(field.getName(), fieldValues);
+            }
+            fieldValues.add(value);
+        }
+
+        return values;
+    }
+
+    private static String[] words(String text) {
+        return text == null ? new String[0] : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+");
+    }
+
+    private static byte[] serialize(BaseEntity entity) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(entity);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("The entity can't be serialized: " + entity, ex);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T deserialize(byte[] serialized) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            return (T) in.readObject();
+        } catch (IOException | ClassNotFoundException ex) {
+            throw new IllegalStateException("A stored entity can't be deserialized.", ex);
+        }
+    }
+
+    /**
+     * An entity as stored: serialized, with the values of its search document.
+     */
+    private static final class StoredEntity {
+
+        private final long id;
+        private final byte[] serialized;
+        private final Map<String, List<Object>> values;
+
+        StoredEntity(long id, byte[] serialized, Map<String, List<Object>> values) {
+            this.id = id;
+            this.serialized = serialized;
+            this.values = values;
+        }
+    }
+
+    /**
+     * A condition of a search query on the values of a document.
+     */
+    private interface Condition {
+
+        boolean matches(Map<String, List<Object>> values);
+    }
+
+    /**
+     * Recursive descent parser of search queries. Tokens are parentheses, the <c>OR</c>,
+     * <c>AND</c> and <c>NOT</c> keywords, the <c>-</c> negation and terms, and the grammar is:
+     *
+     * <pre>
+     * query    = or
+     * or       = and ("OR" and)*
+     * and      = negation (["AND"] negation)*
+     * negation = ("NOT" | "-") negation | "(" or ")" | term
+     * </pre>
+     */
+    private static final class QueryParser {
+
+        private final String queryString;
+        private final List<Object> tokens = new ArrayList<>();
+        private int position;
+
+        QueryParser(String queryString) {
+            this.queryString = queryString;
+            tokenize();
+        }
+
+        Condition parse() {
+            Condition condition = or();
+            if (position < tokens.size()) {
+                throw unsupported("unexpected '" + tokens.get(position) + "'");
+            }
+
+            return condition;
+        }
+
+        private void tokenize() {
+            Matcher matcher = TOKEN.matcher(queryString);
+            int end = 0;
+            boolean afterTerm = false;
+            while (!queryString.substring(end).trim().isEmpty()) {
+                matcher.region(end, queryString.length());
+                if (!matcher.lookingAt()) {
+                    throw unsupported("'" + queryString.substring(end).trim() + "'");
+                }
+
+                if (matcher.group(1) != null) {
+                    if ("(".equals(matcher.group(1)) && afterTerm && matcher.start(1) == end) {
+                        throw unsupported("functions");
+                    }
+                    tokens.add(matcher.group(1));
+                    afterTerm = false;
+                } else if (matcher.group(2) != null) {
+                    tokens.add("-");
+                    afterTerm = false;
+                } else {
+                    String value = matcher.group(5);
+                    if (matcher.group(3) == null
+                            && ("OR".equals(value) || "AND".equals(value) || "NOT".equals(value))) {
+                        tokens.add(value);
+                        afterTerm = false;
+                    } else {
+                        if (value.startsWith("\"")) {
+                            value = value.substring(1, value.length() - 1);
+                        }
+                        tokens.add(new Term(matcher.group(3), matcher.group(4), value.toLowerCase(Locale.ROOT)));
+                        afterTerm = true;
+                    }
+                }
+                end = matcher.end();
+            }
+        }
+
+        private Condition or() {
+            List<Condition> conditions = new ArrayList<>();
+            conditions.add(and());
+            while ("OR".equals(peek())) {
+                position++;
+                conditions.add(and());
+            }
+
+            return conditions.size() == 1 ? conditions.get(0) : anyOf(conditions);
+        }
+
+        private Condition and() {
+            List<Condition> conditions = new ArrayList<>();
+            conditions.add(negation());
+            while (peek() != null && !")".equals(peek()) && !"OR".equals(peek())) {
+                if ("AND".equals(peek())) {
+                    position++;
+                }
+                conditions.add(negation());
+            }
+
+            return conditions.size() == 1 ? conditions.get(0) : allOf(conditions);
+        }
+
+        private Condition negation() {
+            Object token = peek();
+            if (token == null) {
+                throw unsupported("missing term at the end");
+            }
+            position++;
+
+            if (token instanceof Term) {
+                return (Term) token;
+            }
+            if ("NOT".equals(token) || "-".equals(token)) {
+                return not(negation());
+            }
+            if ("(".equals(token)) {
+                Condition condition = or();
+                if (!")".equals(peek())) {
+                    throw unsupported("unclosed '('");
+                }
+                position++;
+
+                return condition;
+            }
+
+            throw unsupported("unexpected '" + token + "'");
+        }
+
+        private Object peek() {
+            return position < tokens.size() ? tokens.get(position) : null;
+        }
+
+        private IllegalArgumentException unsupported(String syntax) {
+            return new IllegalArgumentException(
+                    "Unsupported syntax in the in-memory search query, " + syntax + ": " + queryString);
+        }
+    }
+
+    /**
+     * A term of a search query.
+     */
+    private static final class Term implements Condition {
+
+        private final String field;
+        private final String operator;
+        private final String value;
+
+        Term(String field, String operator, String value) {
+            this.field = field;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        @Override
+        public boolean matches(Map<String, List<Object>> values) {
+            if (field == null) {
+                for (List<Object> fieldValues : values.values()) {
+                    if (anyEquals(fieldValues)) {
+                        return true;
+                    }
+                }
+
+                return false;
+            }
+
+            List<Object> fieldValues = values.get(field);
+            if (fieldValues == null) {
+                return false;
+            }
+
+            if (":".equals(operator) || "=".equals(operator)) {
+                return anyEquals(fieldValues);
+            }
+
+            for (Object fieldValue : fieldValues) {
+                Integer comparison = compare(fieldValue);
+                if (comparison != null && satisfies(comparison)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private boolean anyEquals(List<Object> fieldValues) {
+            for (Object fieldValue : fieldValues) {
+                if (fieldValue instanceof String[]) {
+                    for (String word : (String[]) fieldValue) {
+                        if (word.equals(value)) {
+                            return true;
+                        }
+                    }
+                } else if (fieldValue instanceof String) {
+                    if (fieldValue.equals(value)) {
+                        return true;
+                    }
+                } else {
+                    Integer comparison = compare(fieldValue);
+                    if (comparison != null && comparison == 0) {
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+
+        private Integer compare(Object fieldValue) {
+            try {
+                if (fieldValue instanceof Double) {
+                    return Double.compare((Double) fieldValue, Double.parseDouble(value));
+                }
+                if (fieldValue instanceof Date) {
+                    return ((Date) fieldValue).compareTo(new SimpleDateFormat("yyyy-MM-dd", Locale.ROOT).parse(value));
+                }
+            } catch (NumberFormatException | ParseException ex) {
+                return null;
+            }
+
+            return null;
+        }
+
+        private boolean satisfies(int comparison) {
+            switch (operator) {
+                case "<":
+                    return comparison < 0;
+                case "<=":
+                    return comparison <= 0;
+                case ">":
+                    return comparison > 0;
+                case ">=":
+                    return comparison >= 0;
+                default:
+                    return comparison == 0;
+            }
+        }
+    }
+}
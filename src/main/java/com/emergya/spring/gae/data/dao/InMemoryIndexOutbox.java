@@ -0,0 +1,70 @@
+package com.emergya.spring.gae.data.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non durable, in-memory outbox, meant for tests and local development.
+ *
+ * @author lroman
+ */
+public final class InMemoryIndexOutbox implements IndexOutbox {
+
+    // the sequence number of the last change of every queued entity
+    private final ConcurrentMap<Long, Long> pending = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Override
+    public void enqueue(Collection<Long> ids) {
+        for (Long id : ids) {
+            pending.put(id, sequence.incrementAndGet());
+        }
+    }
+
+    @Override
+    public Batch peek(int max) {
+        Map<Long, Long> taken = new HashMap<>();
+
+        Iterator<Map.Entry<Long, Long>> it = pending.entrySet().iterator();
+        while (taken.size() < max && it.hasNext()) {
+            Map.Entry<Long, Long> entry = it.next();
+            taken.put(entry.getKey(), entry.getValue());
+        }
+
+        return new SequencedBatch(taken);
+    }
+
+    @Override
+    public void acknowledge(Batch batch) {
+        for (Map.Entry<Long, Long> entry : ((SequencedBatch) batch).sequences.entrySet()) {
+            pending.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return the number of entities queued
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * Batch that remembers the change of every entity it took, so newer changes aren't removed.
+     */
+    private static final class SequencedBatch extends Batch {
+
+        private final Map<Long, Long> sequences;
+
+        SequencedBatch(Map<Long, Long> sequences) {
+            super(new ArrayList<>(sequences.keySet()));
+            this.sequences = sequences;
+        }
+    }
+}
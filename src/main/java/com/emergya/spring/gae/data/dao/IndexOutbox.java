@@ -0,0 +1,67 @@
+package com.emergya.spring.gae.data.dao;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Queue of entities whose search documents must be written (or deleted) by the write-behind
+ * indexing of a DAO.
+ *
+ * Only entity ids are queued, so repeated changes of the same entity are coalesced and the
+ * flusher writes the latest state of the entity, read from the DataStore. Entities are taken from
+ * the queue in two steps: they stay queued until their documents have been written and the batch
+ * is acknowledged, so a flush that fails or is interrupted loses nothing.
+ *
+ * @author lroman
+ * @see WriteBehindIndexing
+ */
+public interface IndexOutbox {
+
+    /**
+     * Queues entities to be reindexed.
+     *
+     * @param ids the ids of the changed entities.
+     */
+    void enqueue(Collection<Long> ids);
+
+    /**
+     * Gets some queued entities, without removing them from the queue.
+     *
+     * @param max the maximum number of queued changes to be taken.
+     * @return the batch of entities, empty if there are none queued.
+     */
+    Batch peek(int max);
+
+    /**
+     * Removes a batch of entities from the queue once their documents have been written. Changes
+     * queued after the batch was taken stay queued.
+     *
+     * @param batch the batch, as returned by {@link #peek(int)}.
+     */
+    void acknowledge(Batch batch);
+
+    /**
+     * Entities taken from the queue, which outboxes extend to remember the entries to remove.
+     */
+    class Batch {
+
+        private final List<Long> ids;
+
+        /**
+         * Constructor.
+         *
+         * @param ids the ids of the entities.
+         */
+        public Batch(List<Long> ids) {
+            this.ids = Collections.unmodifiableList(ids);
+        }
+
+        /**
+         * @return the ids of the entities, without duplicates
+         */
+        public List<Long> getIds() {
+            return ids;
+        }
+    }
+}
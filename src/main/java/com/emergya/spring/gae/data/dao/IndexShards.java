@@ -0,0 +1,160 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.Index;
+import com.google.appengine.api.search.IndexSpec;
+import com.google.appengine.api.search.SearchServiceFactory;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Routing of the documents of a kind among the shards of its search index.
+ *
+ * An index that isn't sharded is seen as a single shard named as the index, so the daos route
+ * every write the same way whether or not their index is sharded.
+ *
+ * @author lroman
+ * @see ShardedIndex
+ */
+final class IndexShards {
+
+    private static final HashFunction HASHING = Hashing.murmur3_32();
+
+    private final int count;
+
+    /**
+     * Constructor.
+     *
+     * @param config the sharding of the index, or null if it isn't sharded.
+     * @throws IllegalArgumentException if the number of shards isn't positive.
+     */
+    IndexShards(ShardedIndex config) {
+        count = config == null ? 1 : config.shards();
+        if (count < 1) {
+            throw new IllegalArgumentException("A sharded index needs at least one shard, got " + count);
+        }
+    }
+
+    /**
+     * @return whether the index is split in several shards
+     */
+    boolean isSharded() {
+        return count > 1;
+    }
+
+    /**
+     * Gets every shard of a version of the index.
+     *
+     * @param indexName the name of the index version.
+     * @return the shards, in shard order.
+     */
+    List<Index> indexes(String indexName) {
+        if (!isSharded()) {
+            return Collections.singletonList(index(indexName));
+        }
+
+        List<Index> indexes = new ArrayList<>(count);
+        for (int shard = 0; shard < count; shard++) {
+            indexes.add(index(shardName(indexName, shard)));
+        }
+
+        return indexes;
+    }
+
+    /**
+     * Gets the shard of a version of the index a document belongs to.
+     *
+     * @param indexName the name of the index version.
+     * @param documentId the id of the document.
+     * @return the shard.
+     */
+    Index indexFor(String indexName, String documentId) {
+        if (!isSharded()) {
+            return index(indexName);
+        }
+
+        return index(shardName(indexName, shardOf(documentId)));
+    }
+
+    /**
+     * Splits documents by the shard they belong to.
+     *
+     * @param documents the documents.
+     * @return the documents of each shard, in shard order.
+     */
+    List<List<Document>> split(List<Document> documents) {
+        if (!isSharded()) {
+            return Collections.singletonList(documents);
+        }
+
+        List<List<Document>> shards = emptyShards();
+        for (Document document : documents) {
+            shards.get(shardOf(document.getId())).add(document);
+        }
+
+        return shards;
+    }
+
+    /**
+     * Splits document ids by the shard their documents belong to.
+     *
+     * @param documentIds the document ids.
+     * @return the ids of each shard, in shard order.
+     */
+    List<List<String>> splitIds(List<String> documentIds) {
+        if (!isSharded()) {
+            return Collections.singletonList(documentIds);
+        }
+
+        List<List<String>> shards = emptyShards();
+        for (String documentId : documentIds) {
+            shards.get(shardOf(documentId)).add(documentId);
+        }
+
+        return shards;
+    }
+
+    /**
+     * Gets the names of the indexes holding a version of the index.
+     *
+     * @param indexName the name of the index version.
+     * @return the names of its shards.
+     */
+    List<String> names(String indexName) {
+        if (!isSharded()) {
+            return Collections.singletonList(indexName);
+        }
+
+        List<String> names = new ArrayList<>(count);
+        for (int shard = 0; shard < count; shard++) {
+            names.add(shardName(indexName, shard));
+        }
+
+        return names;
+    }
+
+    private <T> List<List<T>> emptyShards() {
+        List<List<T>> shards = new ArrayList<>(count);
+        for (int shard = 0; shard < count; shard++) {
+            shards.add(new ArrayList<T>());
+        }
+
+        return shards;
+    }
+
+    private int shardOf(String documentId) {
+        return Math.floorMod(HASHING.hashString(documentId, StandardCharsets.UTF_8).asInt(), count);
+    }
+
+    private static String shardName(String indexName, int shard) {
+        return indexName + "_s" + shard;
+    }
+
+    private static Index index(String name) {
+        return SearchServiceFactory.getSearchService().getIndex(IndexSpec.newBuilder().setName(name).build());
+    }
+}
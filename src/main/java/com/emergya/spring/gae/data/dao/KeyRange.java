@@ -0,0 +1,114 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.emergya.spring.gae.data.model.BaseEntity;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A range of the key space of an entity kind, used to split work among several workers.
+ *
+ * @author lroman
+ * @param <E> The entity class
+ */
+final class KeyRange<E extends BaseEntity> {
+
+    private static final String SCATTER_PROPERTY = "__scatter__";
+    private static final int OVERSAMPLING_FACTOR = 32;
+
+    private final Key<E> start;
+    private final Key<E> end;
+
+    /**
+     * Constructor.
+     *
+     * @param start the first key of the range (inclusive), or null for an open range.
+     * @param end the last key of the range (exclusive), or null for an open range.
+     */
+    KeyRange(Key<E> start, Key<E> end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Splits the key space of an entity kind in ranges of roughly the same number of entities.
+     *
+     * Split points are taken from a sample of keys ordered by the DataStore's
+     * <c>__scatter__</c> property, so the sample is spread across the whole key space.
+     *
+     * @param <E> The entity class
+     * @param entityClass the entity class
+     * @param parts the maximum number of ranges to return
+     * @return contiguous ranges covering the whole key space
+     */
+    static <E extends BaseEntity> List<KeyRange<E>> split(Class<E> entityClass, int parts) {
+        List<KeyRange<E>> ranges = new ArrayList<>();
+        if (parts <= 1) {
+            ranges.add(new KeyRange<E>(null, null));
+            return ranges;
+        }
+
+        com.google.appengine.api.datastore.Query sampleQuery
+                = new com.google.appengine.api.datastore.Query(Key.getKind(entityClass))
+                .setKeysOnly()
+                .addSort(SCATTER_PROPERTY);
+
+        List<com.google.appengine.api.datastore.Key> sample = new ArrayList<>();
+        for (Entity e : DatastoreServiceFactory.getDatastoreService().prepare(sampleQuery)
+                .asIterable(FetchOptions.Builder.withLimit(parts * OVERSAMPLING_FACTOR))) {
+            sample.add(e.getKey());
+        }
+        Collections.sort(sample);
+
+        Key<E> previous = null;
+        for (int i = 1; i < parts && sample.size() >= parts; i++) {
+            Key<E> splitPoint = Key.create(sample.get(i * sample.size() / parts));
+            if (previous != null && previous.equals(splitPoint)) {
+                continue;
+            }
+
+            ranges.add(new KeyRange<>(previous, splitPoint));
+            previous = splitPoint;
+        }
+        ranges.add(new KeyRange<>(previous, (Key<E>) null));
+
+        return ranges;
+    }
+
+    /**
+     * Restricts a query to the keys in this range.
+     *
+     * @param query the query
+     * @return the restricted query
+     */
+    Query<E> restrict(Query<E> query) {
+        Query<E> restricted = query;
+        if (start != null) {
+            restricted = restricted.filterKey(">=", start);
+        }
+        if (end != null) {
+            restricted = restricted.filterKey("<", end);
+        }
+
+        return restricted;
+    }
+
+    /**
+     * @return the first key of the range (inclusive), or null if the range is open at its start
+     */
+    Key<E> getStart() {
+        return start;
+    }
+
+    /**
+     * @return the last key of the range (exclusive), or null if the range is open at its end
+     */
+    Key<E> getEnd() {
+        return end;
+    }
+}
@@ -0,0 +1,126 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.emergya.spring.gae.data.model.BaseEntity;
+import com.emergya.spring.gae.utils.RetryPolicy;
+import com.google.apphosting.api.ApiProxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over all the entities of a kind, read in chunks with a
+ * {@link PrefetchingChunkIterator}, that splits by key ranges.
+ *
+ * The first split divides the key space in {@value #RANGES_PER_THREAD} ranges per thread of the
+ * common fork-join pool, and every further split hands over half of the ranges left, so the
+ * workers of a parallel stream read disjoint parts of the kind from the DataStore in parallel.
+ * A spliterator that has started reading, or has a single range left, doesn't split.
+ *
+ * @author lroman
+ * @param <E> The entity class
+ */
+final class KeyRangeSpliterator<E extends BaseEntity> implements Spliterator<E> {
+
+    private static final int RANGES_PER_THREAD = 4;
+
+    private final Class<E> entityClass;
+    private final int chunkSize;
+    private final RetryPolicy retryPolicy;
+    private final ApiProxy.Environment environment;
+
+    private List<KeyRange<E>> ranges;
+    private boolean split;
+    private Iterator<List<E>> chunks;
+    private Iterator<E> chunk = Collections.emptyIterator();
+
+    /**
+     * Constructor, for a spliterator over the whole kind.
+     *
+     * @param entityClass the class of the entities to read.
+     * @param chunkSize the number of entities of each chunk.
+     * @param retryPolicy how failed reads are retried.
+     */
+    KeyRangeSpliterator(Class<E> entityClass, int chunkSize, RetryPolicy retryPolicy) {
+        this(entityClass, chunkSize, retryPolicy, ApiProxy.getCurrentEnvironment(),
+                Collections.singletonList(new KeyRange<E>(null, null)), false);
+    }
+
+    private KeyRangeSpliterator(Class<E> entityClass, int chunkSize, RetryPolicy retryPolicy,
+            ApiProxy.Environment environment, List<KeyRange<E>> ranges, boolean split) {
+        this.entityClass = entityClass;
+        this.chunkSize = chunkSize;
+        this.retryPolicy = retryPolicy;
+        this.environment = environment;
+        this.ranges = ranges;
+        this.split = split;
+    }
+
+    @Override
+    public Spliterator<E> trySplit() {
+        if (chunks != null) {
+            return null;
+        }
+
+        if (!split) {
+            ranges = splitKeySpace();
+            split = true;
+        }
+
+        if (ranges.size() < 2) {
+            return null;
+        }
+
+        List<KeyRange<E>> prefix = ranges.subList(0, ranges.size() / 2);
+        ranges = new ArrayList<>(ranges.subList(ranges.size() / 2, ranges.size()));
+        return new KeyRangeSpliterator<>(entityClass, chunkSize, retryPolicy, environment,
+                new ArrayList<>(prefix), true);
+    }
+
+    private List<KeyRange<E>> splitKeySpace() {
+        final int parts = Math.max(2, ForkJoinPool.getCommonPoolParallelism() * RANGES_PER_THREAD);
+        try {
+            return PrefetchingChunkIterator.callInEnvironment(environment, new Callable<List<KeyRange<E>>>() {
+                @Override
+                public List<KeyRange<E>> call() throws Exception {
+                    return KeyRange.split(entityClass, parts);
+                }
+            });
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super E> action) {
+        while (!chunk.hasNext()) {
+            if (chunks == null) {
+                chunks = new PrefetchingChunkIterator<>(entityClass, ranges, chunkSize, retryPolicy, environment);
+            }
+            if (!chunks.hasNext()) {
+                return false;
+            }
+
+            chunk = chunks.next().iterator();
+        }
+
+        action.accept(chunk.next());
+        return true;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+}
@@ -0,0 +1,46 @@
+package com.emergya.spring.gae.data.dao;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables maintained counters on a DatastoreBaseDao subclass, so <c>count()</c> can answer
+ * common queries without running a search.
+ *
+ * The dao keeps sharded DataStore counters of the total number of entities and of the number of
+ * entities by value of each declared facet, updated on every save, delete and batch save. Facets
+ * must be fields indexed as atoms (enums, longs, booleans, references or
+ * <c>@SearchField(type = ATOM)</c> properties), or the dao fails to be created. Queries that are
+ * empty or a single equality on a facet (<c>status:ACTIVE</c>, <c>enabled = true</c>) are
+ * answered from the counters, ignoring case as the search does; any other query falls back to a
+ * search.
+ *
+ * Counts are approximate. Counters are updated after the entities are written, from their state
+ * read before writing them, and not in the same transaction, so concurrent writes of the same
+ * entity may count its change twice, and an update that fails is logged and lost. Counters should
+ * be repaired periodically with <c>rebuildCounters()</c> (e.g. from a cron job calling
+ * <c>_gae_fw/rebuildCounters</c>) when counts must stay close to the real ones.
+ *
+ * Counters must be initialised with <c>rebuildCounters()</c> before they are used, and only
+ * track changes made through the dao.
+ *
+ * @author lroman
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface MaintainedCounters {
+
+    /**
+     * @return the fields whose values are counted, which must be indexed as atoms.
+     */
+    String[] facets() default {};
+
+    /**
+     * @return the number of shards counters are split in, to spread write contention.
+     */
+    int shards() default 20;
+}
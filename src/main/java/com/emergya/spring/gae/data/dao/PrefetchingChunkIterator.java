@@ -0,0 +1,216 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.emergya.spring.gae.data.model.BaseEntity;
+import com.emergya.spring.gae.utils.RetryPolicy;
+import static com.emergya.spring.gae.utils.BackoffTryer.tryWithBackoffAsync;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.apphosting.api.ApiProxy;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Iterates over the chunks of entities of some key ranges, reading the next chunk while the
+ * current one is being processed.
+ *
+ * Chunks are read with DataStore query cursors by an {@link EntityChunkReader}, one range after
+ * the other, so at most two chunks are held in memory. Iterators over a single range can be
+ * resumed from the cursor after their last chunk. Reads are retried with backoff, resuming
+ * from the last chunk read. They run with the App Engine environment of the request the iterator
+ * was created for, so the iterator can be consumed from threads not created by App Engine, e.g.
+ * by a parallel stream.
+ *
+ * @author lroman
+ * @param <E> The entity class
+ */
+final class PrefetchingChunkIterator<E extends BaseEntity> implements ChunkIterator<E> {
+
+    private final Class<E> entityClass;
+    private final Deque<KeyRange<E>> ranges;
+    private final int chunkSize;
+    private final RetryPolicy retryPolicy;
+    private final ApiProxy.Environment environment;
+
+    private final boolean resumable;
+
+    private EntityChunkReader<E> reader;
+    private CompletableFuture<Chunk<E>> prefetched;
+    private Chunk<E> next;
+    private String cursor;
+
+    /**
+     * Constructor.
+     *
+     * @param entityClass the class of the entities to read.
+     * @param ranges the key ranges to read, in key order.
+     * @param chunkSize the number of entities of each chunk.
+     * @param retryPolicy how failed reads are retried.
+     * @param environment the App Engine environment reads run with, or null to use the one of the
+     * threads starting them.
+     */
+    PrefetchingChunkIterator(Class<E> entityClass, List<KeyRange<E>> ranges, int chunkSize,
+            RetryPolicy retryPolicy, ApiProxy.Environment environment) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("The chunk size must be positive, got " + chunkSize);
+        }
+
+        this.entityClass = entityClass;
+        this.ranges = new ArrayDeque<>(ranges);
+        this.chunkSize = chunkSize;
+        this.retryPolicy = retryPolicy;
+        this.environment = environment;
+        this.resumable = ranges.size() == 1;
+    }
+
+    /**
+     * Constructor, for an iterator over the whole kind resumed from a cursor.
+     *
+     * @param entityClass the class of the entities to read.
+     * @param cursor the cursor returned by {@link #getCursor()} of the iterator to resume, or null
+     * to start from the first entity.
+     * @param chunkSize the number of entities of each chunk.
+     * @param retryPolicy how failed reads are retried.
+     * @param environment the App Engine environment reads run with, or null to use the one of the
+     * threads starting them.
+     * @throws IllegalArgumentException if the cursor is not valid.
+     */
+    PrefetchingChunkIterator(Class<E> entityClass, String cursor, int chunkSize,
+            RetryPolicy retryPolicy, ApiProxy.Environment environment) {
+        this(entityClass, Collections.singletonList(new KeyRange<E>(null, null)), chunkSize, retryPolicy, environment);
+        if (cursor != null) {
+            reader = new EntityChunkReader<>(entityClass, ranges.poll(), chunkSize, Cursor.fromWebSafeString(cursor));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            if (prefetched == null) {
+                prefetched = readAsync();
+            }
+
+            try {
+                next = prefetched.join();
+            } catch (CompletionException ex) {
+                throw ex.getCause() instanceof RuntimeException
+                        ? (RuntimeException) ex.getCause() : new RuntimeException(ex.getCause());
+            } finally {
+                prefetched = null;
+            }
+
+            if (!next.entities.isEmpty()) {
+                prefetched = readAsync();
+            }
+        }
+
+        return !next.entities.isEmpty();
+    }
+
+    @Override
+    public List<E> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        Chunk<E> chunk = next;
+        next = null;
+        cursor = chunk.cursor;
+        return chunk.entities;
+    }
+
+    /**
+     * @return the cursor to resume iterating after the last chunk returned, or null if there are
+     * no more entities
+     * @throws IllegalStateException if the iterator reads several key ranges.
+     */
+    @Override
+    public String getCursor() {
+        if (!resumable) {
+            throw new IllegalStateException("Iterators over several key ranges can't be resumed");
+        }
+
+        return cursor;
+    }
+
+    private CompletableFuture<Chunk<E>> readAsync() {
+        return tryWithBackoffAsync(new Callable<Chunk<E>>() {
+            @Override
+            public Chunk<E> call() throws Exception {
+                return callInEnvironment(environment, new Callable<Chunk<E>>() {
+                    @Override
+                    public Chunk<E> call() throws Exception {
+                        return read();
+                    }
+                });
+            }
+        }, retryPolicy);
+    }
+
+    /**
+     * Reads the next non empty chunk, moving to the next range when the current one is
+     * exhausted.
+     *
+     * @return the chunk, empty if all the ranges have been read.
+     */
+    private Chunk<E> read() {
+        while (true) {
+            if (reader == null) {
+                KeyRange<E> range = ranges.poll();
+                if (range == null) {
+                    return new Chunk<>(Collections.<E>emptyList(), null);
+                }
+
+                reader = new EntityChunkReader<>(entityClass, range, chunkSize);
+            }
+
+            List<E> entities = reader.next();
+            if (!entities.isEmpty()) {
+                Cursor after = reader.getCursor();
+                return new Chunk<>(entities, after != null ? after.toWebSafeString() : null);
+            }
+
+            reader = null;
+        }
+    }
+
+    /**
+     * A chunk of entities and the cursor after it.
+     */
+    private static final class Chunk<E> {
+
+        private final List<E> entities;
+        private final String cursor;
+
+        Chunk(List<E> entities, String cursor) {
+            this.entities = entities;
+            this.cursor = cursor;
+        }
+    }
+
+    /**
+     * Calls a function with an App Engine environment, unless the calling thread already has one.
+     *
+     * @param <V> The type the callable returns
+     * @param environment the environment, or null to call the function as is.
+     * @param callable the function.
+     * @return the result of the function.
+     * @throws Exception if the function fails.
+     */
+    static <V> V callInEnvironment(ApiProxy.Environment environment, Callable<V> callable) throws Exception {
+        if (environment == null || ApiProxy.getCurrentEnvironment() != null) {
+            return callable.call();
+        }
+
+        ApiProxy.setEnvironmentForCurrentThread(environment);
+        try {
+            return callable.call();
+        } finally {
+            ApiProxy.clearEnvironmentForCurrentThread();
+        }
+    }
+}
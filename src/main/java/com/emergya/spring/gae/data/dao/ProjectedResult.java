@@ -0,0 +1,118 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.google.appengine.api.search.Field;
+import com.google.appengine.api.search.ScoredDocument;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lightweight search result built directly from the fields stored in the search index, without
+ * loading the entity from the DataStore.
+ *
+ * Values keep the type they were indexed with by <c>BaseEntity.toDocument()</c>: text and atom
+ * fields (including enums, booleans, longs and references) are strings, numbers are doubles and
+ * dates are <c>java.util.Date</c> instances.
+ *
+ * @author lroman
+ */
+public final class ProjectedResult {
+
+    private final Long id;
+    private final Map<String, List<Object>> fields;
+
+    /**
+     * Constructor.
+     *
+     * @param id the id of the entity the result corresponds to.
+     * @param fields the values of each returned field.
+     */
+    public ProjectedResult(Long id, Map<String, List<Object>> fields) {
+        this.id = id;
+        this.fields = fields;
+    }
+
+    /**
+     * Builds a result from a search document.
+     *
+     * @param document the found document
+     * @return the result
+     */
+    static ProjectedResult fromDocument(ScoredDocument document) {
+        Map<String, List<Object>> fields = new LinkedHashMap<>();
+
+        for (Field field : document.getFields()) {
+            List<Object> values = fields.get(field.getName());
+            if (values == null) {
+                values = new ArrayList<>(1);
+                fields.put(field.getName(), values);
+            }
+
+            values.add(valueOf(field));
+        }
+
+        return new ProjectedResult(Long.valueOf(document.getId()), fields);
+    }
+
+    private static Object valueOf(Field field) {
+        if (field.getType() == null) {
+            return null;
+        }
+
+        switch (field.getType()) {
+            case TEXT:
+                return field.getText();
+            case HTML:
+                return field.getHTML();
+            case ATOM:
+                return field.getAtom();
+            case NUMBER:
+                return field.getNumber();
+            case DATE:
+                return field.getDate();
+            case GEO_POINT:
+                return field.getGeoPoint();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return the id of the entity the result corresponds to
+     */
+    public Long getId() {
+        return id;
+    }
+
+    /**
+     * @return the names of the returned fields
+     */
+    public Set<String> getFieldNames() {
+        return Collections.unmodifiableSet(fields.keySet());
+    }
+
+    /**
+     * Gets the (first) value of a field.
+     *
+     * @param fieldName the field name
+     * @return the value, or null if the field wasn't returned or has no value
+     */
+    public Object get(String fieldName) {
+        List<Object> values = fields.get(fieldName);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * Gets all the values of a field, as indexed for collection properties.
+     *
+     * @param fieldName the field name
+     * @return the values, empty if the field wasn't returned
+     */
+    public List<Object> getAll(String fieldName) {
+        List<Object> values = fields.get(fieldName);
+        return values == null ? Collections.emptyList() : Collections.unmodifiableList(values);
+    }
+}
@@ -0,0 +1,243 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.emergya.spring.gae.data.model.BaseEntity;
+import static com.emergya.spring.gae.utils.BackoffTryer.tryWithBackoff;
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.Index;
+import com.google.appengine.api.search.OperationResult;
+import com.google.appengine.api.search.PutResponse;
+import com.google.appengine.api.search.StatusCode;
+import com.googlecode.objectify.ObjectifyService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams all the entities of a kind from the DataStore into a search index.
+ *
+ * Entities are read in chunks with query cursors and written with asynchronous puts of at most
+ * {@value #MAX_DOCUMENTS_PER_PUT} documents, one per shard of the index the chunk has documents
+ * for, keeping only the puts of one chunk in flight while the next chunk is read. The key space
+ * can be split so several workers reindex in parallel. Entities changed while being reindexed can
+ * then be rewritten with {@link #replay(IndexOutbox)}.
+ *
+ * @author lroman
+ * @param <E> The entity class
+ */
+final class Reindexer<E extends BaseEntity> {
+
+    /**
+     * Maximum number of documents the Search API accepts in a single put.
+     */
+    static final int MAX_DOCUMENTS_PER_PUT = 200;
+
+    private static final Logger LOG = Logger.getLogger(Reindexer.class.getName());
+
+    private final Class<E> entityClass;
+    private final IndexShards shards;
+    private final String indexName;
+
+    /**
+     * Constructor.
+     *
+     * @param entityClass the class of the entities to reindex.
+     * @param shards the routing of the documents among the shards of the index.
+     * @param indexName the name of the index version the documents are written to.
+     */
+    Reindexer(Class<E> entityClass, IndexShards shards, String indexName) {
+        this.entityClass = entityClass;
+        this.shards = shards;
+        this.indexName = indexName;
+    }
+
+    /**
+     * Reindexes all the entities of the kind.
+     *
+     * @param workers the number of workers reindexing key ranges in parallel.
+     * @return the number of entities reindexed
+     */
+    long reindex(int workers) {
+        List<KeyRange<E>> ranges = KeyRange.split(entityClass, workers);
+        if (ranges.size() == 1) {
+            return reindex(ranges.get(0));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                ranges.size(), ThreadManager.currentRequestThreadFactory());
+        try {
+            List<Future<Long>> results = new ArrayList<>();
+            for (final KeyRange<E> range : ranges) {
+                results.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return reindex(range);
+                    }
+                }));
+            }
+
+            long count = 0;
+            for (Future<Long> result : results) {
+                count += result.get();
+            }
+
+            return count;
+        } catch (InterruptedException | ExecutionException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Reindexes the entities of a key range.
+     *
+     * @param range the range to reindex
+     * @return the number of entities reindexed
+     */
+    long reindex(KeyRange<E> range) {
+        EntityChunkReader<E> reader = new EntityChunkReader<>(entityClass, range, MAX_DOCUMENTS_PER_PUT);
+
+        List<Index> indexes = shards.indexes(indexName);
+
+        long count = 0;
+        List<PendingPut> pendingPuts = Collections.emptyList();
+        while (true) {
+            List<E> chunk = reader.next();
+            if (chunk.isEmpty()) {
+                break;
+            }
+
+            List<Document> documents = new ArrayList<>(chunk.size());
+            for (E e : chunk) {
+                documents.add(e.toDocument());
+            }
+
+            List<PendingPut> puts = new ArrayList<>();
+            List<List<Document>> documentsByShard = shards.split(documents);
+            for (int shard = 0; shard < indexes.size(); shard++) {
+                List<Document> shardDocuments = documentsByShard.get(shard);
+                if (!shardDocuments.isEmpty()) {
+                    Index index = indexes.get(shard);
+                    puts.add(new PendingPut(index, shardDocuments, index.putAsync(shardDocuments)));
+                }
+            }
+
+            for (PendingPut pendingPut : pendingPuts) {
+                pendingPut.complete();
+            }
+
+            pendingPuts = puts;
+            count += documents.size();
+        }
+
+        for (PendingPut pendingPut : pendingPuts) {
+            pendingPut.complete();
+        }
+
+        return count;
+    }
+
+    /**
+     * Rewrites the current state of the entities queued in an outbox, e.g. the ones written while
+     * they were being reindexed, whose documents the reindex may have overwritten with the state
+     * it read before. Documents of entities that no longer exist are deleted.
+     *
+     * @param outbox the outbox of the changed entities, emptied as they are rewritten
+     * @return the number of entities rewritten
+     */
+    long replay(IndexOutbox outbox) {
+        List<Index> indexes = shards.indexes(indexName);
+
+        long count = 0;
+        for (IndexOutbox.Batch batch = outbox.peek(MAX_DOCUMENTS_PER_PUT); !batch.getIds().isEmpty();
+                batch = outbox.peek(MAX_DOCUMENTS_PER_PUT)) {
+            Map<Long, E> entities = ObjectifyService.factory().begin().load().type(entityClass).ids(batch.getIds());
+
+            List<Document> documents = new ArrayList<>();
+            List<String> deleted = new ArrayList<>();
+            for (Long id : batch.getIds()) {
+                E entity = entities.get(id);
+                if (entity == null) {
+                    deleted.add(id.toString());
+                } else {
+                    documents.add(entity.toDocument());
+                }
+            }
+
+            List<List<Document>> documentsByShard = shards.split(documents);
+            List<List<String>> deletedByShard = shards.splitIds(deleted);
+            for (int shard = 0; shard < indexes.size(); shard++) {
+                final Index index = indexes.get(shard);
+                final List<Document> shardDocuments = documentsByShard.get(shard);
+                final List<String> shardDeleted = deletedByShard.get(shard);
+                tryWithBackoff(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        if (!shardDocuments.isEmpty()) {
+                            index.put(shardDocuments);
+                        }
+                        if (!shardDeleted.isEmpty()) {
+                            index.delete(shardDeleted);
+                        }
+                        return true;
+                    }
+                });
+            }
+
+            outbox.acknowledge(batch);
+            count += batch.getIds().size();
+        }
+
+        return count;
+    }
+
+    /**
+     * An asynchronous put to a shard of the index.
+     */
+    private static final class PendingPut {
+
+        private final Index index;
+        private final List<Document> documents;
+        private final Future<PutResponse> put;
+
+        PendingPut(Index index, List<Document> documents, Future<PutResponse> put) {
+            this.index = index;
+            this.documents = documents;
+            this.put = put;
+        }
+
+        /**
+         * Waits for the put, retrying it synchronously if any document failed.
+         */
+        void complete() {
+            try {
+                boolean failed = false;
+                for (OperationResult result : put.get()) {
+                    failed |= result.getCode() != StatusCode.OK;
+                }
+
+                if (!failed) {
+                    return;
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+                LOG.log(Level.WARNING, "Asynchronous put to index " + index.getName() + " failed, retrying", ex);
+            }
+
+            tryWithBackoff(new Callable<PutResponse>() {
+                @Override
+                public PutResponse call() throws Exception {
+                    return index.put(documents);
+                }
+            });
+        }
+    }
+}
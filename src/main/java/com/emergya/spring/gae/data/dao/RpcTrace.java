@@ -0,0 +1,369 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.google.apphosting.api.ApiProxy;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Trace of the DataStore and Search RPCs made by the daos while serving a request.
+ *
+ * A trace is bound to the request thread between {@link #start()} and {@link #end()}, which
+ * <c>BaseRestWebService</c> controllers do automatically, and reported in the
+ * <c>Server-Timing</c> header of their responses. RPCs made outside a trace aren't recorded. A
+ * trace is also bound to the App Engine environment of its request, so one that wasn't ended is
+ * dropped instead of recording the RPCs of the next request served by the thread, and the threads
+ * running the async dao calls of the request record into it too, even once it's been unbound from
+ * the request thread. Async RPCs are recorded when they are waited for, with the time elapsed
+ * since they started.
+ *
+ * Loading the same kind by id many times in a request usually means a loop that should be a
+ * batch load or a search, so a warning is logged when it happens more than
+ * {@link #getSingleLoadThreshold()} times.
+ *
+ * @author lroman
+ */
+public final class RpcTrace {
+
+    /**
+     * Default number of loads by id of a kind allowed in a request before warning.
+     */
+    public static final int DEFAULT_SINGLE_LOAD_THRESHOLD = 10;
+
+    private static final Logger LOG = Logger.getLogger(RpcTrace.class.getName());
+
+    private static final ThreadLocal<RpcTrace> CURRENT = new ThreadLocal<>();
+
+    private static final String TRACE_ATTRIBUTE = RpcTrace.class.getName();
+
+    private static volatile int singleLoadThreshold = DEFAULT_SINGLE_LOAD_THRESHOLD;
+
+    private final Map<Backend, BackendTrace> backends = new EnumMap<>(Backend.class);
+    private final Map<String, Integer> singleLoads = new HashMap<>();
+    private final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+
+    private RpcTrace() {
+        for (Backend backend : Backend.values()) {
+            backends.put(backend, new BackendTrace());
+        }
+    }
+
+    /**
+     * Starts tracing the current thread and the async dao calls of its request, discarding any
+     * previous trace left on it.
+     *
+     * @return the new trace.
+     */
+    public static RpcTrace start() {
+        RpcTrace trace = new RpcTrace();
+        CURRENT.set(trace);
+        if (trace.environment != null) {
+            trace.environment.getAttributes().put(TRACE_ATTRIBUTE, trace);
+        }
+        return trace;
+    }
+
+    /**
+     * Stops tracing the current thread. The async dao calls of the request still pending keep
+     * recording into the trace.
+     *
+     * @return the finished trace, or null if the thread wasn't being traced.
+     */
+    public static RpcTrace end() {
+        RpcTrace trace = CURRENT.get();
+        CURRENT.remove();
+        return trace;
+    }
+
+    /**
+     * @return the trace of the current thread, or else of the request it's working for, or null
+     * if neither is being traced
+     */
+    public static RpcTrace current() {
+        ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        RpcTrace trace = CURRENT.get();
+        if (trace != null && trace.environment != environment) {
+            // left over by a previous request served by the thread
+            CURRENT.remove();
+            trace = null;
+        }
+
+        if (trace == null && environment != null) {
+            trace = (RpcTrace) environment.getAttributes().get(TRACE_ATTRIBUTE);
+        }
+
+        return trace;
+    }
+
+    /**
+     * @return the number of loads by id of a kind allowed in a request before warning
+     */
+    public static int getSingleLoadThreshold() {
+        return singleLoadThreshold;
+    }
+
+    /**
+     * @param threshold the number of loads by id of a kind allowed in a request before warning
+     */
+    public static void setSingleLoadThreshold(int threshold) {
+        singleLoadThreshold = threshold;
+    }
+
+    /**
+     * Records an RPC in the trace of the current thread, if any.
+     *
+     * @param backend the backend called.
+     * @param kind the entity kind the call was made for.
+     * @param startNanos the start of the call, from {@link System#nanoTime()}.
+     */
+    static void record(Backend backend, String kind, long startNanos) {
+        RpcTrace trace = current();
+        if (trace != null) {
+            trace.add(backend, kind, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Starts timing an async RPC for the trace of the current thread, if any, to be recorded once
+     * its results have been waited for.
+     *
+     * @param backend the backend called.
+     * @param kind the entity kind the call is made for.
+     * @return the pending RPC.
+     */
+    static PendingRpc startAsync(Backend backend, String kind) {
+        return new PendingRpc(current(), backend, kind);
+    }
+
+    /**
+     * Records a load of a single entity by id in the trace of the current thread, if any.
+     *
+     * @param kind the entity kind.
+     */
+    static void recordSingleLoad(String kind) {
+        RpcTrace trace = current();
+        if (trace == null) {
+            return;
+        }
+
+        int loads;
+        synchronized (trace) {
+            Integer previous = trace.singleLoads.get(kind);
+            loads = previous == null ? 1 : previous + 1;
+            trace.singleLoads.put(kind, loads);
+        }
+
+        if (loads == singleLoadThreshold + 1) {
+            LOG.warning(String.format(
+                    "%s loaded by id more than %d times in the same request: consider loading them in a batch.",
+                    kind, singleLoadThreshold));
+        }
+    }
+
+    /**
+     * @param backend the backend.
+     * @return the number of calls made to the backend
+     */
+    public synchronized int getCalls(Backend backend) {
+        return backends.get(backend).calls;
+    }
+
+    /**
+     * @param backend the backend.
+     * @return the time spent in calls to the backend, in milliseconds
+     */
+    public synchronized double getMillis(Backend backend) {
+        return backends.get(backend).nanos / 1e6;
+    }
+
+    /**
+     * Summarises the trace, e.g. for logging.
+     *
+     * @return the calls, time and kinds by backend.
+     */
+    public synchronized Map<String, Object> getSummary() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        for (Map.Entry<Backend, BackendTrace> entry : backends.entrySet()) {
+            BackendTrace backend = entry.getValue();
+
+            Map<String, Object> backendSummary = new LinkedHashMap<>();
+            backendSummary.put("calls", backend.calls);
+            backendSummary.put("millis", TimeUnit.NANOSECONDS.toMillis(backend.nanos));
+            backendSummary.put("kinds", new TreeSet<>(backend.kinds));
+            summary.put(entry.getKey().getMetricName(), backendSummary);
+        }
+
+        return summary;
+    }
+
+    /**
+     * Formats the trace as the value of a <c>Server-Timing</c> header, with one metric per
+     * backend called.
+     *
+     * @return the header value, or null if no RPC was recorded.
+     */
+    public synchronized String toServerTiming() {
+        StringBuilder header = new StringBuilder();
+        for (Map.Entry<Backend, BackendTrace> entry : backends.entrySet()) {
+            BackendTrace backend = entry.getValue();
+            if (backend.calls == 0) {
+                continue;
+            }
+
+            if (header.length() > 0) {
+                header.append(", ");
+            }
+            header.append(entry.getKey().getMetricName())
+                    .append(";desc=\"").append(backend.calls).append(" calls: ")
+                    .append(String.join(" ", backend.kinds)).append('"')
+                    .append(";dur=").append(String.format(Locale.ROOT, "%.1f", backend.nanos / 1e6));
+        }
+
+        return header.length() == 0 ? null : header.toString();
+    }
+
+    private synchronized void add(Backend backend, String kind, long elapsedNanos) {
+        backends.get(backend).add(kind, elapsedNanos);
+    }
+
+    /**
+     * The traced backends.
+     */
+    public enum Backend {
+        DATASTORE("datastore"), SEARCH("search");
+
+        private final String metricName;
+
+        Backend(String metricName) {
+            this.metricName = metricName;
+        }
+
+        /**
+         * @return the name of the backend in reports
+         */
+        public String getMetricName() {
+            return metricName;
+        }
+    }
+
+    /**
+     * Calls made to a backend.
+     */
+    private static final class BackendTrace {
+
+        private final TreeSet<String> kinds = new TreeSet<>();
+        private int calls;
+        private long nanos;
+
+        void add(String kind, long elapsedNanos) {
+            calls++;
+            nanos += elapsedNanos;
+            kinds.add(kind);
+        }
+    }
+
+    /**
+     * An async RPC, recorded in the trace it was started for once every result it's tracking has
+     * been waited for.
+     */
+    static final class PendingRpc {
+
+        private final RpcTrace trace;
+        private final Backend backend;
+        private final String kind;
+        private final long startNanos = System.nanoTime();
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private PendingRpc(RpcTrace trace, Backend backend, String kind) {
+            this.trace = trace;
+            this.backend = backend;
+            this.kind = kind;
+        }
+
+        /**
+         * Tracks one more result of the RPC, to be followed by {@link #finished()} once it's been
+         * waited for.
+         */
+        void track() {
+            pending.incrementAndGet();
+        }
+
+        /**
+         * Records the RPC if it was the last result being tracked.
+         */
+        void finished() {
+            if (pending.decrementAndGet() == 0 && trace != null) {
+                trace.add(backend, kind, System.nanoTime() - startNanos);
+            }
+        }
+
+        /**
+         * Tracks a future result of the RPC.
+         *
+         * @param <V> the type of the result
+         * @param future the result.
+         * @return a future finishing the result the first time it's waited for.
+         */
+        <V> Future<V> track(final Future<V> future) {
+            track();
+            return new Future<V>() {
+
+                private boolean waited;
+
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    return future.cancel(mayInterruptIfRunning);
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return future.isCancelled();
+                }
+
+                @Override
+                public boolean isDone() {
+                    return future.isDone();
+                }
+
+                @Override
+                public V get() throws InterruptedException, ExecutionException {
+                    try {
+                        return future.get();
+                    } finally {
+                        if (future.isDone()) {
+                            waited();
+                        }
+                    }
+                }
+
+                @Override
+                public V get(long timeout, TimeUnit unit)
+                        throws InterruptedException, ExecutionException, TimeoutException {
+                    try {
+                        return future.get(timeout, unit);
+                    } finally {
+                        if (future.isDone()) {
+                            waited();
+                        }
+                    }
+                }
+
+                private synchronized void waited() {
+                    if (!waited) {
+                        waited = true;
+                        finished();
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pointer to the versions of the search index of an entity kind: the active one, used for reads
+ * and writes, and the one being built by a shadow rebuild, which also receives writes.
+ *
+ * The pointer is stored in the DataStore and shared by all DAO instances of the same kind in the
+ * app instance. It is fetched asynchronously when the DAO is created and refreshed in the
+ * background once it is half {@value #REFRESH_MILLIS} ms old. A snapshot older than that is never
+ * used: it is refreshed synchronously instead, so every write started {@value #REFRESH_MILLIS} ms
+ * after a change of the pointer sees the change, even on app instances that were idle.
+ *
+ * Version 0 is the original, unversioned index.
+ *
+ * @author lroman
+ */
+final class SearchIndexVersion {
+
+    /**
+     * Maximum age of the snapshot of the pointer used by a read or write.
+     */
+    static final long REFRESH_MILLIS = 10000;
+
+    private static final Logger LOG = Logger.getLogger(SearchIndexVersion.class.getName());
+
+    private static final String KIND = "_SearchIndexVersion";
+    private static final String ACTIVE_PROPERTY = "active";
+    private static final String BUILDING_PROPERTY = "building";
+    private static final int NONE = -1;
+
+    private static final ConcurrentMap<String, SearchIndexVersion> POINTERS = new ConcurrentHashMap<>();
+
+    private final String baseName;
+    private final Key key;
+
+    private volatile Fetch pendingFetch;
+    private volatile Versions versions;
+    private volatile long fetchedAt;
+
+    private SearchIndexVersion(String baseName) {
+        this.baseName = baseName;
+        this.key = KeyFactory.createKey(KIND, baseName);
+        this.pendingFetch = new Fetch();
+    }
+
+    /**
+     * Gets the version pointer of an index, starting its fetch if needed.
+     *
+     * @param baseName the name of the unversioned index.
+     * @return the pointer.
+     */
+    static SearchIndexVersion forIndex(String baseName) {
+        SearchIndexVersion pointer = POINTERS.get(baseName);
+        if (pointer == null) {
+            SearchIndexVersion created = new SearchIndexVersion(baseName);
+            pointer = POINTERS.putIfAbsent(baseName, created);
+            if (pointer == null) {
+                pointer = created;
+            }
+        }
+
+        return pointer;
+    }
+
+    /**
+     * Builds the name of a version of an index.
+     *
+     * @param baseName the name of the unversioned index.
+     * @param version the version.
+     * @return the versioned name.
+     */
+    static String indexName(String baseName, int version) {
+        return version == 0 ? baseName : baseName + "_v" + version;
+    }
+
+    /**
+     * @return the name of the unversioned index
+     */
+    String getBaseName() {
+        return baseName;
+    }
+
+    /**
+     * Gets a snapshot of the pointer at most {@value #REFRESH_MILLIS} ms old, waiting for it to be
+     * refreshed if needed. Writes must use a single snapshot, so they don't mix the versions of two
+     * states of the pointer.
+     *
+     * @return the snapshot.
+     */
+    Versions current() {
+        Fetch fetch = pendingFetch;
+        if (fetch != null && fetch.future.isDone()) {
+            set(resolve(fetch, versions == null), fetch.startedAt);
+        }
+
+        long age = System.currentTimeMillis() - fetchedAt;
+        if (versions == null || age > REFRESH_MILLIS) {
+            synchronized (this) {
+                if (versions == null || System.currentTimeMillis() - fetchedAt > REFRESH_MILLIS) {
+                    fetch = pendingFetch;
+                    if (fetch == null || System.currentTimeMillis() - fetch.startedAt > REFRESH_MILLIS) {
+                        fetch = new Fetch();
+                    }
+                    set(resolve(fetch, true), fetch.startedAt);
+                }
+            }
+        } else if (age > REFRESH_MILLIS / 2 && pendingFetch == null) {
+            synchronized (this) {
+                if (pendingFetch == null) {
+                    pendingFetch = new Fetch();
+                }
+            }
+        }
+
+        return versions;
+    }
+
+    /**
+     * Marks the start of a shadow rebuild.
+     *
+     * @return the version to build.
+     * @throws IllegalStateException if there is a rebuild in progress already.
+     */
+    int startBuilding() {
+        Versions updated = update(new Update() {
+            @Override
+            public Versions apply(Versions current) {
+                if (current.building != NONE) {
+                    throw new IllegalStateException(String.format(
+                            "Version %d of index %s is being built already.", current.building, baseName));
+                }
+
+                return new Versions(current.active, current.active + 1);
+            }
+        });
+
+        return updated.building;
+    }
+
+    /**
+     * Makes the version being built the active one.
+     *
+     * @return the previously active version.
+     */
+    int switchToBuilding() {
+        final int[] previous = new int[1];
+        update(new Update() {
+            @Override
+            public Versions apply(Versions current) {
+                if (current.building == NONE) {
+                    throw new IllegalStateException("No version of index " + baseName + " is being built.");
+                }
+
+                previous[0] = current.active;
+                return new Versions(current.building, NONE);
+            }
+        });
+
+        return previous[0];
+    }
+
+    /**
+     * Aborts a shadow rebuild, so the version being built stops receiving writes.
+     */
+    void abortBuilding() {
+        update(new Update() {
+            @Override
+            public Versions apply(Versions current) {
+                return new Versions(current.active, NONE);
+            }
+        });
+    }
+
+    /**
+     * Gets the result of a fetch of the pointer.
+     *
+     * @param fetch the fetch.
+     * @param required whether a failed fetch must fail, instead of keeping the current snapshot.
+     * @return the fetched pointer, or null if the fetch failed and isn't required.
+     */
+    private Versions resolve(Fetch fetch, boolean required) {
+        try {
+            return Versions.of(fetch.future.get());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof EntityNotFoundException) {
+                return new Versions(0, NONE);
+            }
+
+            if (!required) {
+                LOG.log(Level.WARNING, "Couldn't refresh the version of index " + baseName, ex);
+                return null;
+            }
+
+            pendingFetch = null;
+            throw new RuntimeException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Replaces the snapshot of the pointer, unless a newer one is known.
+     *
+     * @param fetched the pointer, or null if it couldn't be fetched.
+     * @param readAt when the pointer was read, i.e. when its fetch started.
+     */
+    private synchronized void set(Versions fetched, long readAt) {
+        pendingFetch = null;
+        if (fetched != null && readAt >= fetchedAt) {
+            versions = fetched;
+            fetchedAt = readAt;
+        }
+    }
+
+    private Versions update(Update update) {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Transaction txn = datastore.beginTransaction();
+        try {
+            Versions current;
+            try {
+                current = Versions.of(datastore.get(txn, key));
+            } catch (EntityNotFoundException ex) {
+                current = new Versions(0, NONE);
+            }
+
+            Versions updated = update.apply(current);
+
+            Entity entity = new Entity(key);
+            entity.setUnindexedProperty(ACTIVE_PROPERTY, (long) updated.active);
+            entity.setUnindexedProperty(BUILDING_PROPERTY, (long) updated.building);
+            datastore.put(txn, entity);
+            long committedAt = System.currentTimeMillis();
+            txn.commit();
+
+            set(updated, committedAt);
+            return updated;
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+
+    /**
+     * Transformation of the pointer applied in a transaction.
+     */
+    private interface Update {
+
+        Versions apply(Versions current);
+    }
+
+    /**
+     * A fetch of the pointer in progress.
+     */
+    private final class Fetch {
+
+        private final long startedAt = System.currentTimeMillis();
+        private final Future<Entity> future = DatastoreServiceFactory.getAsyncDatastoreService().get(key);
+    }
+
+    /**
+     * Immutable snapshot of the pointer.
+     */
+    static final class Versions {
+
+        private final int active;
+        private final int building;
+
+        Versions(int active, int building) {
+            this.active = active;
+            this.building = building;
+        }
+
+        /**
+         * @return the active version, used for reads
+         */
+        int getActive() {
+            return active;
+        }
+
+        /**
+         * @return the version being built, or null if no rebuild is in progress
+         */
+        Integer getBuilding() {
+            return building == NONE ? null : building;
+        }
+
+        static Versions of(Entity entity) {
+            return new Versions(
+                    ((Long) entity.getProperty(ACTIVE_PROPERTY)).intValue(),
+                    ((Long) entity.getProperty(BUILDING_PROPERTY)).intValue());
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.emergya.spring.gae.data.dao;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of search results plus the cursor to retrieve the next one.
+ *
+ * @author lroman
+ * @param <T> the type of the page items
+ */
+public final class SearchPage<T> {
+
+    private final List<T> items;
+    private final String cursor;
+    private final long numberFound;
+
+    /**
+     * Constructor.
+     *
+     * @param items the page items.
+     * @param cursor the opaque token to retrieve the next page, or null if there are no more pages.
+     * @param numberFound the (approximate) total number of results matching the query.
+     */
+    public SearchPage(List<T> items, String cursor, long numberFound) {
+        this.items = Collections.unmodifiableList(items);
+        this.cursor = cursor;
+        this.numberFound = numberFound;
+    }
+
+    /**
+     * @return the page items
+     */
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * @return the token to retrieve the next page, or null if this is the last one
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * @return whether there are more pages after this one
+     */
+    public boolean hasMore() {
+        return cursor != null;
+    }
+
+    /**
+     * @return the (approximate) total number of results matching the query
+     */
+    public long getNumberFound() {
+        return numberFound;
+    }
+}
@@ -0,0 +1,201 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.emergya.spring.gae.data.model.BaseEntity;
+import static com.emergya.spring.gae.utils.BackoffTryer.tryWithBackoff;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceException;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.io.Serializable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of the ids and counts found by search queries on an entity kind, shared by all its dao
+ * instances.
+ *
+ * Entries are kept in process and in memcache, keyed by the normalised query, its options and
+ * the current generation of the kind. Writes bump the generation, which makes all the previous
+ * entries unreachable, and fail if it can't be bumped.
+ *
+ * @author lroman
+ * @see CachedSearches
+ */
+final class SearchResultCache {
+
+    private static final Logger LOG = Logger.getLogger(SearchResultCache.class.getName());
+
+    private static final String MEMCACHE_NAMESPACE = "_gae_fw_searches";
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private static final ConcurrentMap<Class<?>, SearchResultCache> CACHES = new ConcurrentHashMap<>();
+
+    private final String kind;
+    private final String generationKey;
+    private final Cache<String, Serializable> local;
+    private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService(MEMCACHE_NAMESPACE);
+    private final Expiration expiration;
+
+    private SearchResultCache(Class<? extends BaseEntity> entityClass, CachedSearches config) {
+        this.kind = entityClass.getSimpleName();
+        this.generationKey = kind + ":generation";
+        this.local = CacheBuilder.newBuilder()
+                .maximumSize(config.maxSize())
+                .expireAfterWrite(config.ttlSeconds(), TimeUnit.SECONDS)
+                .build();
+        this.expiration = Expiration.byDeltaSeconds(config.ttlSeconds());
+    }
+
+    /**
+     * Gets the search cache of an entity kind.
+     *
+     * @param entityClass the entity class
+     * @param config the cache configuration, taken from the first dao asking for it
+     * @return the cache
+     */
+    static SearchResultCache forClass(Class<? extends BaseEntity> entityClass, CachedSearches config) {
+        SearchResultCache cache = CACHES.get(entityClass);
+        if (cache == null) {
+            SearchResultCache created = new SearchResultCache(entityClass, config);
+            cache = CACHES.putIfAbsent(entityClass, created);
+            if (cache == null) {
+                cache = created;
+            }
+        }
+
+        return cache;
+    }
+
+    /**
+     * Builds the key of a paginated search at the current generation.
+     *
+     * @param queryString the query string
+     * @param offset the offset of the page
+     * @param limit the size of the page
+     * @return the key, or null if the generation couldn't be read and nothing should be cached
+     */
+    String searchKey(String queryString, int offset, int limit) {
+        Long generation = generation();
+        if (generation == null) {
+            return null;
+        }
+
+        return kind + ":" + generation + ":search:" + offset + ":" + limit + ":" + normalize(queryString);
+    }
+
+    /**
+     * Builds the key of a count at the current generation.
+     *
+     * @param queryString the query string
+     * @return the key, or null if the generation couldn't be read and nothing should be cached
+     */
+    String countKey(String queryString) {
+        Long generation = generation();
+        if (generation == null) {
+            return null;
+        }
+
+        return kind + ":" + generation + ":count:" + normalize(queryString);
+    }
+
+    /**
+     * Gets a cached result.
+     *
+     * @param key the key of the search or count
+     * @return the found ids (a <c>long[]</c>) or count (a <c>Long</c>), or null if not cached
+     */
+    Serializable get(String key) {
+        if (key == null) {
+            return null;
+        }
+
+        Serializable value = local.getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+
+        try {
+            value = (Serializable) memcache.get(key);
+        } catch (RuntimeException ex) {
+            LOG.log(Level.WARNING, "Couldn't read cached search from memcache", ex);
+        }
+
+        if (value != null) {
+            local.put(key, value);
+        }
+
+        return value;
+    }
+
+    /**
+     * Caches a result.
+     *
+     * @param key the key of the search or count
+     * @param value the found ids (a <c>long[]</c>) or count (a <c>Long</c>)
+     */
+    void put(String key, Serializable value) {
+        if (key == null) {
+            return;
+        }
+
+        local.put(key, value);
+        try {
+            memcache.put(key, value, expiration);
+        } catch (RuntimeException ex) {
+            LOG.log(Level.WARNING, "Couldn't write cached search to memcache", ex);
+        }
+    }
+
+    /**
+     * Makes all the results cached so far unreachable, after the entities of the kind changed.
+     *
+     * @throws IllegalStateException if the generation can't be bumped, after retrying, as other
+     * instances may then keep serving the previous results until they expire.
+     */
+    void bumpGeneration() {
+        try {
+            tryWithBackoff(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    // memcache errors may be logged and reported as a null result instead
+                    Long generation = memcache.increment(generationKey, 1, System.currentTimeMillis());
+                    if (generation == null) {
+                        throw new MemcacheServiceException("The generation increment returned no value.");
+                    }
+                    return generation;
+                }
+            });
+        } catch (RuntimeException ex) {
+            local.invalidateAll();
+            throw new IllegalStateException("Couldn't bump the search generation of " + kind
+                    + ": cached searches may be stale until they expire.", ex);
+        }
+    }
+
+    private Long generation() {
+        try {
+            Long generation = (Long) memcache.get(generationKey);
+            if (generation == null) {
+                // Start from the current time so keys never collide with the ones of an evicted
+                // generation.
+                generation = memcache.increment(generationKey, 0, System.currentTimeMillis());
+            }
+
+            return generation;
+        } catch (RuntimeException ex) {
+            LOG.log(Level.WARNING, "Couldn't read the search generation of " + kind, ex);
+            return null;
+        }
+    }
+
+    private static String normalize(String queryString) {
+        return queryString == null ? "" : WHITESPACE.matcher(queryString.trim()).replaceAll(" ");
+    }
+}
@@ -0,0 +1,33 @@
+package com.emergya.spring.gae.data.dao;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Splits the search index of a DatastoreBaseDao subclass in several shards.
+ *
+ * Documents are routed to the indexes <c>&lt;SimpleName&gt;_s&lt;k&gt;</c> by a hash of their id,
+ * so a kind can grow past the size limit of a single index and its writes are spread among
+ * several indexes. Searches and counts are sent to every shard in parallel and their results
+ * merged by sort expression, or by score when the query has none, adding up their facet counts.
+ *
+ * Merged results differ from those of a single index in two ways: paging by offset can't go
+ * beyond {@value ShardedSearch#MAX_SHARD_RESULTS} results, and the number of results found is
+ * the sum of the estimates of the shards. Changing the number of shards of an existing index
+ * moves documents to other shards, so the index must be rebuilt with <c>rebuildIndex()</c>.
+ *
+ * @author lroman
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface ShardedIndex {
+
+    /**
+     * @return the number of shards of the index.
+     */
+    int shards();
+}
@@ -0,0 +1,490 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.google.appengine.api.search.Cursor;
+import com.google.appengine.api.search.FacetRefinement;
+import com.google.appengine.api.search.FacetRequest;
+import com.google.appengine.api.search.FacetResult;
+import com.google.appengine.api.search.FacetResultValue;
+import com.google.appengine.api.search.Field;
+import com.google.appengine.api.search.FieldExpression;
+import com.google.appengine.api.search.Index;
+import com.google.appengine.api.search.OperationResult;
+import com.google.appengine.api.search.Query;
+import com.google.appengine.api.search.QueryOptions;
+import com.google.appengine.api.search.Results;
+import com.google.appengine.api.search.ScoredDocument;
+import com.google.appengine.api.search.SortExpression;
+import com.google.appengine.api.search.SortOptions;
+import com.google.appengine.api.search.StatusCode;
+import com.google.common.io.BaseEncoding;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Scatter-gather search over the shards of a sharded index.
+ *
+ * The query is sent to every shard in parallel and their results are merged by the sort
+ * expressions of the query, which are added as returned expressions so the merge can compare
+ * them. Queries without sort expressions are merged by the score of their match scorer, if any,
+ * or else by document rank, as a single index would sort them.
+ *
+ * Queries paged by offset ask every shard for the results up to the end of the page, capped to
+ * {@value #MAX_SHARD_RESULTS}, and the page is cut from the merged results. Queries paged by
+ * cursor get a composite cursor holding the position reached in every shard, so each page only
+ * asks the shards for a page worth of results. The facet counts of the shards are added up.
+ *
+ * @author lroman
+ * @see ShardedIndex
+ */
+final class ShardedSearch {
+
+    /**
+     * Maximum number of results the Search API returns for a query.
+     */
+    static final int MAX_SHARD_RESULTS = 1000;
+
+    private static final int MAX_FACET_VALUES = 20;
+
+    private static final String SORT_EXPRESSION_PREFIX = "shardMergeSort";
+    private static final String SHARD_NOT_STARTED = "";
+    private static final String SHARD_EXHAUSTED = "-";
+    private static final String CURSOR_SEPARATOR = "~";
+    private static final String CURSOR_PREFIX = "false:";
+    private static final BaseEncoding CURSOR_ENCODING = BaseEncoding.base64Url().omitPadding();
+
+    private final List<Index> shards;
+
+    /**
+     * Constructor.
+     *
+     * @param shards the shards of the index, in shard order.
+     */
+    ShardedSearch(List<Index> shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * Runs a query on every shard and merges their results.
+     *
+     * @param query the query, paged by offset or by a cursor from a previous merged search.
+     * @return the merged results, with a composite cursor if the query was paged by cursor.
+     * @throws IllegalArgumentException if the cursor doesn't come from a search on these shards.
+     * @throws Exception if the search fails in any shard.
+     */
+    Results<ScoredDocument> search(Query query) throws Exception {
+        return start(query).call();
+    }
+
+    /**
+     * Sends a query to every shard without waiting for their results.
+     *
+     * @param query the query, paged by offset or by a cursor from a previous merged search.
+     * @return a call waiting for the results of every shard and merging them.
+     * @throws IllegalArgumentException if the cursor doesn't come from a search on these shards.
+     * @see #search(Query)
+     */
+    Callable<Results<ScoredDocument>> start(final Query query) {
+        final QueryOptions options = query.getOptions();
+        final boolean byCursor = options.getCursor() != null;
+        final String[] states = byCursor ? decodeCursor(options.getCursor()) : null;
+        final int wanted = byCursor
+                ? options.getLimit()
+                : Math.min(MAX_SHARD_RESULTS, options.getOffset() + options.getLimit());
+
+        final List<SortExpression> sortExpressions = options.getSortOptions() != null
+                ? options.getSortOptions().getSortExpressions()
+                : Collections.<SortExpression>emptyList();
+        final boolean byScore = sortExpressions.isEmpty()
+                && options.getSortOptions() != null
+                && options.getSortOptions().getMatchScorer() != null;
+
+        final List<Future<Results<ScoredDocument>>> searches = new ArrayList<>(shards.size());
+        final boolean[] countOnly = new boolean[shards.size()];
+        for (int shard = 0; shard < shards.size(); shard++) {
+            // exhausted shards are still searched, so the number found and the facet counts
+            // don't change from page to page
+            countOnly[shard] = byCursor && SHARD_EXHAUSTED.equals(states[shard]);
+
+            QueryOptions.Builder shardOptions = QueryOptions.newBuilder(options)
+                    .setLimit(countOnly[shard] ? 1 : wanted);
+            for (int i = 0; i < sortExpressions.size(); i++) {
+                String expression = sortExpressions.get(i).getExpression();
+                if (!isDocumentScore(expression)) {
+                    shardOptions.addExpressionToReturn(FieldExpression.newBuilder()
+                            .setName(SORT_EXPRESSION_PREFIX + i).setExpression(expression));
+                }
+            }
+
+            if (byCursor) {
+                shardOptions.setCursor(SHARD_NOT_STARTED.equals(states[shard]) || countOnly[shard]
+                        ? Cursor.newBuilder().setPerResult(true).build() : Cursor.newBuilder().build(states[shard]));
+            } else {
+                shardOptions.setOffset(0);
+            }
+
+            searches.add(shards.get(shard).searchAsync(shardQuery(query, shardOptions)));
+        }
+
+        return new Callable<Results<ScoredDocument>>() {
+            @Override
+            public Results<ScoredDocument> call() throws Exception {
+                long numberFound = 0;
+                FacetMerge facets = new FacetMerge(query.getReturnFacets());
+                PriorityQueue<ShardResults> heads = new PriorityQueue<>(shards.size(), new ResultOrder(sortExpressions, byScore));
+                List<ShardResults> shardResults = new ArrayList<>(shards.size());
+                for (int shard = 0; shard < shards.size(); shard++) {
+                    Results<ScoredDocument> results = searches.get(shard).get();
+                    numberFound += results.getNumberFound();
+                    facets.add(results.getFacets());
+
+                    ShardResults shardResult = new ShardResults(countOnly[shard]
+                            ? Collections.<ScoredDocument>emptyList() : new ArrayList<>(results.getResults()));
+                    shardResults.add(shardResult);
+                    if (shardResult.head() != null) {
+                        heads.add(shardResult);
+                    }
+                }
+
+                List<ScoredDocument> merged = new ArrayList<>(wanted);
+                while (merged.size() < wanted && !heads.isEmpty()) {
+                    ShardResults next = heads.poll();
+                    merged.add(next.take());
+                    if (next.head() != null) {
+                        heads.add(next);
+                    }
+                }
+
+                if (!byCursor) {
+                    merged = merged.subList(Math.min(options.getOffset(), merged.size()), merged.size());
+                    return results(merged, numberFound, null, facets.merged());
+                }
+
+                String next = encodeCursor(nextStates(states, shardResults, wanted));
+                return results(merged, numberFound, next == null ? null : Cursor.newBuilder().build(next), facets.merged());
+            }
+        };
+    }
+
+    /**
+     * Builds the query sent to a shard, asking for more facet values than requested so values
+     * with many matches overall but not in every shard are still counted.
+     */
+    private static Query shardQuery(Query query, QueryOptions.Builder shardOptions) {
+        Query.Builder shardQuery = Query.newBuilder()
+                .setOptions(shardOptions)
+                .setEnableFacetDiscovery(query.getEnableFacetDiscovery());
+        if (query.getFacetOptions() != null) {
+            shardQuery.setFacetOptions(query.getFacetOptions());
+        }
+        for (FacetRefinement refinement : query.getRefinements()) {
+            shardQuery.addFacetRefinement(refinement);
+        }
+        for (FacetRequest request : query.getReturnFacets()) {
+            if (request.getRanges().isEmpty() && request.getValueLimit() != null) {
+                request = FacetRequest.newBuilder(request)
+                        .setValueLimit(Math.min(MAX_FACET_VALUES, request.getValueLimit() * 3 / 2 + 10))
+                        .build();
+            }
+            shardQuery.addReturnFacet(request);
+        }
+
+        return shardQuery.build(query.getQueryString());
+    }
+
+    /**
+     * Finds where every shard must be resumed from to get the next page: after the last result
+     * taken from it, or where it was if none was taken.
+     */
+    private static String[] nextStates(String[] states, List<ShardResults> shardResults, int wanted) {
+        String[] next = new String[states.length];
+        for (int shard = 0; shard < states.length; shard++) {
+            ShardResults results = shardResults.get(shard);
+            if (results.taken == 0) {
+                next[shard] = results.documents.isEmpty() ? SHARD_EXHAUSTED : states[shard];
+            } else if (results.head() == null && results.documents.size() < wanted) {
+                next[shard] = SHARD_EXHAUSTED;
+            } else {
+                next[shard] = results.documents.get(results.taken - 1).getCursor().toWebSafeString();
+            }
+        }
+
+        return next;
+    }
+
+    /**
+     * Gets the position of every shard from a composite cursor, or the start of every shard from
+     * the cursor of a first page.
+     */
+    private String[] decodeCursor(Cursor cursor) {
+        String encoded = cursor.toWebSafeString();
+        if (encoded == null) {
+            return Collections.nCopies(shards.size(), SHARD_NOT_STARTED).toArray(new String[shards.size()]);
+        }
+
+        String[] states = null;
+        if (encoded.startsWith(CURSOR_PREFIX)) {
+            try {
+                states = new String(CURSOR_ENCODING.decode(encoded.substring(CURSOR_PREFIX.length())),
+                        StandardCharsets.UTF_8).split(CURSOR_SEPARATOR, -1);
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Invalid cursor for a sharded index: " + encoded, ex);
+            }
+        }
+
+        if (states == null || states.length != shards.size()) {
+            throw new IllegalArgumentException("Invalid cursor for a sharded index: " + encoded);
+        }
+
+        return states;
+    }
+
+    private static String encodeCursor(String[] states) {
+        boolean exhausted = true;
+        for (String state : states) {
+            exhausted &= SHARD_EXHAUSTED.equals(state);
+        }
+
+        if (exhausted) {
+            return null;
+        }
+
+        return CURSOR_PREFIX + CURSOR_ENCODING.encode(String.join(CURSOR_SEPARATOR, states).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Results<ScoredDocument> results(
+            List<ScoredDocument> documents, long numberFound, Cursor cursor, List<FacetResult> facets) {
+        return new Results<ScoredDocument>(new OperationResult(StatusCode.OK, null),
+                new ArrayList<>(documents), numberFound, documents.size(), cursor, facets) {
+            private static final long serialVersionUID = 1L;
+        };
+    }
+
+    /**
+     * Whether a sort expression is the rank or the score of the documents, which are taken from
+     * the documents found instead of being returned as expressions.
+     */
+    private static boolean isDocumentScore(String expression) {
+        return SortExpression.RANK_FIELD_NAME.equals(expression) || SortExpression.SCORE_FIELD_NAME.equals(expression);
+    }
+
+    /**
+     * Facet counts of the shards being merged.
+     *
+     * Counts of the same value or range are added up. Values are sorted by their number of
+     * matches and cut to the value limit of the facet request, while ranges are kept in the
+     * requested order. Shards only return their own values with most matches, so values with few
+     * matches in every shard may still be missed or undercounted.
+     */
+    private static final class FacetMerge {
+
+        private final Map<String, FacetRequest> requests = new HashMap<>();
+        private final Map<String, Map<String, FacetResultValue>> values = new LinkedHashMap<>();
+
+        FacetMerge(List<FacetRequest> requests) {
+            for (FacetRequest request : requests) {
+                this.requests.put(request.getName(), request);
+            }
+        }
+
+        void add(Collection<FacetResult> facets) {
+            for (FacetResult facet : facets) {
+                Map<String, FacetResultValue> facetValues = values.get(facet.getName());
+                if (facetValues == null) {
+                    facetValues = new LinkedHashMap<>();
+                    values.put(facet.getName(), facetValues);
+                }
+
+                for (FacetResultValue value : facet.getValues()) {
+                    FacetResultValue previous = facetValues.get(value.getLabel());
+                    facetValues.put(value.getLabel(), previous == null ? value : FacetResultValue.create(
+                            value.getLabel(), previous.getCount() + value.getCount(), previous.getRefinementToken()));
+                }
+            }
+        }
+
+        List<FacetResult> merged() {
+            List<FacetResult> merged = new ArrayList<>(values.size());
+            for (Map.Entry<String, Map<String, FacetResultValue>> facet : values.entrySet()) {
+                List<FacetResultValue> facetValues = new ArrayList<>(facet.getValue().values());
+                FacetRequest request = requests.get(facet.getKey());
+                if (request == null || request.getRanges().isEmpty()) {
+                    Collections.sort(facetValues, new Comparator<FacetResultValue>() {
+                        @Override
+                        public int compare(FacetResultValue a, FacetResultValue b) {
+                            return Integer.compare(b.getCount(), a.getCount());
+                        }
+                    });
+                } else {
+                    Collections.sort(facetValues, new Comparator<FacetResultValue>() {
+                        @Override
+                        public int compare(FacetResultValue a, FacetResultValue b) {
+                            return Double.compare(rangeStart(a), rangeStart(b));
+                        }
+                    });
+                }
+
+                if (request != null && request.getValueLimit() != null && facetValues.size() > request.getValueLimit()) {
+                    facetValues = facetValues.subList(0, request.getValueLimit());
+                }
+
+                FacetResult.Builder result = FacetResult.newBuilder().setName(facet.getKey());
+                for (FacetResultValue value : facetValues) {
+                    result.addValue(value);
+                }
+                merged.add(result.build());
+            }
+
+            return merged;
+        }
+
+        /**
+         * Gets the start of a range from its label, <c>[start,end)</c>.
+         */
+        private static double rangeStart(FacetResultValue range) {
+            String label = range.getLabel();
+            int comma = label.indexOf(',');
+            if (!label.startsWith("[") || comma < 0) {
+                return Double.NEGATIVE_INFINITY;
+            }
+
+            try {
+                return Double.parseDouble(label.substring(1, comma));
+            } catch (NumberFormatException ex) {
+                return Double.NEGATIVE_INFINITY;
+            }
+        }
+    }
+
+    /**
+     * Results of a shard being merged.
+     */
+    private static final class ShardResults {
+
+        private final List<ScoredDocument> documents;
+        private int taken;
+
+        ShardResults(List<ScoredDocument> documents) {
+            this.documents = documents;
+        }
+
+        ScoredDocument head() {
+            return taken < documents.size() ? documents.get(taken) : null;
+        }
+
+        ScoredDocument take() {
+            return documents.get(taken++);
+        }
+    }
+
+    /**
+     * Order of the results of a query, as a single index would sort them.
+     */
+    private static final class ResultOrder implements Comparator<ShardResults> {
+
+        private final List<SortExpression> sortExpressions;
+        private final boolean byScore;
+
+        ResultOrder(List<SortExpression> sortExpressions, boolean byScore) {
+            this.sortExpressions = sortExpressions;
+            this.byScore = byScore;
+        }
+
+        @Override
+        public int compare(ShardResults a, ShardResults b) {
+            ScoredDocument first = a.head();
+            ScoredDocument second = b.head();
+
+            for (int i = 0; i < sortExpressions.size(); i++) {
+                SortExpression sortExpression = sortExpressions.get(i);
+                int order = compareValues(valueOf(first, i, sortExpression), valueOf(second, i, sortExpression));
+                if (order != 0) {
+                    return sortExpression.getDirection() == SortExpression.SortDirection.ASCENDING ? order : -order;
+                }
+            }
+
+            if (byScore) {
+                int order = Double.compare(scoreOf(second), scoreOf(first));
+                if (order != 0) {
+                    return order;
+                }
+            }
+
+            int order = Integer.compare(second.getRank(), first.getRank());
+            if (order != 0) {
+                return order;
+            }
+
+            return first.getId().compareTo(second.getId());
+        }
+
+        private static double scoreOf(ScoredDocument document) {
+            List<Double> scores = document.getSortScores();
+            return scores == null || scores.isEmpty() ? 0 : scores.get(0);
+        }
+
+        private static Object valueOf(ScoredDocument document, int index, SortExpression sortExpression) {
+            if (SortExpression.RANK_FIELD_NAME.equals(sortExpression.getExpression())) {
+                return (double) document.getRank();
+            }
+            if (SortExpression.SCORE_FIELD_NAME.equals(sortExpression.getExpression())) {
+                return scoreOf(document);
+            }
+
+            for (Field field : document.getExpressions()) {
+                if ((SORT_EXPRESSION_PREFIX + index).equals(field.getName())) {
+                    return valueOf(field);
+                }
+            }
+
+            if (sortExpression.getDefaultValueNumeric() != null) {
+                return sortExpression.getDefaultValueNumeric();
+            }
+            if (sortExpression.getDefaultValueDate() != null) {
+                return sortExpression.getDefaultValueDate();
+            }
+            return sortExpression.getDefaultValue();
+        }
+
+        private static Object valueOf(Field field) {
+            switch (field.getType()) {
+                case NUMBER:
+                    return field.getNumber();
+                case DATE:
+                    return field.getDate();
+                case ATOM:
+                    return field.getAtom();
+                case TEXT:
+                    return field.getText();
+                case HTML:
+                    return field.getHTML();
+                default:
+                    return field.toString();
+            }
+        }
+
+        private static int compareValues(Object first, Object second) {
+            if (first == null || second == null) {
+                return first == null ? (second == null ? 0 : -1) : 1;
+            }
+            if (first instanceof Double && second instanceof Double) {
+                return ((Double) first).compareTo((Double) second);
+            }
+            if (first instanceof Date && second instanceof Date) {
+                return ((Date) first).compareTo((Date) second);
+            }
+
+            return first.toString().compareTo(second.toString());
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.emergya.spring.gae.data.dao;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables write-behind search indexing on a DatastoreBaseDao subclass.
+ *
+ * Saves and deletes only write to the DataStore and queue the entity id in the dao's
+ * {@link IndexOutbox}; a deferred task flushes the queue to the search index in batches shortly
+ * after. Entities changed several times before the flush are indexed only once, and a search
+ * service outage no longer makes saves fail. Searches may not see changes until the queue is
+ * flushed. Requires the deferred task servlet to be mapped in the app.
+ *
+ * @author lroman
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface WriteBehindIndexing {
+
+    /**
+     * @return the delay, in seconds, from the first queued change until the queue is flushed.
+     */
+    int flushDelaySeconds() default 5;
+}
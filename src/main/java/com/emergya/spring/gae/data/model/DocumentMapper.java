@@ -0,0 +1,250 @@
+package com.emergya.spring.gae.data.model;
+
+import com.google.appengine.api.search.Document;
+import java.beans.PropertyDescriptor;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.beanutils.PropertyUtils;
+
+/**
+ * Precompiled plan to convert instances of an entity class into search documents.
+ *
+ * The plan is built once per entity class, resolving the getter and the field converter of every
+ * indexed property, so converting an entity involves no reflective lookups. Indexed properties
+ * are the ones with a getter and a setter, unless ignored with {@link SearchIgnore}; their fields
+ * can be customized with {@link SearchField} and {@link SearchLocale}, and they are also indexed
+ * as facets if annotated with {@link SearchFacet}.
+ *
+ * @author lroman
+ */
+final class DocumentMapper {
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private static final ClassValue<DocumentMapper> MAPPERS = new ClassValue<DocumentMapper>() {
+        @Override
+        protected DocumentMapper computeValue(Class<?> type) {
+            return new DocumentMapper(type);
+        }
+    };
+
+    private final Locale locale;
+    private final PropertyMapping[] properties;
+    private final Map<String, SearchFacet.Type> facets;
+    private final Set<String> atomFields;
+
+    private DocumentMapper(Class<?> entityClass) {
+        SearchLocale classLocale = entityClass.getAnnotation(SearchLocale.class);
+        locale = classLocale != null ? Locale.forLanguageTag(classLocale.value()) : null;
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        List<PropertyMapping> mappings = new ArrayList<>();
+        Map<String, SearchFacet.Type> facetTypes = new LinkedHashMap<>();
+        Set<String> atoms = new HashSet<>();
+
+        for (PropertyDescriptor property : PropertyUtils.getPropertyDescriptors(entityClass)) {
+            Method readMethod = property.getReadMethod();
+            if (property.getWriteMethod() == null || readMethod == null) {
+                continue;
+            }
+
+            Field field = findField(entityClass, property.getName());
+            if (annotation(readMethod, field, SearchIgnore.class) != null) {
+                continue;
+            }
+
+            MethodHandle getter;
+            try {
+                readMethod.setAccessible(true);
+                getter = lookup.unreflect(readMethod).asType(GETTER_TYPE);
+            } catch (IllegalAccessException ex) {
+                throw new IllegalStateException(String.format(
+                        "Property %s of %s is not readable.", property.getName(), entityClass.getName()), ex);
+            }
+
+            SearchField searchField = annotation(readMethod, field, SearchField.class);
+            SearchLocale propertyLocale = annotation(readMethod, field, SearchLocale.class);
+            Locale fieldLocale = propertyLocale != null ? Locale.forLanguageTag(propertyLocale.value())
+                    : locale != null ? locale : FieldConverter.DEFAULT_LOCALE;
+
+            SearchField.Type fieldType = searchField != null ? searchField.type() : SearchField.Type.AUTO;
+            SearchFacet searchFacet = annotation(readMethod, field, SearchFacet.class);
+
+            FieldConverter converter;
+            FacetConverter facetConverter = null;
+            try {
+                converter = FieldConverter.forSchema(readMethod.getReturnType(), fieldType,
+                        searchField != null ? searchField.maxLength() : 0,
+                        fieldLocale);
+                if (searchFacet != null) {
+                    facetConverter = FacetConverter.forProperty(valueType(readMethod), fieldType);
+                }
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalStateException(String.format(
+                        "Property %s of %s can't be indexed: %s", property.getName(), entityClass.getName(),
+                        ex.getMessage()), ex);
+            }
+
+            String fieldName = searchField != null && !searchField.name().isEmpty()
+                    ? searchField.name() : property.getName();
+            if (FieldConverter.isAtom(valueType(readMethod), fieldType)) {
+                atoms.add(fieldName);
+            }
+
+            String facetName = null;
+            if (facetConverter != null) {
+                facetName = searchFacet.name().isEmpty() ? fieldName : searchFacet.name();
+                facetTypes.put(facetName, facetConverter.getType());
+            }
+
+            mappings.add(new PropertyMapping(fieldName, getter, converter, facetName, facetConverter));
+        }
+
+        properties = mappings.toArray(new PropertyMapping[mappings.size()]);
+        facets = Collections.unmodifiableMap(facetTypes);
+        atomFields = Collections.unmodifiableSet(atoms);
+    }
+
+    /**
+     * Gets the type of the values of a property: its type, or the type of its elements for
+     * collections.
+     */
+    private static Class<?> valueType(Method getter) {
+        Class<?> type = getter.getReturnType();
+        if (!Collection.class.isAssignableFrom(type)) {
+            return type;
+        }
+
+        Type genericType = getter.getGenericReturnType();
+        if (genericType instanceof ParameterizedType) {
+            Type elementType = ((ParameterizedType) genericType).getActualTypeArguments()[0];
+            if (elementType instanceof Class) {
+                return (Class<?>) elementType;
+            }
+        }
+
+        return Object.class;
+    }
+
+    /**
+     * Gets an annotation of a property, from its getter or its field.
+     */
+    private static <A extends Annotation> A annotation(Method getter, Field field, Class<A> type) {
+        A annotation = getter.getAnnotation(type);
+        if (annotation == null && field != null) {
+            annotation = field.getAnnotation(type);
+        }
+
+        return annotation;
+    }
+
+    /**
+     * Finds the field backing a property, declared by the class or any of its superclasses.
+     */
+    private static Field findField(Class<?> type, String propertyName) {
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            try {
+                return current.getDeclaredField(propertyName);
+            } catch (NoSuchFieldException ex) {
+                // look in the superclass
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the mapper for an entity class.
+     *
+     * @param entityClass the entity class.
+     * @return the mapper, built on first use and cached afterwards.
+     */
+    static DocumentMapper forClass(Class<? extends BaseEntity> entityClass) {
+        return MAPPERS.get(entityClass);
+    }
+
+    /**
+     * @return the type of every facet of the documents, by facet name
+     */
+    Map<String, SearchFacet.Type> getFacets() {
+        return facets;
+    }
+
+    /**
+     * @return the names of the fields indexed as atoms
+     */
+    Set<String> getAtomFields() {
+        return atomFields;
+    }
+
+    /**
+     * Converts an entity to a search document.
+     *
+     * @param entity the entity to convert.
+     * @return the document.
+     * @throws InvocationTargetException if any of the entity getters fails.
+     */
+    Document toDocument(BaseEntity entity) throws InvocationTargetException {
+        Document.Builder documentBuilder = Document.newBuilder().setId(entity.getId().toString());
+        if (locale != null) {
+            documentBuilder.setLocale(locale);
+        }
+
+        for (PropertyMapping property : properties) {
+            Object value = property.read(entity);
+            property.converter.convert(property.name, value, documentBuilder);
+            if (property.facetConverter != null) {
+                property.facetConverter.convert(property.facetName, value, documentBuilder);
+            }
+        }
+
+        return documentBuilder.build();
+    }
+
+    /**
+     * Resolved accessor and converter for an indexed property.
+     */
+    private static final class PropertyMapping {
+
+        private final String name;
+        private final MethodHandle getter;
+        private final FieldConverter converter;
+        private final String facetName;
+        private final FacetConverter facetConverter;
+
+        PropertyMapping(String name, MethodHandle getter, FieldConverter converter,
+                String facetName, FacetConverter facetConverter) {
+            this.name = name;
+            this.getter = getter;
+            this.converter = converter;
+            this.facetName = facetName;
+            this.facetConverter = facetConverter;
+        }
+
+        Object read(Object entity) throws InvocationTargetException {
+            try {
+                return (Object) getter.invokeExact(entity);
+            } catch (RuntimeException | Error ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw new InvocationTargetException(ex);
+            }
+        }
+    }
+}
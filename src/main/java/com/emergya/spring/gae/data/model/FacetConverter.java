@@ -0,0 +1,82 @@
+package com.emergya.spring.gae.data.model;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.Facet;
+import java.util.Collection;
+import java.util.Date;
+
+/**
+ * Converts a property value into the search document facet(s) representing it.
+ *
+ * @author lroman
+ * @see SearchFacet
+ */
+final class FacetConverter {
+
+    private final SearchFacet.Type type;
+
+    private FacetConverter(SearchFacet.Type type) {
+        this.type = type;
+    }
+
+    /**
+     * Gets the converter for a property indexed as a facet.
+     *
+     * @param valueType the type of the property, or of its elements for collections.
+     * @param fieldType the field type the property is indexed as.
+     * @return the converter.
+     * @throws IllegalArgumentException if the property can't be a facet.
+     */
+    static FacetConverter forProperty(Class<?> valueType, SearchField.Type fieldType) {
+        if (fieldType == SearchField.Type.NUMBER) {
+            return new FacetConverter(SearchFacet.Type.NUMBER);
+        }
+        if (fieldType == SearchField.Type.DATE
+                || fieldType == SearchField.Type.AUTO
+                && (Date.class.isAssignableFrom(valueType) || GeoPt.class.isAssignableFrom(valueType))) {
+            throw new IllegalArgumentException("Only atoms and numbers can be facets.");
+        }
+
+        // longs are indexed as atoms, as ids usually are
+        boolean number = fieldType == SearchField.Type.AUTO
+                && Number.class.isAssignableFrom(FieldConverter.boxed(valueType))
+                && valueType != Long.class && valueType != long.class;
+        return new FacetConverter(number ? SearchFacet.Type.NUMBER : SearchFacet.Type.ATOM);
+    }
+
+    /**
+     * @return the type of the facets
+     */
+    SearchFacet.Type getType() {
+        return type;
+    }
+
+    /**
+     * Adds the facet(s) representing a value to a document, skipping null values.
+     *
+     * @param facetName the name of the facet(s) to add.
+     * @param value the property value.
+     * @param docBuilder the builder of the document being created.
+     */
+    void convert(String facetName, Object value, Document.Builder docBuilder) {
+        if (!(value instanceof Collection)) {
+            addFacet(facetName, value, docBuilder);
+            return;
+        }
+
+        for (Object o : (Collection) value) {
+            addFacet(facetName, o, docBuilder);
+        }
+    }
+
+    private void addFacet(String facetName, Object value, Document.Builder docBuilder) {
+        if (value == null) {
+            return;
+        }
+
+        docBuilder.addFacet(type == SearchFacet.Type.NUMBER
+                ? Facet.withNumber(facetName, ((Number) value).doubleValue())
+                : Facet.withAtom(facetName, FieldConverter.atomOf(value)));
+    }
+}
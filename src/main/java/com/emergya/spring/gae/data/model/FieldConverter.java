@@ -0,0 +1,372 @@
+package com.emergya.spring.gae.data.model;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.Field;
+import com.googlecode.objectify.Ref;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Converts a property value into the search document field(s) representing it.
+ *
+ * Converters are resolved once per property type, so converting a value is just a cast and a
+ * <c>Field.Builder</c> call.
+ *
+ * @author lroman
+ */
+abstract class FieldConverter {
+
+    /**
+     * Locale of text fields unless set with {@link SearchLocale}.
+     */
+    static final Locale DEFAULT_LOCALE = Locale.UK;
+
+    private static final Map<Class<?>, FieldConverter> CONVERTERS_BY_TYPE = new HashMap<>();
+
+    private static final ClassValue<FieldConverter> CONVERTERS = new ClassValue<FieldConverter>() {
+        @Override
+        protected FieldConverter computeValue(Class<?> type) {
+            return resolve(type);
+        }
+    };
+
+    private static final FieldConverter TEXT = new FieldConverter() {
+        @Override
+        void addFields(String fieldName, Object value, Document.Builder docBuilder) {
+            docBuilder.addField(Field.newBuilder().setName(fieldName).setText((String) value).setLocale(DEFAULT_LOCALE));
+        }
+    };
+
+    private static final FieldConverter ENUM = new FieldConverter() {
+        @Override
+        void addFields(String fieldName, Object value, Document.Builder docBuilder) {
+            docBuilder.addField(Field.newBuilder().setName(fieldName).setAtom(((Enum) value).name()));
+        }
+    };
+
+    private static final FieldConverter LONG = new FieldConverter() {
+        @Override
+        void addFields(String fieldName, Object value, Document.Builder docBuilder) {
+            docBuilder.addField(Field.newBuilder().setName(fieldName).setAtom(((Long) value).toString()));
+        }
+    };
+
+    private static final FieldConverter NUMBER = new FieldConverter() {
+        @Override
+        void addFields(String fieldName, Object value, Document.Builder docBuilder) {
+            docBuilder.addField(Field.newBuilder().setName(fieldName).setNumber(((Number) value).doubleValue()));
+        }
+    };
+
+    private static final FieldConverter DATE = new FieldConverter() {
+        @Override
+        void addFields(String fieldName, Object value, Document.Builder docBuilder) {
+            docBuilder.addField(Field.newBuilder().setName(fieldName).setDate((Date) value));
+        }
+    };
+
+    private static final FieldConverter BOOLEAN = new FieldConverter() {
+        @Override
+        void addFields(String fieldName, Object value, Document.Builder docBuilder) {
+            docBuilder.addField(Field.newBuilder().setName(fieldName).setAtom(((boolean) value) ? "true" : "false"));
+        }
+    };
+
+    private static final FieldConverter COLLECTION = new FieldConverter() {
+        @Override
+        void addFields(String fieldName, Object value, Document.Builder docBuilder) {
+            for (Object o : (Collection) value) {
+                if (o != null) {
+                    forType(o.getClass()).convert(fieldName, o, docBuilder);
+                }
+            }
+        }
+    };
+
+    private static final FieldConverter REF = new FieldConverter() {
+        @Override
+        boolean acceptsNull() {
+            return true;
+        }
+
+        @Override
+        void addFields(String fieldName, Object value, Document.Builder docBuilder) {
+            String atom = value == null ? "undefined" : Long.toString(((Ref) value).getKey().getId());
+            docBuilder.addField(Field.newBuilder().setName(fieldName).setAtom(atom));
+        }
+    };
+
+    private static final FieldConverter ENTITY = new FieldConverter() {
+        @Override
+        boolean acceptsNull() {
+            return true;
+        }
+
+        @Override
+        void addFields(String fieldName, Object value, Document.Builder docBuilder) {
+            String atom = value == null ? "undefined" : ((BaseEntity) value).getId().toString();
+            docBuilder.addField(Field.newBuilder().setName(fieldName).setAtom(atom));
+        }
+    };
+
+    private static final FieldConverter GEOPT = new FieldConverter() {
+        @Override
+        void addFields(String fieldName, Object value, Document.Builder docBuilder) {
+            docBuilder.addField(Field.newBuilder().setName(fieldName));
+        }
+    };
+
+    static {
+        CONVERTERS_BY_TYPE.put(String.class, TEXT);
+        CONVERTERS_BY_TYPE.put(Enum.class, ENUM);
+        CONVERTERS_BY_TYPE.put(Long.class, LONG);
+        CONVERTERS_BY_TYPE.put(long.class, LONG);
+        CONVERTERS_BY_TYPE.put(Double.class, NUMBER);
+        CONVERTERS_BY_TYPE.put(double.class, NUMBER);
+        CONVERTERS_BY_TYPE.put(Float.class, NUMBER);
+        CONVERTERS_BY_TYPE.put(float.class, NUMBER);
+        CONVERTERS_BY_TYPE.put(Integer.class, NUMBER);
+        CONVERTERS_BY_TYPE.put(int.class, NUMBER);
+        CONVERTERS_BY_TYPE.put(Date.class, DATE);
+        CONVERTERS_BY_TYPE.put(Boolean.class, BOOLEAN);
+        CONVERTERS_BY_TYPE.put(boolean.class, BOOLEAN);
+        CONVERTERS_BY_TYPE.put(Collection.class, COLLECTION);
+        CONVERTERS_BY_TYPE.put(Ref.class, REF);
+        CONVERTERS_BY_TYPE.put(BaseEntity.class, ENTITY);
+        CONVERTERS_BY_TYPE.put(GeoPt.class, GEOPT);
+    }
+
+    /**
+     * Gets the converter for values of a given type.
+     *
+     * @param type the declared (or runtime) type of the value.
+     * @return the converter, resolved once per type and cached.
+     */
+    static FieldConverter forType(Class<?> type) {
+        return CONVERTERS.get(type);
+    }
+
+    /**
+     * Gets the converter for a property indexed as set by its {@link SearchField} and
+     * {@link SearchLocale} annotations.
+     *
+     * @param type the declared type of the property.
+     * @param fieldType the field type, or AUTO for the one of the property type.
+     * @param maxLength the maximum length of text values, 0 for no limit.
+     * @param locale the locale of text fields.
+     * @return the converter.
+     * @throws IllegalArgumentException if the property type can't be indexed as the field type.
+     */
+    static FieldConverter forSchema(Class<?> type, SearchField.Type fieldType, int maxLength, Locale locale) {
+        if (fieldType == SearchField.Type.AUTO && maxLength == 0 && DEFAULT_LOCALE.equals(locale)) {
+            return forType(type);
+        }
+
+        boolean collection = Collection.class.isAssignableFrom(type);
+        if (fieldType == SearchField.Type.NUMBER && !collection && !Number.class.isAssignableFrom(boxed(type))) {
+            throw new IllegalArgumentException("Type " + type.getSimpleName() + " can't be indexed as a number.");
+        }
+        if (fieldType == SearchField.Type.DATE && !collection && !Date.class.isAssignableFrom(type)) {
+            throw new IllegalArgumentException("Type " + type.getSimpleName() + " can't be indexed as a date.");
+        }
+
+        return new SchemaConverter(forType(type), fieldType, maxLength, locale);
+    }
+
+    /**
+     * Tells whether a property is indexed as atom fields, which match values exactly, ignoring
+     * case, instead of as text, number or date fields.
+     *
+     * @param valueType the type of the property values, or of its elements for collections.
+     * @param fieldType the field type set with {@link SearchField}, or AUTO.
+     * @return whether the property fields are atoms.
+     */
+    static boolean isAtom(Class<?> valueType, SearchField.Type fieldType) {
+        if (fieldType != SearchField.Type.AUTO) {
+            return fieldType == SearchField.Type.ATOM;
+        }
+
+        return valueType == long.class || valueType == Long.class
+                || valueType == boolean.class || valueType == Boolean.class
+                || Enum.class.isAssignableFrom(valueType)
+                || Ref.class.isAssignableFrom(valueType)
+                || BaseEntity.class.isAssignableFrom(valueType);
+    }
+
+    /**
+     * Converts a value to the atom indexing it, as atom fields and facets do.
+     *
+     * @param value the value.
+     * @return the atom.
+     */
+    static String atomOf(Object value) {
+        if (value instanceof Enum) {
+            return ((Enum) value).name();
+        }
+        if (value instanceof BaseEntity) {
+            return ((BaseEntity) value).getId().toString();
+        }
+        if (value instanceof Ref) {
+            return Long.toString(((Ref) value).getKey().getId());
+        }
+
+        return value.toString();
+    }
+
+    /**
+     * Gets the type to check a property type against: Number for numeric primitives, Object for
+     * the other primitives, and the type itself otherwise.
+     *
+     * @param type the type.
+     * @return the type to check.
+     */
+    static Class<?> boxed(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return type;
+        }
+
+        return type == boolean.class || type == char.class ? Object.class : Number.class;
+    }
+
+    /**
+     * Adds the field(s) representing a value to a document, skipping null values unless the
+     * converter handles them.
+     *
+     * @param fieldName the name of the field(s) to add.
+     * @param value the property value.
+     * @param docBuilder the builder of the document being created.
+     */
+    final void convert(String fieldName, Object value, Document.Builder docBuilder) {
+        if (value == null && !acceptsNull()) {
+            return;
+        }
+
+        addFields(fieldName, value, docBuilder);
+    }
+
+    /**
+     * @return whether null values produce a field instead of being skipped.
+     */
+    boolean acceptsNull() {
+        return false;
+    }
+
+    abstract void addFields(String fieldName, Object value, Document.Builder docBuilder);
+
+    /**
+     * Converter of a property whose indexing is set by annotations.
+     */
+    private static final class SchemaConverter extends FieldConverter {
+
+        private final FieldConverter auto;
+        private final SearchField.Type fieldType;
+        private final int maxLength;
+        private final Locale locale;
+
+        SchemaConverter(FieldConverter auto, SearchField.Type fieldType, int maxLength, Locale locale) {
+            this.auto = auto;
+            this.fieldType = fieldType;
+            this.maxLength = maxLength;
+            this.locale = locale;
+        }
+
+        /**
+         * Null values are indexed as with no annotations, e.g. null references as the
+         * <c>undefined</c> atom, so annotating a property doesn't change how they are queried.
+         */
+        @Override
+        boolean acceptsNull() {
+            return auto.acceptsNull();
+        }
+
+        @Override
+        void addFields(String fieldName, Object value, Document.Builder docBuilder) {
+            if (value == null) {
+                auto.convert(fieldName, null, docBuilder);
+                return;
+            }
+
+            if (!(value instanceof Collection)) {
+                addField(fieldName, value, docBuilder);
+                return;
+            }
+
+            for (Object o : (Collection) value) {
+                if (o != null) {
+                    addField(fieldName, o, docBuilder);
+                }
+            }
+        }
+
+        private void addField(String fieldName, Object value, Document.Builder docBuilder) {
+            Field.Builder field = Field.newBuilder().setName(fieldName);
+            switch (fieldType) {
+                case ATOM:
+                    field.setAtom(truncate(atomOf(value)));
+                    break;
+                case TEXT:
+                    field.setText(truncate(value.toString())).setLocale(locale);
+                    break;
+                case HTML:
+                    field.setHTML(truncate(value.toString())).setLocale(locale);
+                    break;
+                case NUMBER:
+                    field.setNumber(((Number) value).doubleValue());
+                    break;
+                case DATE:
+                    field.setDate((Date) value);
+                    break;
+                default:
+                    if (!(value instanceof String)) {
+                        forType(value.getClass()).convert(fieldName, value, docBuilder);
+                        return;
+                    }
+                    field.setText(truncate((String) value)).setLocale(locale);
+            }
+
+            docBuilder.addField(field);
+        }
+
+        private String truncate(String value) {
+            if (maxLength == 0 || value.length() <= maxLength) {
+                return value;
+            }
+
+            // don't split a surrogate pair
+            int end = Character.isHighSurrogate(value.charAt(maxLength - 1)) ? maxLength - 1 : maxLength;
+            return value.substring(0, end);
+        }
+    }
+
+    private static FieldConverter resolve(Class<?> type) {
+        Class resultClass = type;
+        while (resultClass.getSuperclass() != null
+                && resultClass.getSuperclass() != Object.class
+                && resultClass.getSuperclass() != Number.class) {
+            resultClass = resultClass.getSuperclass();
+        }
+
+        if (Collection.class.isAssignableFrom(resultClass)) {
+            resultClass = Collection.class;
+        }
+
+        FieldConverter converter = CONVERTERS_BY_TYPE.get(resultClass);
+        if (converter != null) {
+            return converter;
+        }
+
+        final String resultType = resultClass.getSimpleName();
+        return new FieldConverter() {
+            @Override
+            void addFields(String fieldName, Object value, Document.Builder docBuilder) {
+                throw new UnsupportedOperationException(String.format(
+                        "Type %s is not supported for conversion to document field (%s): annotate the property "
+                        + "with @SearchIgnore or @SearchField.", resultType, fieldName));
+            }
+        };
+    }
+}
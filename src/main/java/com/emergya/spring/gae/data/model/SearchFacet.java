@@ -0,0 +1,42 @@
+package com.emergya.spring.gae.data.model;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Also indexes a property of an entity as a facet of its search document, on the property's
+ * field or getter, so searches can count the matches by value of the property.
+ *
+ * Properties indexed as numbers become number facets, and any other property an atom facet of
+ * its value as an atom field would have it (e.g. the name of an enum or the id of a referenced
+ * entity). The elements of collection properties are indexed as repeated facets.
+ *
+ * @author lroman
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.FIELD, ElementType.METHOD})
+public @interface SearchFacet {
+
+    /**
+     * @return the name of the facet, or empty to use the name of the field.
+     */
+    String name() default "";
+
+    /**
+     * Search document facet types.
+     */
+    enum Type {
+        /**
+         * Counted by value.
+         */
+        ATOM,
+        /**
+         * Counted by value or by ranges of values.
+         */
+        NUMBER
+    }
+}
@@ -0,0 +1,69 @@
+package com.emergya.spring.gae.data.model;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Sets how a property of an entity is indexed in its search document, on the property's field or
+ * getter. Properties without it are indexed with the field type of their Java type, under their
+ * own name.
+ *
+ * The elements of collection properties are indexed as repeated fields of the given type.
+ *
+ * @author lroman
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.FIELD, ElementType.METHOD})
+public @interface SearchField {
+
+    /**
+     * @return the type of the field; values are converted with <c>toString()</c> to be indexed as
+     * text, HTML or atoms, and must be numbers or dates to be indexed as such.
+     */
+    Type type() default Type.AUTO;
+
+    /**
+     * @return the name of the field, or empty to use the name of the property.
+     */
+    String name() default "";
+
+    /**
+     * @return the maximum length of text, HTML and atom values, longer ones being truncated; 0
+     * for no limit.
+     */
+    int maxLength() default 0;
+
+    /**
+     * Search document field types.
+     */
+    enum Type {
+        /**
+         * The field type of the property's Java type.
+         */
+        AUTO,
+        /**
+         * Indivisible value, only matched as a whole.
+         */
+        ATOM,
+        /**
+         * Text, matched by its words.
+         */
+        TEXT,
+        /**
+         * HTML, matched by the words of its text content.
+         */
+        HTML,
+        /**
+         * Number, which can be compared and sorted numerically.
+         */
+        NUMBER,
+        /**
+         * Date, which can be compared and sorted.
+         */
+        DATE
+    }
+}
@@ -0,0 +1,22 @@
+package com.emergya.spring.gae.data.model;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Leaves a property of an entity out of its search document, on the property's field or getter.
+ *
+ * Properties that are never searched should be ignored, as every indexed field costs index
+ * storage and write time. Properties of types that can't be converted to a document field must be
+ * either ignored or mapped with {@link SearchField}.
+ *
+ * @author lroman
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.FIELD, ElementType.METHOD})
+public @interface SearchIgnore {
+}
@@ -0,0 +1,25 @@
+package com.emergya.spring.gae.data.model;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Sets the locale used to tokenize the text of search documents: on an entity class, the locale
+ * of its documents and their text fields; on a property's field or getter, the locale of that
+ * property's text fields. Text is tokenized as British English by default.
+ *
+ * @author lroman
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.FIELD, ElementType.METHOD})
+public @interface SearchLocale {
+
+    /**
+     * @return the IETF language tag of the locale, e.g. <c>es</c> or <c>pt-BR</c>.
+     */
+    String value();
+}
@@ -0,0 +1,24 @@
+package com.emergya.spring.gae.utils;
+
+/**
+ * Thrown when a call to a backend is rejected without being tried, because the backend is
+ * failing or already has as many calls in flight as it can handle.
+ *
+ * It is never retried by {@link BackoffTryer}, as the point is to stop waiting on the backend.
+ *
+ * @author lroman
+ * @see CircuitBreaker
+ */
+public class BackendUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     *
+     * @param message the reason of the rejection.
+     */
+    public BackendUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -1,10 +1,25 @@
 package com.emergya.spring.gae.utils;
 
+import com.google.appengine.api.ThreadManager;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.DeadlineExceededException;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
- * Class that includes a method that allows retrying with a backoff.
+ * Class that includes methods that allow retrying with a backoff.
+ *
+ * Both the blocking and the asynchronous variants follow a {@link RetryPolicy}, so errors that
+ * can't be fixed by retrying fail at once and waits are jittered and bounded by a deadline.
  *
  * @author lroman
  */
@@ -12,49 +27,366 @@ public final class BackoffTryer {
 
     private static final Logger LOG = Logger.getLogger(BackoffTryer.class.getName());
 
-    private static final int WAIT_MSECS = 1000;
-    private static final int MAX_RETRIES = 3;
+    /**
+     * Waiting for an attempt blocks a thread until its RPCs return, but the RPCs of every pending
+     * attempt are made concurrently, so a request needs few threads to wait for all of them.
+     */
+    private static final int REQUEST_THREADS = 4;
+
+    private static final int SHARED_THREADS = 32;
+
+    private static final String EXECUTOR_ATTRIBUTE = BackoffTryer.class.getName() + ".executor";
 
     private BackoffTryer() {
     }
 
     /**
-     * Tries an operation with backoff.
+     * Tries an operation with backoff, following the default policy.
      *
      * @param <V> The type the callable returns
      * @param r The function to be called.
      * @return The result of the operation if succedes after backoff.
+     * @see RetryPolicy#DEFAULT
      */
     public static <V> V tryWithBackoff(Callable<V> r) {
+        return tryWithBackoff(r, RetryPolicy.DEFAULT);
+    }
+
+    /**
+     * Tries an operation with backoff, blocking the calling thread between attempts.
+     *
+     * @param <V> The type the callable returns
+     * @param r The function to be called.
+     * @param policy how the operation is retried.
+     * @return The result of the operation if succedes after backoff.
+     */
+    public static <V> V tryWithBackoff(Callable<V> r, RetryPolicy policy) {
+        long startNanos = System.nanoTime();
         int attempts = 0;
-        int delay = 1;
 
-        V result;
         while (true) {
+            RuntimeException error;
             try {
-                try {
-                    result = r.call();
-                } catch (Exception ex) {
-                    throw new RuntimeException(ex);
+                return r.call();
+            } catch (RuntimeException ex) {
+                error = ex;
+            } catch (Exception ex) {
+                error = new RuntimeException(ex);
+            }
+
+            long delay = policy.nextDelayMillis(++attempts, error, startNanos);
+            if (delay < 0) {
+                throw error;
+            }
+
+            LOG.info("Retrying operation in " + delay + " ms. Attempt " + attempts);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    /**
+     * Tries an operation with backoff without blocking the calling thread, following the default
+     * policy.
+     *
+     * @param <V> The type the callable returns
+     * @param r The function to be called.
+     * @return The eventual result of the operation.
+     * @see RetryPolicy#DEFAULT
+     */
+    public static <V> CompletableFuture<V> tryWithBackoffAsync(Callable<V> r) {
+        return tryWithBackoffAsync(r, RetryPolicy.DEFAULT);
+    }
+
+    /**
+     * Tries a blocking operation with backoff without blocking the calling thread.
+     *
+     * Every attempt is a blocking call run on a thread of the calling request; operations that can
+     * start their RPCs asynchronously should use {@link #tryWithBackoffAsync(AsyncAttempt,
+     * RetryPolicy)} instead, so their RPCs are made concurrently.
+     *
+     * @param <V> The type the callable returns
+     * @param r The function to be called.
+     * @param policy how the operation is retried.
+     * @return The eventual result of the operation, failed with the error of the last attempt if
+     * it doesn't succeed.
+     */
+    public static <V> CompletableFuture<V> tryWithBackoffAsync(final Callable<V> r, RetryPolicy policy) {
+        return tryWithBackoffAsync(new AsyncAttempt<V>() {
+            @Override
+            public Callable<V> start() {
+                return r;
+            }
+        }, policy);
+    }
+
+    /**
+     * Tries an operation with backoff without blocking the calling thread.
+     *
+     * The first attempt is started on the calling thread, so its RPCs are already being made when
+     * this method returns. Attempts are waited for, and retries started after their wait instead
+     * of sleeping, on a few threads of the calling request created with
+     * {@link ThreadManager#currentRequestThreadFactory()}, which also complete the returned future
+     * and so run its dependent stages.
+     *
+     * The operation belongs to the calling request and must finish before it does, as App Engine
+     * doesn't let request threads outlive their request: it fails with a
+     * {@link DeadlineExceededException} if it is still pending when the request deadline comes,
+     * and with the error of the last attempt if the next one couldn't start before it. Only
+     * operations started outside a request, such as in a plain thread, are waited for on a shared
+     * scheduler instead.
+     *
+     * @param <V> The type the attempts return
+     * @param attempt a single attempt of the operation.
+     * @param policy how the operation is retried.
+     * @return The eventual result of the operation, failed with the error of the last attempt if
+     * it doesn't succeed.
+     */
+    public static <V> CompletableFuture<V> tryWithBackoffAsync(AsyncAttempt<V> attempt, RetryPolicy policy) {
+        ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        PendingOperation<V> operation = new PendingOperation<>(attempt, policy, environment,
+                OperationExecutor.acquire(environment));
+        operation.start();
+        return operation.result;
+    }
+
+    /**
+     * Executor waiting for the pending async operations of a request. It is created with the
+     * first one and shut down once none is pending, so its threads end with the last of them.
+     */
+    private static final class OperationExecutor {
+
+        private final Map<String, Object> attributes;
+        private final ScheduledExecutorService executor;
+        private int pending;
+
+        private OperationExecutor(Map<String, Object> attributes, ScheduledExecutorService executor) {
+            this.attributes = attributes;
+            this.executor = executor;
+        }
+
+        /**
+         * Gets the executor of a request for a new operation.
+         *
+         * @param environment the App Engine environment of the request, null outside requests.
+         * @return the executor of the request, or the shared one outside requests.
+         */
+        static OperationExecutor acquire(ApiProxy.Environment environment) {
+            ThreadFactory requestThreads = environment != null ? ThreadManager.currentRequestThreadFactory() : null;
+            if (requestThreads == null) {
+                return new OperationExecutor(null, SharedScheduler.INSTANCE);
+            }
+
+            Map<String, Object> attributes = environment.getAttributes();
+            synchronized (attributes) {
+                OperationExecutor executor = (OperationExecutor) attributes.get(EXECUTOR_ATTRIBUTE);
+                if (executor == null) {
+                    ScheduledThreadPoolExecutor requestExecutor = new ScheduledThreadPoolExecutor(REQUEST_THREADS, requestThreads);
+                    requestExecutor.setRemoveOnCancelPolicy(true);
+                    requestExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+                    executor = new OperationExecutor(attributes, requestExecutor);
+                    attributes.put(EXECUTOR_ATTRIBUTE, executor);
                 }
-            } catch (RuntimeException e) {
-                if (++attempts < MAX_RETRIES) {
+
+                executor.pending++;
+                return executor;
+            }
+        }
+
+        /**
+         * Tells that an operation has finished, shutting the executor down if it was the last
+         * pending one of the request.
+         */
+        void release() {
+            if (attributes == null) {
+                return;
+            }
+
+            synchronized (attributes) {
+                if (--pending == 0) {
+                    attributes.remove(EXECUTOR_ATTRIBUTE);
+                    executor.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Scheduler for the async operations started outside requests, created on first use.
+     */
+    private static final class SharedScheduler {
+
+        private static final ScheduledExecutorService INSTANCE = create();
+
+        private static ScheduledExecutorService create() {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(SHARED_THREADS, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "backoff-tryer-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+
+            return scheduler;
+        }
+    }
+
+    /**
+     * A single attempt of an asynchronous operation.
+     *
+     * @param <V> The type the attempt returns
+     */
+    public interface AsyncAttempt<V> {
+
+        /**
+         * Starts the attempt without waiting for it, e.g. by making asynchronous RPCs.
+         *
+         * @return a call waiting for the attempt to finish and returning its result.
+         * @throws Exception if the attempt can't be started.
+         */
+        Callable<V> start() throws Exception;
+    }
+
+    /**
+     * An operation tried until it succeeds or its policy gives up.
+     *
+     * @param <V> The type the attempts return
+     */
+    private static final class PendingOperation<V> {
+
+        private final AsyncAttempt<V> attempt;
+        private final RetryPolicy policy;
+        private final ApiProxy.Environment environment;
+        private final OperationExecutor executor;
+        private final CompletableFuture<V> result = new CompletableFuture<>();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final long startNanos = System.nanoTime();
+        private final ScheduledFuture<?> deadline;
+        private int attempts;
+
+        PendingOperation(AsyncAttempt<V> attempt, RetryPolicy policy, ApiProxy.Environment environment,
+                OperationExecutor executor) {
+            this.attempt = attempt;
+            this.policy = policy;
+            this.environment = environment;
+            this.executor = executor;
+            this.deadline = environment != null ? failAtDeadline() : null;
+        }
+
+        /**
+         * Fails the operation if it is still pending when the request deadline comes.
+         */
+        private ScheduledFuture<?> failAtDeadline() {
+            return executor.executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    result.completeExceptionally(new DeadlineExceededException(
+                            "Async operation still pending at the request deadline."));
+                    finish();
+                }
+            }, environment.getRemainingMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Starts an attempt and waits for it on the executor.
+         */
+        void start() {
+            if (result.isDone()) {
+                // cancelled by the caller or past the request deadline
+                finish();
+                return;
+            }
+
+            final Callable<V> pending;
+            try {
+                pending = attempt.start();
+            } catch (Exception ex) {
+                retryOrFail(ex);
+                return;
+            }
+
+            executor.executor.execute(inEnvironment(new Runnable() {
+                @Override
+                public void run() {
                     try {
-                        // retrying
-                        Thread.sleep(delay * WAIT_MSECS);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
+                        result.complete(pending.call());
+                        finish();
+                    } catch (Exception ex) {
+                        retryOrFail(ex);
                     }
-                    delay *= 2; // easy exponential backoff
-                    LOG.info("Retrying operation in " + delay + ". Attempt " + attempts);
-                    continue;
-                } else {
-                    throw e; // otherwise throw
                 }
+            }));
+        }
+
+        private void retryOrFail(Exception error) {
+            long delay = policy.nextDelayMillis(++attempts, error, startNanos);
+            if (delay < 0 || result.isDone()) {
+                result.completeExceptionally(error);
+                finish();
+                return;
+            }
+
+            if (environment != null && delay >= environment.getRemainingMillis()) {
+                LOG.info("Not retrying operation, as attempt " + (attempts + 1) + " wouldn't start before the request deadline");
+                result.completeExceptionally(error);
+                finish();
+                return;
+            }
+
+            LOG.info("Retrying operation in " + delay + " ms. Attempt " + attempts);
+            executor.executor.schedule(inEnvironment(new Runnable() {
+                @Override
+                public void run() {
+                    start();
+                }
+            }), delay, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Releases the executor once the operation is done, whether it completed, failed, was
+         * cancelled by the caller or reached the request deadline.
+         */
+        private void finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+
+            if (deadline != null) {
+                deadline.cancel(false);
             }
-            break;
+            executor.release();
         }
 
-        return result;
+        /**
+         * Runs a task with the environment of the request that started the operation, which
+         * request threads already have but the threads of the shared scheduler don't.
+         */
+        private Runnable inEnvironment(final Runnable runnable) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    if (environment == null || ApiProxy.getCurrentEnvironment() != null) {
+                        runnable.run();
+                        return;
+                    }
+
+                    ApiProxy.setEnvironmentForCurrentThread(environment);
+                    try {
+                        runnable.run();
+                    } finally {
+                        ApiProxy.clearEnvironmentForCurrentThread();
+                    }
+                }
+            };
+        }
     }
 }
@@ -0,0 +1,278 @@
+package com.emergya.spring.gae.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Guards the calls to a backend (such as the DataStore or the Search API) made on behalf of a
+ * scope (such as an entity class), so a degraded backend makes calls fail fast instead of holding
+ * request threads.
+ *
+ * It combines two mechanisms, both shared by all the threads of the app instance:
+ * <ul>
+ * <li>A circuit breaker: after {@value #FAILURE_THRESHOLD} consecutive transient failures, calls
+ * are rejected for {@value #OPEN_MILLIS} ms, then a single probe call is let through; its outcome
+ * closes the circuit again or keeps it open.</li>
+ * <li>A bulkhead: calls beyond a limit of concurrent calls are rejected. The limit adapts to the
+ * backend's health (AIMD): it grows by one every limit calls while the backend keeps its usual
+ * latency, and shrinks by a {@value #DECREASE_FACTOR} factor when calls fail or the backend slows
+ * down, at most once per round trip (only calls started after the last decrease shrink it
+ * again).</li>
+ * </ul>
+ * Rejected calls throw a {@link BackendUnavailableException}.
+ *
+ * The backend slows down when its recent latency (a fast moving average of the latency of the
+ * calls) is both over the latency target and {@value #SLOW_RATIO} times its baseline (a slow
+ * moving average), so a backend whose calls are usually slow, as with a mix of batch and single
+ * entity calls, isn't throttled for it.
+ *
+ * @author lroman
+ */
+public final class CircuitBreaker {
+
+    private static final Logger LOG = Logger.getLogger(CircuitBreaker.class.getName());
+
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long OPEN_MILLIS = 30000;
+    private static final double INITIAL_LIMIT = 20;
+    private static final double MIN_LIMIT = 2;
+    private static final double MAX_LIMIT = 200;
+    private static final double DECREASE_FACTOR = 0.7;
+    private static final double SLOW_RATIO = 2;
+    private static final double RECENT_SMOOTHING = 0.1;
+    private static final double BASELINE_SMOOTHING = 0.01;
+
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final long latencyTargetNanos;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private final LongAdder rejections = new LongAdder();
+    private volatile long openedAt;
+    private volatile double limit = INITIAL_LIMIT;
+
+    // guarded by this
+    private double recentLatencyNanos;
+    private double baselineLatencyNanos;
+    private long lastDecreaseNanos;
+
+    private CircuitBreaker(String name, long latencyTargetMillis) {
+        this.name = name;
+        this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMillis);
+        this.lastDecreaseNanos = System.nanoTime();
+    }
+
+    /**
+     * Gets the breaker of a backend for a scope, creating it if needed.
+     *
+     * @param backend the name of the backend.
+     * @param scope the class the calls are made for.
+     * @param latencyTargetMillis the latency below which the backend is never considered slow; only
+     * used if the breaker is created.
+     * @return the breaker.
+     */
+    public static CircuitBreaker forBackend(String backend, Class<?> scope, long latencyTargetMillis) {
+        String name = backend + ":" + scope.getSimpleName();
+
+        CircuitBreaker breaker = BREAKERS.get(name);
+        if (breaker == null) {
+            CircuitBreaker created = new CircuitBreaker(name, latencyTargetMillis);
+            breaker = BREAKERS.putIfAbsent(name, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+
+        return breaker;
+    }
+
+    /**
+     * @return the breakers created so far, by name
+     */
+    public static Map<String, CircuitBreaker> getAll() {
+        return new LinkedHashMap<String, CircuitBreaker>(BREAKERS);
+    }
+
+    /**
+     * Wraps a call so it is guarded by the breaker.
+     *
+     * @param <V> The type the callable returns
+     * @param callable the call.
+     * @return the guarded call, which throws a {@link BackendUnavailableException} if rejected.
+     */
+    public <V> Callable<V> protect(final Callable<V> callable) {
+        return new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                Permit permit = acquire();
+                try {
+                    V result = callable.call();
+                    permit.release(null);
+                    return result;
+                } catch (Exception | Error ex) {
+                    permit.release(ex);
+                    throw ex;
+                }
+            }
+        };
+    }
+
+    /**
+     * Lets a call through, to be released with its outcome when it finishes.
+     *
+     * @return the permit of the call.
+     * @throws BackendUnavailableException if the call is rejected.
+     */
+    public Permit acquire() {
+        boolean probe = false;
+        if (openedAt != 0) {
+            if (System.currentTimeMillis() - openedAt < OPEN_MILLIS || !probing.compareAndSet(false, true)) {
+                throw reject("the circuit is open");
+            }
+            probe = true;
+        }
+
+        if (inFlight.incrementAndGet() > limit) {
+            inFlight.decrementAndGet();
+            if (probe) {
+                probing.set(false);
+            }
+            throw reject("too many calls in flight");
+        }
+
+        return new Permit(probe);
+    }
+
+    /**
+     * Rejects calls while the circuit is open, without limiting concurrency. Used before starting
+     * asynchronous calls, whose outcome isn't tracked.
+     *
+     * @throws BackendUnavailableException if the circuit is open.
+     */
+    public void checkAvailable() {
+        if (openedAt != 0 && System.currentTimeMillis() - openedAt < OPEN_MILLIS) {
+            throw reject("the circuit is open");
+        }
+    }
+
+    /**
+     * @return whether calls are being rejected because the backend is failing
+     */
+    public boolean isOpen() {
+        return openedAt != 0;
+    }
+
+    /**
+     * @return the state of the breaker, for monitoring
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("open", isOpen());
+        stats.put("limit", (int) limit);
+        stats.put("inFlight", inFlight.get());
+        stats.put("rejections", rejections.sum());
+        synchronized (this) {
+            stats.put("recentLatencyMillis", TimeUnit.NANOSECONDS.toMillis((long) recentLatencyNanos));
+            stats.put("baselineLatencyMillis", TimeUnit.NANOSECONDS.toMillis((long) baselineLatencyNanos));
+        }
+        return stats;
+    }
+
+    private BackendUnavailableException reject(String reason) {
+        rejections.increment();
+        return new BackendUnavailableException("Call to " + name + " rejected: " + reason + ".");
+    }
+
+    private synchronized void succeeded(boolean probe, long startNanos, long latencyNanos) {
+        consecutiveFailures.set(0);
+        if (probe) {
+            openedAt = 0;
+            LOG.info("Circuit " + name + " closed");
+        }
+
+        if (baselineLatencyNanos == 0) {
+            recentLatencyNanos = latencyNanos;
+            baselineLatencyNanos = latencyNanos;
+        } else {
+            recentLatencyNanos += RECENT_SMOOTHING * (latencyNanos - recentLatencyNanos);
+            baselineLatencyNanos += BASELINE_SMOOTHING * (latencyNanos - baselineLatencyNanos);
+        }
+
+        if (recentLatencyNanos > latencyTargetNanos && recentLatencyNanos > SLOW_RATIO * baselineLatencyNanos) {
+            decrease(startNanos);
+        } else {
+            limit = Math.min(MAX_LIMIT, limit + 1 / limit);
+        }
+    }
+
+    private synchronized void failed(boolean probe, long startNanos) {
+        decrease(startNanos);
+
+        if (probe || (consecutiveFailures.incrementAndGet() >= FAILURE_THRESHOLD && openedAt == 0)) {
+            openedAt = System.currentTimeMillis();
+            LOG.warning("Circuit " + name + " opened for " + OPEN_MILLIS + " ms");
+        }
+    }
+
+    /**
+     * Shrinks the limit, unless the call started before the last decrease, so a single episode of
+     * congestion shrinks it once however many calls were in flight.
+     *
+     * @param startNanos the start of the call that found the backend congested.
+     */
+    private void decrease(long startNanos) {
+        if (startNanos - lastDecreaseNanos > 0) {
+            limit = Math.max(MIN_LIMIT, limit * DECREASE_FACTOR);
+            lastDecreaseNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * A call let through by the breaker.
+     */
+    public final class Permit {
+
+        private final boolean probe;
+        private final long startNanos = System.nanoTime();
+        private boolean released;
+
+        private Permit(boolean probe) {
+            this.probe = probe;
+        }
+
+        /**
+         * Reports the outcome of the call. Errors that aren't transient, such as invalid
+         * arguments, don't count as failures of the backend.
+         *
+         * @param error the error of the call, or null if it succeeded.
+         */
+        public void release(Throwable error) {
+            if (released) {
+                return;
+            }
+            released = true;
+
+            inFlight.decrementAndGet();
+            if (error == null || !RetryPolicy.TRANSIENT_ERRORS.test(error)) {
+                succeeded(probe, startNanos, System.nanoTime() - startNanos);
+            } else {
+                failed(probe, startNanos);
+            }
+
+            if (probe) {
+                probing.set(false);
+            }
+        }
+    }
+}
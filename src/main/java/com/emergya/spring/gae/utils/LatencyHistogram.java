@@ -0,0 +1,164 @@
+package com.emergya.spring.gae.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies, cheap enough to record every call of a hot path.
+ *
+ * Latencies are counted in microsecond buckets that grow exponentially, each power of two split
+ * in {@value #SUB_BUCKETS} linear sub-buckets, so percentiles are reported with an error below
+ * 13% from 1 microsecond up to several days. Every bucket is a striped counter allocated
+ * upfront, so recording never allocates nor blocks. Snapshots of several histograms can be
+ * merged, e.g. to aggregate the latencies of an operation across entity classes.
+ *
+ * @author lroman
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder totalMicros = new LongAdder();
+
+    /**
+     * Constructor.
+     */
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        buckets[bucketOf(micros)].increment();
+        totalMicros.add(micros);
+    }
+
+    /**
+     * @return a copy of the current counts
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+
+        return new Snapshot(counts, totalMicros.sum());
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+
+        int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(micros));
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Immutable counts of a histogram at some point.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long totalMicros;
+        private final long count;
+
+        private Snapshot(long[] counts, long totalMicros) {
+            this.counts = counts;
+            this.totalMicros = totalMicros;
+
+            long sum = 0;
+            for (long bucketCount : counts) {
+                sum += bucketCount;
+            }
+            this.count = sum;
+        }
+
+        /**
+         * Merges two snapshots.
+         *
+         * @param other the other snapshot.
+         * @return a snapshot with the latencies of both.
+         */
+        public Snapshot merge(Snapshot other) {
+            long[] merged = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                merged[i] = counts[i] + other.counts[i];
+            }
+
+            return new Snapshot(merged, totalMicros + other.totalMicros);
+        }
+
+        /**
+         * @return the number of recorded latencies
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the mean latency in milliseconds
+         */
+        public double getMeanMillis() {
+            return count == 0 ? 0 : totalMicros / 1000.0 / count;
+        }
+
+        /**
+         * Estimates a percentile as the middle of the bucket it falls in.
+         *
+         * @param quantile the quantile, between 0 and 1 (e.g. 0.99 for the p99).
+         * @return the latency in milliseconds
+         */
+        public double getPercentileMillis(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(1, rank)) {
+                    return (lowerBoundOf(i) + (lowerBoundOf(i + 1) - lowerBoundOf(i)) / 2.0) / 1000.0;
+                }
+            }
+
+            return lowerBoundOf(BUCKETS) / 1000.0;
+        }
+
+        /**
+         * @return an upper bound of the maximum latency in milliseconds
+         */
+        public double getMaxMillis() {
+            for (int i = BUCKETS - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return lowerBoundOf(i + 1) / 1000.0;
+                }
+            }
+
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.emergya.spring.gae.utils;
+
+import com.google.appengine.api.search.SearchQueryException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Immutable description of how an operation is retried by {@link BackoffTryer}: how many times,
+ * how long to wait between attempts, which errors are worth retrying and the total time budget.
+ *
+ * Delays grow exponentially from the base delay up to the maximum one and use full jitter (a
+ * random wait between zero and the exponential delay), so clients failing at the same time don't
+ * retry in lockstep. Policies are tuned per call site from {@link #DEFAULT}:
+ * <c>RetryPolicy.DEFAULT.withMaxAttempts(5).withDeadline(10, TimeUnit.SECONDS)</c>.
+ *
+ * @author lroman
+ */
+public final class RetryPolicy {
+
+    /**
+     * Errors that may go away if the operation is retried: all but programming errors, invalid
+     * search queries and calls rejected by a {@link CircuitBreaker}.
+     */
+    public static final Predicate<Throwable> TRANSIENT_ERRORS = new Predicate<Throwable>() {
+        @Override
+        public boolean test(Throwable error) {
+            for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+                if (cause instanceof BackendUnavailableException
+                        || cause instanceof SearchQueryException
+                        || cause instanceof IllegalArgumentException
+                        || cause instanceof IllegalStateException
+                        || cause instanceof UnsupportedOperationException
+                        || cause instanceof ClassCastException
+                        || cause instanceof NullPointerException) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    };
+
+    /**
+     * 3 attempts, waiting up to 1s and then up to 2s, retrying transient errors only.
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 1000, 8000, 0, TRANSIENT_ERRORS, null);
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final long deadlineMillis;
+    private final Predicate<Throwable> retryable;
+    private final Listener listener;
+
+    private RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, long deadlineMillis,
+            Predicate<Throwable> retryable, Listener listener) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.deadlineMillis = deadlineMillis;
+        this.retryable = retryable;
+        this.listener = listener;
+    }
+
+    /**
+     * @param maxAttempts the maximum number of attempts, including the first one.
+     * @return a copy of the policy with the given number of attempts
+     */
+    public RetryPolicy withMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is needed.");
+        }
+
+        return new RetryPolicy(maxAttempts, baseDelayMillis, maxDelayMillis, deadlineMillis, retryable, listener);
+    }
+
+    /**
+     * @param base the upper bound of the wait before the first retry.
+     * @param max the upper bound of any wait.
+     * @param unit the unit of both delays.
+     * @return a copy of the policy with the given delays
+     */
+    public RetryPolicy withDelays(long base, long max, TimeUnit unit) {
+        return new RetryPolicy(maxAttempts, unit.toMillis(base), unit.toMillis(max), deadlineMillis, retryable, listener);
+    }
+
+    /**
+     * @param deadline the total time budget, from the first attempt; no retry is started if its
+     * wait would exceed it.
+     * @param unit the unit of the deadline.
+     * @return a copy of the policy with the given deadline
+     */
+    public RetryPolicy withDeadline(long deadline, TimeUnit unit) {
+        return new RetryPolicy(maxAttempts, baseDelayMillis, maxDelayMillis, unit.toMillis(deadline), retryable, listener);
+    }
+
+    /**
+     * @param retryable decides whether an error is worth retrying.
+     * @return a copy of the policy with the given classification of errors
+     */
+    public RetryPolicy retryingOn(Predicate<Throwable> retryable) {
+        return new RetryPolicy(maxAttempts, baseDelayMillis, maxDelayMillis, deadlineMillis, retryable, listener);
+    }
+
+    /**
+     * @param listener notified of every retry, e.g. to keep metrics.
+     * @return a copy of the policy with the given listener
+     */
+    public RetryPolicy withListener(Listener listener) {
+        return new RetryPolicy(maxAttempts, baseDelayMillis, maxDelayMillis, deadlineMillis, retryable, listener);
+    }
+
+    /**
+     * @return the maximum number of attempts, including the first one
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @return the total time budget in milliseconds, or 0 if there is none
+     */
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /**
+     * Decides whether to retry an operation after a failed attempt.
+     *
+     * @param attempts the number of attempts done so far.
+     * @param error the error of the last attempt.
+     * @param startNanos the time of the first attempt, from {@link System#nanoTime()}.
+     * @return the milliseconds to wait before the next attempt, or -1 to give up.
+     */
+    long nextDelayMillis(int attempts, Throwable error, long startNanos) {
+        if (attempts >= maxAttempts || !retryable.test(error)) {
+            return -1;
+        }
+
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempts - 1, 30));
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+
+        if (deadlineMillis > 0) {
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            if (elapsed + delay >= deadlineMillis) {
+                return -1;
+            }
+        }
+
+        if (listener != null) {
+            listener.retrying(attempts, error, delay);
+        }
+
+        return delay;
+    }
+
+    /**
+     * Receives the retries decided by a policy.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a failed attempt is going to be retried.
+         *
+         * @param attempts the number of attempts done so far.
+         * @param error the error of the last attempt.
+         * @param delayMillis the wait before the next attempt.
+         */
+        void retrying(int attempts, Throwable error, long delayMillis);
+    }
+}
@@ -1,5 +1,6 @@
 package com.emergya.spring.gae.web.ws;
 
+import com.emergya.spring.gae.data.dao.RpcTrace;
 import com.emergya.spring.gae.web.dto.ValidationErrorDTO;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -8,9 +9,12 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.WebRequest;
 
 /**
  * Base class for RestControllers.
@@ -26,6 +30,28 @@ public abstract class BaseRestWebService {
 
     private static final Logger LOG = Logger.getLogger(BaseRestWebService.class.getName());
 
+    /**
+     * Starts tracing the DataStore and Search RPCs made while handling the request, which are
+     * reported in the <c>Server-Timing</c> header of the response.
+     *
+     * The trace is also kept as a request attribute, so it can be reported when the handler
+     * returns an async result (such as the <c>CompletableFuture</c> of an async dao call) and the
+     * response is written from another thread. RPCs made by async dao calls are traced too, as
+     * long as they are waited for before the response is written.
+     *
+     * Model attributes are also initialised by the dispatch that writes an async result, which
+     * keeps the trace of the dispatch that started the request instead of starting an empty one.
+     *
+     * @param request the request.
+     * @see RpcTraceResponseAdvice
+     */
+    @ModelAttribute
+    public final void startRpcTrace(WebRequest request) {
+        if (request.getAttribute(RpcTraceResponseAdvice.RPC_TRACE_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST) == null) {
+            request.setAttribute(RpcTraceResponseAdvice.RPC_TRACE_ATTRIBUTE, RpcTrace.start(), RequestAttributes.SCOPE_REQUEST);
+        }
+    }
+
     /**
      * Handles an RestException returning an standard response.
      *
@@ -1,13 +1,37 @@
 package com.emergya.spring.gae.web.ws;
 
+import com.emergya.spring.gae.data.dao.BatchSaveResult;
+import com.emergya.spring.gae.data.dao.BatchWriter;
+import com.emergya.spring.gae.data.dao.ChunkIterator;
+import com.emergya.spring.gae.data.dao.DaoMetrics;
 import com.emergya.spring.gae.data.dao.DatastoreBaseDao;
 import com.emergya.spring.gae.data.model.BaseEntity;
+import com.emergya.spring.gae.utils.CircuitBreaker;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.apphosting.api.ApiProxy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
@@ -20,6 +44,36 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("_gae_fw")
 public class GaeFrameworkUtilsWS extends BaseRestWebService {
 
+    private static final String DEFAULT_REINDEX_WORKERS = "4";
+    private static final String DEFAULT_EXPORT_CHUNK_SIZE = "500";
+    private static final long EXPORT_DEADLINE_MARGIN_MILLIS = 10000;
+    private static final long IMPORT_DEADLINE_MARGIN_MILLIS = 15000;
+    private static final int MAX_REPORTED_IMPORT_ERRORS = 100;
+
+    /**
+     * The name of the field of the last line of an export telling whether all the entities were
+     * exported.
+     */
+    public static final String EXPORT_COMPLETE_FIELD = "@complete";
+
+    /**
+     * The name of the field of the last line of a partial export holding the cursor to resume it.
+     */
+    public static final String EXPORT_CURSOR_FIELD = "@cursor";
+
+    /**
+     * The name of the field of the last line of a failed export holding the error.
+     */
+    public static final String EXPORT_ERROR_FIELD = "@error";
+
+    private static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
+    private static final Logger LOG = Logger.getLogger(GaeFrameworkUtilsWS.class.getName());
+
+    private static final ObjectMapper EXPORT_MAPPER = Jackson2ObjectMapperBuilder.json()
+            .featuresToDisable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .build();
+
     /**
      * Allows to refresh the search index associated to an entity.
      *
@@ -27,26 +81,24 @@ public class GaeFrameworkUtilsWS extends BaseRestWebService {
      *
      *
      * @param entityClassName the full name of the entity class whose related index is to be updated.
+     * @param workers the number of workers reindexing in parallel.
+     * @param shadow whether to build a new version of the index while searches keep being served
+     * by the current one, instead of emptying and refilling it.
      * @return A map containing information about the updated index
      * @throws ClassNotFoundException the provided class name doesn't exist in the classpath
      * @throws NoSuchMethodException a valid default constructor for the entity's dao class doesn't exist
      */
     @RequestMapping("updateSearchIndex")
-    public final Map<String, Object> updateSearchIndex(@RequestParam() String entityClassName)
+    public final Map<String, Object> updateSearchIndex(
+            @RequestParam() String entityClassName,
+            @RequestParam(defaultValue = DEFAULT_REINDEX_WORKERS) int workers,
+            @RequestParam(defaultValue = "false") boolean shadow)
             throws ClassNotFoundException, NoSuchMethodException {
 
         Class<? extends BaseEntity> entityClass = (Class<? extends BaseEntity>) Class.forName(entityClassName);
-        Class<? extends DatastoreBaseDao> daoClass = DatastoreBaseDao.getDaoForEntity(entityClass);
+        DatastoreBaseDao<BaseEntity> dao = getDao(entityClass);
 
-        DatastoreBaseDao<BaseEntity> dao;
-        try {
-            dao = daoClass.getConstructor().newInstance();
-        } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException ex) {
-            Logger.getLogger(GaeFrameworkUtilsWS.class.getName()).log(Level.SEVERE, null, ex);
-            throw new RuntimeException(ex);
-        }
-
-        long count = dao.reindex();
+        long count = shadow ? dao.rebuildIndex(workers) : dao.reindex(workers);
 
         HashMap<String, Object> result = new HashMap<>();
 
@@ -56,4 +108,271 @@ public class GaeFrameworkUtilsWS extends BaseRestWebService {
 
         return result;
     }
+
+    /**
+     * Recounts the entities of a class whose dao maintains counters, initialising or fixing them.
+     *
+     * @param entityClassName the full name of the entity class whose counters are to be rebuilt.
+     * @return A map containing information about the rebuilt counters
+     * @throws ClassNotFoundException the provided class name doesn't exist in the classpath
+     * @throws NoSuchMethodException a valid default constructor for the entity's dao class doesn't exist
+     */
+    @RequestMapping("rebuildCounters")
+    public final Map<String, Object> rebuildCounters(@RequestParam() String entityClassName)
+            throws ClassNotFoundException, NoSuchMethodException {
+
+        Class<? extends BaseEntity> entityClass = (Class<? extends BaseEntity>) Class.forName(entityClassName);
+        long count = getDao(entityClass).rebuildCounters();
+
+        HashMap<String, Object> result = new HashMap<>();
+
+        result.put("countedClass", entityClass);
+        result.put("countedEntitiesCount", count);
+        result.put("success", true);
+
+        return result;
+    }
+
+    /**
+     * Exports the entities of a class as newline-delimited JSON, one entity per line serialized
+     * as the REST services would.
+     *
+     * Entities are read from the DataStore in chunks with query cursors and every chunk is written
+     * to the response as soon as it is read, so memory usage doesn't depend on the number of
+     * entities. The response is gzipped when the client accepts it.
+     *
+     * The last line of every export is a trailer object telling whether all the entities were
+     * exported in its {@value #EXPORT_COMPLETE_FIELD} field, so a response without it has been
+     * truncated. When the request deadline nears, or reading a chunk fails (the error is then in
+     * {@value #EXPORT_ERROR_FIELD}), the export stops after the last chunk read and the trailer
+     * holds in {@value #EXPORT_CURSOR_FIELD} the cursor to pass to the next request to export the
+     * rest of the entities.
+     *
+     * @param entityClassName the full name of the entity class whose entities are to be exported.
+     * @param cursor the cursor returned by a partial export to resume, or none to start from the
+     * first entity.
+     * @param chunkSize the number of entities read from the DataStore at a time.
+     * @param request the request.
+     * @param response the response the entities are written to.
+     * @throws ClassNotFoundException the provided class name doesn't exist in the classpath
+     * @throws NoSuchMethodException a valid default constructor for the entity's dao class doesn't exist
+     * @throws IOException the response couldn't be written
+     */
+    @RequestMapping("export")
+    public final void export(
+            @RequestParam() String entityClassName,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = DEFAULT_EXPORT_CHUNK_SIZE) int chunkSize,
+            HttpServletRequest request,
+            HttpServletResponse response)
+            throws ClassNotFoundException, NoSuchMethodException, IOException {
+
+        Class<? extends BaseEntity> entityClass = (Class<? extends BaseEntity>) Class.forName(entityClassName);
+        ChunkIterator<BaseEntity> chunks = getDao(entityClass).iterateChunks(cursor, chunkSize);
+
+        response.setContentType(NDJSON_CONTENT_TYPE);
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+        OutputStream out = response.getOutputStream();
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+            out = new GZIPOutputStream(out, true);
+        }
+
+        ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        try (JsonGenerator generator = EXPORT_MAPPER.getFactory().createGenerator(out)) {
+            generator.setRootValueSeparator(null);
+
+            String resumeCursor = cursor;
+            boolean complete = true;
+            RuntimeException error = null;
+            try {
+                while (chunks.hasNext()) {
+                    for (BaseEntity entity : chunks.next()) {
+                        generator.writeObject(entity);
+                        generator.writeRaw('\n');
+                    }
+                    generator.flush();
+                    resumeCursor = chunks.getCursor();
+
+                    if (resumeCursor != null && environment != null
+                            && environment.getRemainingMillis() < EXPORT_DEADLINE_MARGIN_MILLIS) {
+                        complete = false;
+                        break;
+                    }
+                }
+            } catch (RuntimeException ex) {
+                LOG.log(Level.SEVERE, "Export of " + entityClassName + " failed, resumable from " + resumeCursor, ex);
+                complete = false;
+                error = ex;
+            }
+
+            generator.writeStartObject();
+            generator.writeBooleanField(EXPORT_COMPLETE_FIELD, complete);
+            if (!complete) {
+                generator.writeStringField(EXPORT_CURSOR_FIELD, resumeCursor);
+            }
+            if (error != null) {
+                generator.writeStringField(EXPORT_ERROR_FIELD, String.valueOf(error));
+            }
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+        }
+
+        out.close();
+    }
+
+    /**
+     * Imports entities of a class from a newline-delimited JSON request body, one entity per line
+     * as written by {@link #export}, whose trailer lines are ignored.
+     *
+     * The body is parsed one record at a time as it is received, gunzipping it if its
+     * <c>Content-Encoding</c> is gzip, and the entities are saved with a {@link BatchWriter}, so
+     * a chunk is being parsed while the previous one is saved and the one before it indexed, and
+     * memory usage doesn't depend on the size of the body. Records that aren't valid entities are
+     * reported and skipped, but a body that isn't valid JSON stops the import.
+     *
+     * When the request deadline nears before the whole body has been read, the import stops and
+     * reports as <c>nextRecord</c> the number of records read, which is passed as <c>skip</c> to
+     * import the rest of the body in another request.
+     *
+     * @param entityClassName the full name of the entity class whose entities are to be imported.
+     * @param skip the number of records at the start of the body that were already imported.
+     * @param request the request whose body holds the entities.
+     * @return A map containing the number of entities imported and the outcome and throughput of
+     * every batch
+     * @throws ClassNotFoundException the provided class name doesn't exist in the classpath
+     * @throws NoSuchMethodException a valid default constructor for the entity's dao class doesn't exist
+     * @throws IOException the request body couldn't be read
+     */
+    @RequestMapping(value = "import", method = RequestMethod.POST)
+    public final Map<String, Object> importEntities(
+            @RequestParam() String entityClassName,
+            @RequestParam(defaultValue = "0") long skip,
+            HttpServletRequest request)
+            throws ClassNotFoundException, NoSuchMethodException, IOException {
+
+        long start = System.nanoTime();
+        Class<? extends BaseEntity> entityClass = (Class<? extends BaseEntity>) Class.forName(entityClassName);
+        BatchWriter<BaseEntity> writer = getDao(entityClass).newBatchWriter();
+
+        InputStream in = request.getInputStream();
+        if ("gzip".equalsIgnoreCase(request.getHeader(HttpHeaders.CONTENT_ENCODING))) {
+            in = new GZIPInputStream(in);
+        }
+
+        ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        List<Map<String, Object>> errors = new ArrayList<>();
+        long record = 0;
+        long invalid = 0;
+        boolean complete = false;
+        try (MappingIterator<JsonNode> records = EXPORT_MAPPER.readerFor(JsonNode.class).readValues(in)) {
+            while (true) {
+                if (environment != null && environment.getRemainingMillis() < IMPORT_DEADLINE_MARGIN_MILLIS) {
+                    break;
+                }
+                if (!records.hasNextValue()) {
+                    complete = true;
+                    break;
+                }
+
+                JsonNode node = records.nextValue();
+                if (record++ < skip || node.has(EXPORT_COMPLETE_FIELD)) {
+                    continue;
+                }
+
+                try {
+                    writer.add(EXPORT_MAPPER.treeToValue(node, entityClass));
+                } catch (IOException | IllegalArgumentException ex) {
+                    invalid++;
+                    if (errors.size() < MAX_REPORTED_IMPORT_ERRORS) {
+                        errors.add(importError(record - 1, ex));
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Import of " + entityClassName + " stopped at record " + record, ex);
+            errors.add(importError(record, ex));
+        }
+
+        BatchSaveResult saved = writer.finish();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        List<Map<String, Object>> batches = new ArrayList<>();
+        for (BatchSaveResult.ChunkResult chunk : saved.getChunks()) {
+            Map<String, Object> batch = new LinkedHashMap<>();
+            batch.put("firstIndex", chunk.getFirstIndex());
+            batch.put("size", chunk.getSize());
+            batch.put("saved", chunk.isSaved());
+            batch.put("indexed", chunk.isIndexed());
+            batch.put("elapsedMillis", chunk.getElapsedMillis());
+            batch.put("entitiesPerSecond", perSecond(chunk.getSize(), chunk.getElapsedMillis()));
+            if (chunk.getError() != null) {
+                batch.put("error", String.valueOf(chunk.getError()));
+            }
+            batches.add(batch);
+        }
+
+        HashMap<String, Object> result = new HashMap<>();
+
+        result.put("importedClass", entityClass);
+        result.put("complete", complete);
+        result.put("nextRecord", record);
+        result.put("importedEntitiesCount", saved.getSavedCount());
+        result.put("failedEntitiesCount", saved.getFailedCount());
+        result.put("invalidRecordsCount", invalid);
+        result.put("errors", errors);
+        result.put("batches", batches);
+        result.put("elapsedMillis", elapsedMillis);
+        result.put("entitiesPerSecond", perSecond(saved.getSavedCount(), elapsedMillis));
+        result.put("success", complete && invalid == 0 && saved.isSuccessful());
+
+        return result;
+    }
+
+    private static Map<String, Object> importError(long record, Exception error) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("record", record);
+        result.put("error", error.getMessage());
+        return result;
+    }
+
+    private static long perSecond(long count, long elapsedMillis) {
+        return count * 1000 / Math.max(1, elapsedMillis);
+    }
+
+    /**
+     * Reports the latency, failure and retry metrics of the daos and the state of the circuit
+     * breakers guarding their backends, since the app instance started.
+     *
+     * @return A map containing the dao metrics by entity class and the circuit breakers by name
+     */
+    @RequestMapping("metrics")
+    public final Map<String, Object> metrics() {
+        Map<String, Object> breakers = new LinkedHashMap<>();
+        for (Map.Entry<String, CircuitBreaker> breaker : CircuitBreaker.getAll().entrySet()) {
+            breakers.put(breaker.getKey(), breaker.getValue().getStats());
+        }
+
+        HashMap<String, Object> result = new HashMap<>();
+
+        result.put("daos", DaoMetrics.report());
+        result.put("circuitBreakers", breakers);
+
+        return result;
+    }
+
+    private static DatastoreBaseDao<BaseEntity> getDao(Class<? extends BaseEntity> entityClass)
+            throws NoSuchMethodException {
+        Class<? extends DatastoreBaseDao> daoClass = DatastoreBaseDao.getDaoForEntity(entityClass);
+
+        try {
+            return daoClass.getConstructor().newInstance();
+        } catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException ex) {
+            Logger.getLogger(GaeFrameworkUtilsWS.class.getName()).log(Level.SEVERE, null, ex);
+            throw new RuntimeException(ex);
+        }
+    }
 }
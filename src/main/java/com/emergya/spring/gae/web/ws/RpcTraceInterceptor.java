@@ -0,0 +1,34 @@
+package com.emergya.spring.gae.web.ws;
+
+import com.emergya.spring.gae.data.dao.RpcTrace;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+/**
+ * Ends the RPC trace of the request thread once the request has been handled, whatever the
+ * handler and however its response was written.
+ *
+ * <c>RpcTraceResponseAdvice</c> only ends the traces of handlers whose response body is written
+ * by a message converter, so handlers writing to the response themselves, errors resolved
+ * elsewhere and requests to other controllers would leave the trace bound to the thread. Must be
+ * registered for every path in the app's Spring MVC config, e.g. with
+ * <c>&lt;mvc:interceptors&gt;</c> or <c>WebMvcConfigurerAdapter.addInterceptors()</c>.
+ *
+ * @author lroman
+ */
+public class RpcTraceInterceptor extends HandlerInterceptorAdapter {
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response,
+            Object handler) {
+        // the async result is written by another dispatch, which reports the request's trace
+        RpcTrace.end();
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+            Exception ex) {
+        RpcTrace.end();
+    }
+}
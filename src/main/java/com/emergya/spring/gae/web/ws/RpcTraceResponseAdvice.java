@@ -0,0 +1,73 @@
+package com.emergya.spring.gae.web.ws;
+
+import com.emergya.spring.gae.data.dao.RpcTrace;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+/**
+ * Ends the RPC trace started by <c>BaseRestWebService</c> controllers and reports it in the
+ * <c>Server-Timing</c> header of the response, so the DataStore and Search time of every request
+ * shows up in the browser's developer tools.
+ *
+ * Must be picked up by the app's component scan, like the controllers. Traces of responses not
+ * written through it are ended by {@link RpcTraceInterceptor}.
+ *
+ * @author lroman
+ */
+@ControllerAdvice(assignableTypes = BaseRestWebService.class)
+public class RpcTraceResponseAdvice implements ResponseBodyAdvice<Object> {
+
+    private static final Logger LOG = Logger.getLogger(RpcTraceResponseAdvice.class.getName());
+
+    /**
+     * Name of the request attribute holding the trace of the request.
+     */
+    static final String RPC_TRACE_ATTRIBUTE = RpcTrace.class.getName();
+
+    private static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return true;
+    }
+
+    @Override
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+            Class<? extends HttpMessageConverter<?>> selectedConverterType,
+            ServerHttpRequest request, ServerHttpResponse response) {
+
+        // the thread's trace may be a stale one when writing an async result from another thread
+        RpcTrace trace = RpcTrace.end();
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes != null) {
+            RpcTrace requestTrace = (RpcTrace) attributes.getAttribute(RPC_TRACE_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+            if (requestTrace != null) {
+                trace = requestTrace;
+            }
+        }
+
+        if (trace == null) {
+            return body;
+        }
+
+        String serverTiming = trace.toServerTiming();
+        if (serverTiming != null) {
+            response.getHeaders().add(SERVER_TIMING_HEADER, serverTiming);
+        }
+
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine("RPCs of " + request.getURI().getPath() + ": " + trace.getSummary());
+        }
+
+        return body;
+    }
+}
@@ -0,0 +1,332 @@
+package com.emergya.spring.gae.data.dao;
+
+import com.google.appengine.api.search.Cursor;
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.FacetRange;
+import com.google.appengine.api.search.FacetRequest;
+import com.google.appengine.api.search.FacetResult;
+import com.google.appengine.api.search.FacetResultValue;
+import com.google.appengine.api.search.Field;
+import com.google.appengine.api.search.FieldExpression;
+import com.google.appengine.api.search.Index;
+import com.google.appengine.api.search.OperationResult;
+import com.google.appengine.api.search.Query;
+import com.google.appengine.api.search.QueryOptions;
+import com.google.appengine.api.search.Results;
+import com.google.appengine.api.search.ScoredDocument;
+import com.google.appengine.api.search.SortExpression;
+import com.google.appengine.api.search.SortOptions;
+import com.google.appengine.api.search.StatusCode;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the merge of the results, cursors and facet counts of the shards of an index.
+ *
+ * Shards are faked in memory: they return their documents in the order they are given, so every
+ * test gives them already sorted as the query asks.
+ *
+ * @author lroman
+ */
+public class ShardedSearchTest {
+
+    private static final String SORT_FIELD = "n";
+
+    @Test
+    public void offsetPageIsCutFromTheMergeOfUnevenShards() throws Exception {
+        FakeShard first = new FakeShard(doc(1), doc(4), doc(7), doc(8), doc(9));
+        FakeShard second = new FakeShard(doc(2), doc(5));
+        FakeShard empty = new FakeShard();
+
+        Results<ScoredDocument> results = search(
+                Arrays.asList(first, second, empty), byOffset(2, 3, SortExpression.SortDirection.ASCENDING));
+
+        assertEquals(Arrays.asList("4", "5", "7"), ids(results));
+        assertEquals(7, results.getNumberFound());
+        assertNull(results.getCursor());
+        // every shard is asked for the results up to the end of the page
+        assertEquals(5, first.lastOptions().getLimit());
+        assertEquals(0, first.lastOptions().getOffset());
+    }
+
+    @Test
+    public void offsetPageMergesByDescendingSortExpression() throws Exception {
+        FakeShard first = new FakeShard(doc(9), doc(8), doc(7), doc(4), doc(1));
+        FakeShard second = new FakeShard(doc(5), doc(2));
+
+        Results<ScoredDocument> results = search(
+                Arrays.asList(first, second), byOffset(0, 5, SortExpression.SortDirection.DESCENDING));
+
+        assertEquals(Arrays.asList("9", "8", "7", "5", "4"), ids(results));
+        assertEquals(SORT_FIELD, first.lastOptions().getExpressionsToReturn().get(0).getExpression());
+    }
+
+    @Test
+    public void resultsWithoutSortExpressionsAreMergedByRank() throws Exception {
+        FakeShard first = new FakeShard(doc(9), doc(4), doc(1));
+        FakeShard second = new FakeShard(doc(8), doc(5), doc(2));
+
+        Results<ScoredDocument> results = search(Arrays.asList(first, second), Query.newBuilder()
+                .setOptions(QueryOptions.newBuilder().setLimit(10))
+                .build("query"));
+
+        assertEquals(Arrays.asList("9", "8", "5", "4", "2", "1"), ids(results));
+    }
+
+    @Test
+    public void cursorPagesVisitEveryResultOnce() throws Exception {
+        List<FakeShard> shards = Arrays.asList(
+                new FakeShard(doc(1), doc(4), doc(7), doc(8), doc(9)),
+                new FakeShard(doc(2), doc(5)),
+                new FakeShard());
+
+        List<List<String>> pages = new ArrayList<>();
+        Cursor cursor = Cursor.newBuilder().build();
+        while (cursor != null) {
+            Results<ScoredDocument> results = search(shards, byCursor(cursor, 2));
+            assertEquals(7, results.getNumberFound());
+
+            pages.add(ids(results));
+            cursor = results.getCursor();
+        }
+
+        assertEquals(Arrays.asList(
+                Arrays.asList("1", "2"),
+                Arrays.asList("4", "5"),
+                Arrays.asList("7", "8"),
+                Arrays.asList("9")), pages);
+    }
+
+    @Test
+    public void cursorPagesOnlyAskShardsForAPage() throws Exception {
+        FakeShard first = new FakeShard(doc(1), doc(2), doc(3), doc(4), doc(5), doc(6));
+        FakeShard second = new FakeShard(doc(7));
+
+        Results<ScoredDocument> page = search(Arrays.asList(first, second), byCursor(Cursor.newBuilder().build(), 2));
+        assertEquals(Arrays.asList("1", "2"), ids(page));
+
+        page = search(Arrays.asList(first, second), byCursor(page.getCursor(), 2));
+        assertEquals(Arrays.asList("3", "4"), ids(page));
+        assertEquals(2, first.lastOptions().getLimit());
+        // the first shard resumes after the last result taken from it
+        assertEquals(first.cursorAfter(2), first.lastOptions().getCursor().toWebSafeString());
+        // the second shard had nothing taken, so it resumes where it was
+        assertNull(second.lastOptions().getCursor().toWebSafeString());
+    }
+
+    @Test
+    public void exhaustedShardsAreOnlyCounted() throws Exception {
+        FakeShard first = new FakeShard(doc(1), doc(3), doc(5), doc(6));
+        FakeShard second = new FakeShard(doc(2));
+
+        Results<ScoredDocument> page = search(Arrays.asList(first, second), byCursor(Cursor.newBuilder().build(), 3));
+        assertEquals(Arrays.asList("1", "2", "3"), ids(page));
+        assertNotNull(page.getCursor());
+
+        page = search(Arrays.asList(first, second), byCursor(page.getCursor(), 3));
+        assertEquals(Arrays.asList("5", "6"), ids(page));
+        assertEquals(5, page.getNumberFound());
+        assertEquals(1, second.lastOptions().getLimit());
+        assertNull(page.getCursor());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void cursorOfAnotherShardCountIsRejected() throws Exception {
+        List<FakeShard> three = Arrays.asList(new FakeShard(doc(1), doc(2)), new FakeShard(doc(3)), new FakeShard());
+        Results<ScoredDocument> page = search(three, byCursor(Cursor.newBuilder().build(), 1));
+
+        search(three.subList(0, 2), byCursor(page.getCursor(), 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedCursorIsRejected() throws Exception {
+        search(Arrays.asList(new FakeShard(), new FakeShard()), byCursor(Cursor.newBuilder().build("false:*"), 1));
+    }
+
+    @Test
+    public void facetCountsAreAddedUp() throws Exception {
+        FakeShard first = new FakeShard(doc(1)).withFacets(
+                facet("color", value("red", 3), value("blue", 1)),
+                facet("price", value("[10.0,20.0)", 2), value("[0.0,10.0)", 1)));
+        FakeShard second = new FakeShard(doc(2)).withFacets(
+                facet("color", value("blue", 4), value("green", 2)),
+                facet("price", value("[0.0,10.0)", 3)));
+
+        Results<ScoredDocument> results = search(Arrays.asList(first, second), Query.newBuilder()
+                .setOptions(QueryOptions.newBuilder().setLimit(10))
+                .addReturnFacet(FacetRequest.newBuilder().setName("color").setValueLimit(2))
+                .addReturnFacet(FacetRequest.newBuilder().setName("price")
+                        .addRange(FacetRange.withStartEnd(0.0, 10.0))
+                        .addRange(FacetRange.withStartEnd(10.0, 20.0)))
+                .build("query"));
+
+        List<FacetResult> facets = new ArrayList<>(results.getFacets());
+        assertEquals(2, facets.size());
+        assertEquals("color", facets.get(0).getName());
+        assertEquals(Arrays.asList("blue=5", "red=3"), counts(facets.get(0)));
+        assertEquals("price", facets.get(1).getName());
+        assertEquals(Arrays.asList("[0.0,10.0)=4", "[10.0,20.0)=2"), counts(facets.get(1)));
+        // shards are asked for more values, so values missing from some shard top are counted
+        assertEquals(Integer.valueOf(13), first.lastQuery.getReturnFacets().get(0).getValueLimit());
+    }
+
+    private static Results<ScoredDocument> search(List<FakeShard> fakes, Query query) throws Exception {
+        List<Index> shards = new ArrayList<>(fakes.size());
+        for (FakeShard fake : fakes) {
+            shards.add(fake.index());
+        }
+
+        return new ShardedSearch(shards).search(query);
+    }
+
+    private static Query byOffset(int offset, int limit, SortExpression.SortDirection direction) {
+        return Query.newBuilder().setOptions(QueryOptions.newBuilder()
+                .setOffset(offset)
+                .setLimit(limit)
+                .setSortOptions(sortBy(direction)))
+                .build("query");
+    }
+
+    private static Query byCursor(Cursor cursor, int limit) {
+        return Query.newBuilder().setOptions(QueryOptions.newBuilder()
+                .setCursor(cursor)
+                .setLimit(limit)
+                .setSortOptions(sortBy(SortExpression.SortDirection.ASCENDING)))
+                .build("query");
+    }
+
+    private static SortOptions.Builder sortBy(SortExpression.SortDirection direction) {
+        return SortOptions.newBuilder().addSortExpression(SortExpression.newBuilder()
+                .setExpression(SORT_FIELD)
+                .setDirection(direction)
+                .setDefaultValueNumeric(0));
+    }
+
+    /**
+     * Builds a document whose id, sort value and rank are the given number.
+     */
+    private static Document doc(int number) {
+        return Document.newBuilder()
+                .setId(String.valueOf(number))
+                .setRank(number)
+                .addField(Field.newBuilder().setName(SORT_FIELD).setNumber(number))
+                .build();
+    }
+
+    private static FacetResult facet(String name, FacetResultValue... values) {
+        FacetResult.Builder facet = FacetResult.newBuilder().setName(name);
+        for (FacetResultValue value : values) {
+            facet.addValue(value);
+        }
+
+        return facet.build();
+    }
+
+    private static FacetResultValue value(String label, int count) {
+        return FacetResultValue.create(label, count, "token-" + label);
+    }
+
+    private static List<String> ids(Results<ScoredDocument> results) {
+        List<String> ids = new ArrayList<>();
+        for (ScoredDocument document : results) {
+            ids.add(document.getId());
+        }
+
+        return ids;
+    }
+
+    private static List<String> counts(FacetResult facet) {
+        List<String> counts = new ArrayList<>();
+        for (FacetResultValue value : facet.getValues()) {
+            counts.add(value.getLabel() + "=" + value.getCount());
+        }
+
+        return counts;
+    }
+
+    /**
+     * In memory shard, returning its documents in order from the position of the query cursor,
+     * with a per result cursor and the requested expressions.
+     */
+    private static final class FakeShard {
+
+        private static final String CURSOR_PREFIX = "true:";
+
+        private final List<Document> documents;
+        private List<FacetResult> facets = Collections.emptyList();
+        private Query lastQuery;
+
+        FakeShard(Document... documents) {
+            this.documents = Arrays.asList(documents);
+        }
+
+        FakeShard withFacets(FacetResult... facets) {
+            this.facets = Arrays.asList(facets);
+            return this;
+        }
+
+        QueryOptions lastOptions() {
+            return lastQuery.getOptions();
+        }
+
+        String cursorAfter(int position) {
+            return CURSOR_PREFIX + position;
+        }
+
+        Index index() {
+            return (Index) Proxy.newProxyInstance(Index.class.getClassLoader(), new Class<?>[]{Index.class},
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if ("searchAsync".equals(method.getName()) && args[0] instanceof Query) {
+                                return CompletableFuture.completedFuture(search((Query) args[0]));
+                            }
+
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+
+        private Results<ScoredDocument> search(Query query) {
+            lastQuery = query;
+            QueryOptions options = query.getOptions();
+
+            int start = options.getOffset();
+            String cursor = options.getCursor() != null ? options.getCursor().toWebSafeString() : null;
+            if (cursor != null) {
+                start += Integer.parseInt(cursor.substring(CURSOR_PREFIX.length()));
+            }
+
+            List<ScoredDocument> found = new ArrayList<>();
+            for (int i = start; i < Math.min(documents.size(), start + options.getLimit()); i++) {
+                Document document = documents.get(i);
+                ScoredDocument.Builder scored = ScoredDocument.newBuilder()
+                        .setCursor(Cursor.newBuilder().build(cursorAfter(i + 1)));
+                for (FieldExpression expression : options.getExpressionsToReturn()) {
+                    scored.addExpression(Field.newBuilder()
+                            .setName(expression.getName())
+                            .setNumber(document.getOnlyField(expression.getExpression()).getNumber())
+                            .build());
+                }
+                scored.setId(document.getId()).setRank(document.getRank());
+                found.add(scored.build());
+            }
+
+            return new Results<ScoredDocument>(new OperationResult(StatusCode.OK, null),
+                    found, documents.size(), found.size(), null, facets) {
+                private static final long serialVersionUID = 1L;
+            };
+        }
+    }
+}